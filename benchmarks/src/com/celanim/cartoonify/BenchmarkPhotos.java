@@ -0,0 +1,95 @@
+package com.celanim.cartoonify;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the photos that the benchmarks are run on.
+ *
+ * A photo parameter is either the name of one of the <code>img_examples</code> photos
+ * (eg. "img_dog.jpg"), or a synthetic photo size such as "12MP".  Synthetic photos
+ * have a 4:3 shape, and mix smooth gradients with hard-edged blocks so that every
+ * stage has some real work to do.  They are generated once per JVM and saved as JPEG
+ * files in a temporary directory, so that they can be loaded like the real photos.
+ *
+ * The example photos are found in the directory given by the <code>cartoonify.photos</code>
+ * system property, or else in <code>cartoonify/img_examples</code> relative to the
+ * top-level project or to the benchmarks module.
+ */
+final class BenchmarkPhotos {
+
+	/** The system property that can say where the example photos are. */
+	static final String PHOTOS_PROPERTY = "cartoonify.photos";
+
+	/** The suffix of synthetic photo sizes, eg. "48MP". */
+	static final String MEGAPIXELS = "MP";
+
+	/** Where the synthetic photos have been saved, keyed by their size. */
+	private static final Map<String, String> synthetic = new HashMap<>();
+
+	private BenchmarkPhotos() {
+	}
+
+	/**
+	 * @param photo an example photo name, or a synthetic photo size (eg. "12MP").
+	 * @return the path to the photo file.
+	 * @throws IOException if the photo cannot be found or generated.
+	 */
+	static synchronized String path(String photo) throws IOException {
+		if (photo.endsWith(MEGAPIXELS)) {
+			String path = synthetic.get(photo);
+			if (path == null) {
+				final int megapixels = Integer.parseInt(photo.substring(0, photo.length() - MEGAPIXELS.length()));
+				File dir = Files.createTempDirectory("cartoonify-bench").toFile();
+				dir.deleteOnExit();
+				path = new File(dir, "synthetic_" + photo + ".jpg").getPath();
+				new File(path).deleteOnExit();
+				generate(path, megapixels).write();
+				synthetic.put(photo, path);
+			}
+			return path;
+		}
+		return new File(examplesDir(), photo).getPath();
+	}
+
+	/** @return the directory of example photos. */
+	private static File examplesDir() throws IOException {
+		final String property = System.getProperty(PHOTOS_PROPERTY);
+		if (property != null) {
+			return new File(property);
+		}
+		for (String candidate : new String[] {"cartoonify/img_examples", "../cartoonify/img_examples"}) {
+			File dir = new File(candidate);
+			if (dir.isDirectory()) {
+				return dir;
+			}
+		}
+		throw new IOException("Cannot find the example photos.  Set -D" + PHOTOS_PROPERTY + "=dir");
+	}
+
+	/**
+	 * Makes a synthetic photo.
+	 *
+	 * @param name the file name.
+	 * @param megapixels roughly how many million pixels it should have.
+	 * @return a 4:3 photo.
+	 */
+	static Photo generate(String name, int megapixels) {
+		final double pixels = megapixels * 1e6;
+		final int width = (int) Math.round(Math.sqrt(pixels * 4 / 3));
+		final int height = (int) Math.round(pixels / width);
+		int[] rgb = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final int red = (int) (128 + 100 * Math.sin(x / 37.0));
+				final int green = (int) (128 + 100 * Math.cos(y / 23.0));
+				final int blue = (x / 97 + y / 61) % 2 == 0 ? 220 : 40;
+				rgb[y * width + x] = red << 16 | green << 8 | blue;
+			}
+		}
+		return new Photo(name, width, height, rgb);
+	}
+}
@@ -0,0 +1,24 @@
+package com.celanim.cartoonify;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the megapixels that a benchmark has processed.
+ * JMH reports this as a rate, alongside ops/s, so it is the throughput in MP/s.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class MegapixelCounter {
+
+	/** The megapixels processed during this iteration. */
+	public double megapixels;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		megapixels = 0;
+	}
+}
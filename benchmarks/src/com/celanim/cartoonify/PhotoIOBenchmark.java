@@ -0,0 +1,76 @@
+package com.celanim.cartoonify;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures decoding photos with <code>loadPhoto</code>, and encoding them with <code>savePhoto</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx6g"})
+public class PhotoIOBenchmark {
+
+	/** An example photo name, or a synthetic photo size (see <code>BenchmarkPhotos</code>). */
+	@Param({"img_bucket.jpg", "img_bumblebee.jpg", "img_dog.jpg", "img_pavlova.jpg", "img_shenzhen.jpg",
+		"img_sunflower.jpg", "img_surfers.jpg", "1MP", "12MP", "48MP"})
+	public String photo;
+
+	/** The file type that savePhoto writes, eg. "png" or "pix". */
+	@Param({"jpg"})
+	public String format;
+
+	private String input;
+	private String output;
+	private Cartoonify cart;
+	private Cartoonify loader;
+	private double megapixels;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		input = BenchmarkPhotos.path(photo);
+		File outputFile = File.createTempFile("cartoonify-bench", "." + format);
+		outputFile.deleteOnExit();
+		output = outputFile.getPath();
+		cart = new Cartoonify();
+		cart.loadPhoto(input);
+		loader = new Cartoonify();
+		megapixels = cart.width() * (double) cart.height() / 1e6;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		new File(output).delete();
+	}
+
+	@Benchmark
+	public void loadPhoto(MegapixelCounter counter) throws IOException {
+		loader.loadPhoto(input);
+		loader.clear();
+		counter.megapixels += megapixels;
+	}
+
+	@Benchmark
+	public void savePhoto(MegapixelCounter counter) throws IOException {
+		cart.savePhoto(output);
+		counter.megapixels += megapixels;
+	}
+}
@@ -0,0 +1,118 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each processing stage on its own, and the whole staged CPU pipeline.
+ *
+ * The stack of images is set up once per trial as (from bottom to top):
+ * original, blurred, edges, original, quantized.  Each benchmark then pushes the
+ * image it makes from the right inputs and drops it again, so the stack (and the
+ * pixel buffer pool) is the same before every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx6g"})
+public class StageBenchmark {
+
+	/** The positions of the input images in the stack. */
+	private static final int ORIGINAL = 0;
+	private static final int BLURRED = 1;
+	private static final int EDGES = 2;
+	private static final int QUANTIZED = 4;
+
+	/** The number of images on the stack between benchmark calls. */
+	private static final int STACK_SIZE = 5;
+
+	/** An example photo name, or a synthetic photo size (see <code>BenchmarkPhotos</code>). */
+	@Param({"img_bucket.jpg", "img_bumblebee.jpg", "img_dog.jpg", "img_pavlova.jpg", "img_shenzhen.jpg",
+		"img_sunflower.jpg", "img_surfers.jpg", "1MP", "12MP", "48MP"})
+	public String photo;
+
+	/** CPU threads per stage, as for the -p option.  0 means all processors. */
+	@Param({"1"})
+	public int threads;
+
+	private Cartoonify cart;
+
+	/** The size of the photo in megapixels. */
+	private double megapixels;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		cart = new Cartoonify();
+		cart.setParallelism(threads);
+		cart.loadPhoto(BenchmarkPhotos.path(photo));
+		megapixels = cart.width() * (double) cart.height() / 1e6;
+		cart.gaussianBlur();
+		cart.sobelEdgeDetect();
+		cart.cloneImage(ORIGINAL);
+		cart.reduceColours();
+		assert cart.numImages() == STACK_SIZE;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cart.clear();
+	}
+
+	/** Drops the images that a benchmark added. */
+	private void restore(MegapixelCounter counter) {
+		while (cart.numImages() > STACK_SIZE) {
+			cart.dropImage();
+		}
+		counter.megapixels += megapixels;
+	}
+
+	@Benchmark
+	public void gaussianBlur(MegapixelCounter counter) {
+		cart.cloneImage(ORIGINAL);
+		cart.gaussianBlur();
+		restore(counter);
+	}
+
+	@Benchmark
+	public void sobelEdgeDetect(MegapixelCounter counter) {
+		cart.cloneImage(BLURRED);
+		cart.sobelEdgeDetect();
+		restore(counter);
+	}
+
+	@Benchmark
+	public void reduceColours(MegapixelCounter counter) {
+		cart.cloneImage(ORIGINAL);
+		cart.reduceColours();
+		restore(counter);
+	}
+
+	@Benchmark
+	public void mergeMask(MegapixelCounter counter) {
+		cart.mergeMask(EDGES, cart.white, QUANTIZED);
+		restore(counter);
+	}
+
+	@Benchmark
+	public void processPhotoOnCPU(MegapixelCounter counter) {
+		cart.cloneImage(ORIGINAL);
+		cart.processPhotoOnCPU();
+		restore(counter);
+	}
+}
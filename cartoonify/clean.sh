@@ -1,3 +1,4 @@
 #!/usr/bin/env bash
 echo "Removing all img_* output Jpeg images, including img_*_cartoon.jpg"
 rm -f img_*_blurred.jpg img_*_colours.jpg img_*_edges.jpg img_*_cartoon.jpg
+rm -f img_*_blurred.pix img_*_colours.pix img_*_edges.pix
@@ -0,0 +1,205 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes a batch of photos with several workers running at the same time.
+ *
+ * A Cartoonify object holds the images of the photo it is working on, so it cannot be
+ * shared between threads.  Instead, each worker gets its own Cartoonify with the same
+ * settings, and takes the next unprocessed photo from the list whenever it is free.
+ */
+public final class BatchProcessor {
+
+	/** The settings that each worker's Cartoonify is copied from. */
+	private final Cartoonify settings;
+
+	/** The number of photos that can be processed at the same time. */
+	private final int numWorkers;
+
+	/** How many decoded photos can wait to be processed, or 0 to not overlap loading and saving. */
+	private int pipelineDepth = 0;
+
+	/** The pipeline used by the last run, or null if loading and saving were not overlapped. */
+	private PhotoPipeline pipeline = null;
+
+	/** Total processing time of all photos (excluding loading/saving) in milliseconds. */
+	private long processingMillis;
+
+	/** Number of photos processed. */
+	private int done;
+
+	/** Total number of pixels processed. */
+	private long pixels;
+
+	/** Wall-clock time of the whole batch, including loading and saving, in nanoseconds. */
+	private long elapsedNanos;
+
+	/**
+	 * @param settings the Cartoonify whose settings every worker should use.
+	 * @param numWorkers how many photos to process at the same time (at least 1).
+	 */
+	public BatchProcessor(Cartoonify settings, int numWorkers) {
+		if (numWorkers < 1) {
+			throw new IllegalArgumentException("number of workers must be at least 1, not " + numWorkers);
+		}
+		this.settings = settings;
+		this.numWorkers = numWorkers;
+	}
+
+	/**
+	 * Overlap loading, processing and saving, using a pipeline of decoder, worker
+	 * and encoder threads.  There are <code>numWorkers</code> threads of each kind.
+	 * This is ignored when streaming, since streamed photos are never fully decoded,
+	 * and for parameter sweeps, which save many cartoons of each photo.
+	 *
+	 * @param pipelineDepth how many decoded photos (and finished results) can wait
+	 *     in memory at once.  0 means load, process and save each photo in turn.
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		if (pipelineDepth < 0) {
+			throw new IllegalArgumentException("pipeline depth must be at least zero, not " + pipelineDepth);
+		}
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	/**
+	 * Processes all the given photos, and waits until they are all finished.
+	 * If one photo fails, the other workers stop after the photo they are working on.
+	 *
+	 * @param photos the photo file names.
+	 * @throws IOException if any photo cannot be loaded or saved.
+	 */
+	public void run(List<String> photos) throws IOException {
+		final long start = System.nanoTime();
+		final AtomicInteger next = new AtomicInteger();
+		final int workers = Math.max(1, Math.min(numWorkers, photos.size()));
+		if (pipelineDepth > 0 && !settings.isStreaming() && !settings.isSweep()) {
+			pipeline = new PhotoPipeline(this, settings, workers, workers, workers, pipelineDepth);
+			pipeline.run(photos);
+		} else if (workers == 1) {
+			work(photos, next);
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(workers);
+			// results are collected in the order they finish, so the first failure is seen straight away.
+			CompletionService<Void> results = new ExecutorCompletionService<>(executor);
+			try {
+				for (int i = 0; i < workers; i++) {
+					results.submit(() -> {
+						work(photos, next);
+						return null;
+					});
+				}
+				for (int i = 0; i < workers; i++) {
+					results.take().get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("batch processing was interrupted", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			} finally {
+				// if one worker failed, this stops the others before their next photo.
+				executor.shutdownNow();
+				awaitWorkers(executor);
+			}
+		}
+		elapsedNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Waits for the threads of a shut down executor to finish the photos they are working on,
+	 * so that none are left running.  This is also used by <code>PhotoPipeline</code>.
+	 */
+	static void awaitWorkers(ExecutorService executor) {
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** One worker: keeps processing the next photo until there are none left, or it is interrupted. */
+	private void work(List<String> photos, AtomicInteger next) throws IOException {
+		final Cartoonify cart = new Cartoonify(settings);
+		try {
+			int photo;
+			while (!Thread.currentThread().isInterrupted() && (photo = next.getAndIncrement()) < photos.size()) {
+				final long pixelsBefore = cart.getPixelsProcessed();
+				final long time = cart.processPhoto(photos.get(photo));
+				record(time, cart.getPixelsProcessed() - pixelsBefore);
+			}
+		} finally {
+			cart.releaseOpenCL();
+		}
+	}
+
+	/**
+	 * Adds the results of one photo to the totals.  This is called by the worker threads.
+	 *
+	 * @param time the milliseconds spent processing the photo (excluding loading/saving).
+	 * @param photoPixels the number of pixels in the photo.
+	 */
+	synchronized void record(long time, long photoPixels) {
+		processingMillis += time;
+		pixels += photoPixels;
+		done++;
+	}
+
+	/** @return the total processing time of all photos (excluding loading/saving) in milliseconds. */
+	public synchronized long getProcessingMillis() {
+		return processingMillis;
+	}
+
+	/** @return the number of photos processed. */
+	public synchronized int getDone() {
+		return done;
+	}
+
+	/** @return the total number of pixels processed. */
+	public synchronized long getPixels() {
+		return pixels;
+	}
+
+	/** @return photos per second of wall-clock time, including loading and saving. */
+	public synchronized double photosPerSecond() {
+		return elapsedNanos == 0 ? 0.0 : done / (elapsedNanos / 1e9);
+	}
+
+	/** @return megapixels per second of wall-clock time, including loading and saving. */
+	public synchronized double megapixelsPerSecond() {
+		return elapsedNanos == 0 ? 0.0 : pixels / 1e6 / (elapsedNanos / 1e9);
+	}
+
+	/** Prints the aggregate throughput of the batch. */
+	public void printThroughput() {
+		System.out.format("%nThroughput is %.2f photos/sec and %.2f megapixels/sec with %d workers.%n",
+				photosPerSecond(), megapixelsPerSecond(), numWorkers);
+		if (pipeline != null) {
+			pipeline.printQueueTimes();
+		}
+		settings.getPixelPool().printStats();
+		if (settings.isDebug()) {
+			settings.getMetrics().printStats();
+		}
+		if (settings.getResultCache() != null) {
+			settings.getResultCache().printStats();
+		}
+	}
+
+	/** @return the pipeline used by the last run, or null if loading and saving were not overlapped. */
+	PhotoPipeline pipeline() {
+		return pipeline;
+	}
+}
@@ -1,26 +1,13 @@
 package com.celanim.cartoonify;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import javax.imageio.ImageIO;
-
-import static org.jocl.CL.*;
-import org.jocl.CL;
-import org.jocl.Pointer;
-import org.jocl.Sizeof;
-import org.jocl.cl_command_queue;
-import org.jocl.cl_context;
-import org.jocl.cl_context_properties;
-import org.jocl.cl_device_id;
-import org.jocl.cl_kernel;
-import org.jocl.cl_mem;
-import org.jocl.cl_platform_id;
-import org.jocl.cl_program;
-import org.jocl.cl_event;
-
-import com.celanim.cartoonify.JOCLUtil;
+import java.util.List;
+
+import javax.management.JMException;
 
 /**
  * Processes lots of photos and uses edge detection and colour reduction to make them cartoon-like.
@@ -33,6 +20,8 @@ import com.celanim.cartoonify.JOCLUtil;
  * of the stack (this can be accessed as index -1).  Image processing methods
  * should create a new image (1D array of int pixels in row-major order) and push
  * it on top of the stack.  They should not modify images destructively.
+ * Because images on the stack are never changed, the same image can be on the stack
+ * more than once (see <code>cloneImage</code>) without copying its pixels.
  *
  * @author Mark.Utting
  */
@@ -65,10 +54,43 @@ public class Cartoonify {
 	
 	/** Number of values in each colour channel (R, G, B) after quantization. */
 	private int numColours = 3;
+
+	/** Lookup tables for <code>numColours</code>, built when first needed. */
+	private ColourQuantizer quantizer = null;
 	
 	private boolean debug = false;
 	
 	private boolean useGPU = false;
+
+	/** True means do all the CPU stages in one pass, without full-size intermediate images. */
+	private boolean fused = false;
+
+	/** True means blur and detect edges on separate colour planes (see <code>PlanarImage</code>). */
+	private boolean planar = false;
+
+	/** The edge thresholds of a parameter sweep, or null to use just <code>edgeThreshold</code>. */
+	private int[] sweepEdgeThresholds = null;
+
+	/** The numbers of colours of a parameter sweep, or null to use just <code>numColours</code>. */
+	private int[] sweepNumColours = null;
+
+	/** Source rows read at a time when streaming photos through in bands.  0 means no streaming. */
+	private int streamingBandRows = 0;
+
+	/** How the per-pixel stages (grayscale, reduceColours, mergeMask) loop over the pixels. */
+	private PixelStages pixelStages = PixelStages.SCALAR;
+
+	/** How the rows of each image are split up between CPU threads. */
+	private RowBands bands = RowBands.SEQUENTIAL;
+
+	/** The number of photos that <code>main</code> processes at the same time. */
+	private int batchWorkers = 1;
+
+	/** How many decoded photos <code>main</code> can load ahead.  0 means no overlapping. */
+	private int pipelineDepth = 0;
+
+	/** The total number of pixels in all the photos processed so far. */
+	private long pixelsProcessed = 0;
 	
 	/** The width of all the images. */
 	private int width;
@@ -76,23 +98,38 @@ public class Cartoonify {
 	/** The height of all the images. */
 	private int height;
 
+	/** Recycles the pixel buffers of one photo for the next.  Shared with copies of this processor. */
+	private PixelBufferPool pixelPool = new PixelBufferPool(PixelBufferPool.DEFAULT_MAX_BYTES);
+
+	/** True means save the intermediate images as raw pixel files, when debugging. */
+	private boolean rawIntermediates = false;
+
+	/** Finished cartoons from earlier runs, or null for no caching.  Shared with copies of this processor. */
+	private ResultCache resultCache = null;
+
+	/** Encodes the saved photos.  Shared with copies of this processor. */
+	private PhotoWriters photoWriters = new PhotoWriters();
+
+	/** Always-on timings of each processing stage.  Shared with copies of this processor. */
+	private Metrics metrics = new Metrics();
+
+	/** The input photo that is being processed, for the flight recorder events.  "" if unknown. */
+	private String photoName = "";
+
+	/** The file that <code>main</code> saves the metrics to when it finishes, or null for none. */
+	private Path metricsReport = null;
+
 	/** A stack of images, with the current one at position <code>currImage</code>. */
-	private int[][] pixels;
+	private SharedImage[] pixels;
 
 	/** The position of the current image in the pixels array. -1 means no current image. */
 	private int currImage;
-	
-	/** MAX_COMPUTE_UNITES * MAX_COMPUTE_GROUP_SIZE (48 * 256 = 12288) */
-	final int WORK_ITEM_SIZE = 12288;
-	
-	/** The max work group size */
-	final int WORK_GROUP_SIZE = 256;
-	
-	/** The device will be used */
-	private cl_device_id device = null;
-	
-	/** The content property */
-	private cl_context context = null;
+
+	/** The OpenCL device, program and buffers, set up by the first photo.  Not shared with copies. */
+	private OpenCLSession openCL = null;
+
+	/** The blurred colour planes of the last planar photo, reused by the next one of the same size.  Not shared with copies. */
+	private PlanarImage blurredPlanes = null;
 
 	/**
 	 * Create a new photo-to-cartoon processor.
@@ -101,10 +138,41 @@ public class Cartoonify {
 	 * should typically be the first method called.
 	 */
 	public Cartoonify() {
-		pixels = new int[4][];
+		pixels = new SharedImage[4];
 		currImage = -1;  // no image loaded initially
 	}
 
+	/**
+	 * Create a new photo-to-cartoon processor with the same settings as another one.
+	 *
+	 * The new processor has its own empty stack of images, so it can be used on
+	 * a different thread to the original one.
+	 *
+	 * @param settings the processor to copy the settings from.
+	 */
+	public Cartoonify(Cartoonify settings) {
+		this();
+		this.edgeThreshold = settings.edgeThreshold;
+		this.numColours = settings.numColours;
+		this.quantizer = settings.quantizer;
+		this.debug = settings.debug;
+		this.useGPU = settings.useGPU;
+		this.fused = settings.fused;
+		this.planar = settings.planar;
+		this.sweepEdgeThresholds = settings.sweepEdgeThresholds;
+		this.sweepNumColours = settings.sweepNumColours;
+		this.streamingBandRows = settings.streamingBandRows;
+		this.pixelStages = settings.pixelStages;
+		this.bands = settings.bands;
+		this.batchWorkers = settings.batchWorkers;
+		this.pipelineDepth = settings.pipelineDepth;
+		this.pixelPool = settings.pixelPool;
+		this.photoWriters = settings.photoWriters;
+		this.rawIntermediates = settings.rawIntermediates;
+		this.resultCache = settings.resultCache;
+		this.metrics = settings.metrics;
+	}
+
 	/** @return What level of colour change should be considered an edge. */
 	public int getEdgeThreshold() {
 		return edgeThreshold;
@@ -134,12 +202,371 @@ public class Cartoonify {
 	 */
 	public void setNumColours(int numColours) {
 		if (0 < numColours && numColours <= 256) {
+			if (numColours != this.numColours) {
+				quantizer = null; // the lookup tables must be rebuilt.
+			}
 			this.numColours = numColours;
 		} else {
 			throw new IllegalArgumentException("NumColours must be 0..256, not " + numColours);
 		}
 	}
 
+	/** @return the number of CPU threads used for each processing stage. */
+	public int getParallelism() {
+		return bands.parallelism();
+	}
+
+	/**
+	 * Set the number of CPU threads used for each processing stage.
+	 * Each stage splits the image into bands of rows, so the results are
+	 * exactly the same as processing on a single thread.
+	 *
+	 * @param parallelism 1 means single-threaded, 0 means one thread per available processor.
+	 */
+	public void setParallelism(int parallelism) {
+		this.bands = RowBands.withParallelism(parallelism);
+	}
+
+	/** @return true if photos are processed with OpenCL. */
+	public boolean isUseGPU() {
+		return useGPU;
+	}
+
+	/**
+	 * Set this to true to process photos with OpenCL, on a GPU if there is one.
+	 *
+	 * @param useGPU
+	 */
+	public void setUseGPU(boolean useGPU) {
+		this.useGPU = useGPU;
+	}
+
+	/** @return true if the CPU stages are done in a single fused pass. */
+	public boolean isFused() {
+		return fused;
+	}
+
+	/**
+	 * Set this to true to do all the CPU processing stages in one pass over the photo.
+	 * This avoids writing the blurred, edge and colour images, unless debugging is on.
+	 *
+	 * @param fused
+	 */
+	public void setFused(boolean fused) {
+		this.fused = fused;
+	}
+
+	/** @return true if the blur and edge stages work on separate colour planes. */
+	public boolean isPlanar() {
+		return planar;
+	}
+
+	/**
+	 * Set this to true to unpack each photo into separate red, green and blue planes
+	 * of bytes for the blur and edge detection stages.  The results are the same.
+	 *
+	 * @param planar
+	 */
+	public void setPlanar(boolean planar) {
+		this.planar = planar;
+	}
+
+	/**
+	 * Returns the colour quantizer for the current <code>getNumColours()</code> setting.
+	 * Its lookup tables are built once, and reused for every photo until the setting changes.
+	 */
+	ColourQuantizer quantizer() {
+		ColourQuantizer result = quantizer;
+		if (result == null) {
+			result = new ColourQuantizer(numColours);
+			quantizer = result;
+		}
+		return result;
+	}
+
+	/** @return the number of photos that <code>main</code> processes at the same time. */
+	public int getBatchWorkers() {
+		return batchWorkers;
+	}
+
+	/**
+	 * Set the number of photos that <code>main</code> processes at the same time.
+	 * Each one is processed by its own Cartoonify, with these settings.
+	 *
+	 * @param batchWorkers at least 1.
+	 */
+	public void setBatchWorkers(int batchWorkers) {
+		if (batchWorkers < 1) {
+			throw new IllegalArgumentException("number of workers must be at least 1, not " + batchWorkers);
+		}
+		this.batchWorkers = batchWorkers;
+	}
+
+	/** @return how many decoded photos <code>main</code> can load ahead.  0 means no overlapping. */
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * Set how many photos <code>main</code> can load ahead while other photos are processed.
+	 * When this is positive, loading, processing and saving run on separate threads,
+	 * and at most this many decoded photos (and finished results) wait in memory.
+	 *
+	 * @param pipelineDepth 0 means load, process and save each photo in turn.
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		if (pipelineDepth < 0) {
+			throw new IllegalArgumentException("pipeline depth must be at least zero, not " + pipelineDepth);
+		}
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	/** @return the pool that new images are taken from, and that <code>clear()</code> gives them back to. */
+	public PixelBufferPool getPixelPool() {
+		return pixelPool;
+	}
+
+	/**
+	 * Set the pool of pixel buffers.  Copies of this processor made afterwards share the same pool.
+	 *
+	 * @param pixelPool the pool that new images should be taken from.
+	 */
+	public void setPixelPool(PixelBufferPool pixelPool) {
+		this.pixelPool = pixelPool;
+	}
+
+	/** @return the metrics that every processing stage records its time, pixels and allocations in. */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set the metrics registry.  Copies of this processor made afterwards share the same metrics.
+	 *
+	 * @param metrics where the processing stages should record their time, pixels and allocations.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/** @return the file that <code>main</code> saves the metrics to, or null for none. */
+	public Path getMetricsReport() {
+		return metricsReport;
+	}
+
+	/**
+	 * Set the file that <code>main</code> saves the metrics to when it finishes.
+	 *
+	 * @param metricsReport a .csv file for CSV, otherwise JSON.  null means no report.
+	 */
+	public void setMetricsReport(Path metricsReport) {
+		this.metricsReport = metricsReport;
+	}
+
+	/**
+	 * Starts timing one processing stage of the current photo, in the metrics and as a flight recorder event.
+	 *
+	 * @param stage eg. "gaussianBlur".
+	 * @return pass this to <code>stageDone</code>, or stop it, when the stage has finished.
+	 */
+	Metrics.Span startStage(String stage) {
+		return startStage(stage, edgeThreshold, numColours);
+	}
+
+	/**
+	 * As for <code>startStage(stage)</code>, but for a stage that uses different settings,
+	 * eg. one cartoon of a parameter sweep.
+	 */
+	Metrics.Span startStage(String stage, int stageEdgeThreshold, int stageColours) {
+		return metrics.start(stage,
+				new PipelineEvents.Stage(stage).describe(photoName, width, height, stageEdgeThreshold, stageColours));
+	}
+
+	/**
+	 * Records one run of a processing stage, and prints its time when debugging.
+	 *
+	 * @param span started just before the stage.
+	 * @param description eg. "gaussian blurring", for the debug message.
+	 */
+	private void stageDone(Metrics.Span span, String description) {
+		final long nanos = span.stop((long) width * height);
+		if (debug) {
+			System.out.println("  " + description + " took " + nanos / 1e9 + " secs.");
+		}
+	}
+
+	/** @return the encoders used to save photos, with their quality settings. */
+	public PhotoWriters getPhotoWriters() {
+		return photoWriters;
+	}
+
+	/**
+	 * Set the JPEG quality of saved photos.
+	 *
+	 * @param quality from 0.0 (smallest files) to 1.0 (best quality).  The ImageIO default is 0.75.
+	 */
+	public void setJpegQuality(float quality) {
+		photoWriters = photoWriters.withJpegQuality(quality);
+	}
+
+	/**
+	 * Set the PNG compression level of saved photos.
+	 *
+	 * @param level from 0 (fastest) to 9 (smallest files).  The ImageIO default is 4.
+	 */
+	public void setPngCompression(int level) {
+		photoWriters = photoWriters.withPngCompression(level);
+	}
+
+	/**
+	 * Set this to true to save PNG photos with the built-in parallel encoder,
+	 * which deflates strips of rows on all the available processors.
+	 *
+	 * @param parallel false means use the ImageIO PNG writer.
+	 */
+	public void setParallelPng(boolean parallel) {
+		photoWriters = photoWriters.withPngBands(parallel ? RowBands.withParallelism(0) : null);
+	}
+
+	/** @return true if intermediate images are saved as raw pixel files, when debugging. */
+	public boolean isRawIntermediates() {
+		return rawIntermediates;
+	}
+
+	/**
+	 * Set this to true to save the intermediate images (when debugging) as raw pixel files,
+	 * eg. "foo_blurred.pix", which are fast to save and can be reloaded exactly.
+	 * See <code>RawPixels</code> for the file format.
+	 *
+	 * @param raw false means save them in the same format as the input photo.
+	 */
+	public void setRawIntermediates(boolean raw) {
+		this.rawIntermediates = raw;
+	}
+
+	/** @return the cache of finished cartoons, or null if results are not cached. */
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Set the cache of finished cartoons.  Photos whose cartoon is already in the cache
+	 * are not processed at all.  The cache is not used when debugging, since it only
+	 * holds the final cartoons.
+	 *
+	 * @param resultCache null means do not cache results.
+	 */
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * @return a description of all the settings that affect the bytes of a saved cartoon,
+	 *     for the result cache key.
+	 */
+	String cacheSettings() {
+		final String backend = useGPU ? "opencl" : (fused ? "fused" : planar ? "planar" : "staged") + "/" + pixelStages.name();
+		return "edgeThreshold=" + edgeThreshold + " numColours=" + numColours + " backend=" + backend
+				+ " jpegQuality=" + photoWriters.jpegQuality() + " pngCompression=" + photoWriters.pngCompression()
+				+ " parallelPng=" + (photoWriters.pngBands() != null);
+	}
+
+	/**
+	 * @param name path to the input photo.
+	 * @return the result cache key of this photo, or null if the result cache is not being used.
+	 * @throws IOException if the photo cannot be read.
+	 */
+	String resultCacheKey(String name) throws IOException {
+		if (resultCache == null || debug || isSweep()) {
+			return null;
+		}
+		return ResultCache.key(name, cacheSettings());
+	}
+
+	/** @return the total number of pixels in all the photos processed so far. */
+	public long getPixelsProcessed() {
+		return pixelsProcessed;
+	}
+
+	/** @return how the rows of each image are split up between CPU threads. */
+	RowBands bands() {
+		return bands;
+	}
+
+	/** @return how the per-pixel stages loop over the pixels. */
+	PixelStages pixelStages() {
+		return pixelStages;
+	}
+
+	/** @return the name of the per-pixel stage implementation, eg. "scalar". */
+	public String getPixelStages() {
+		return pixelStages.name();
+	}
+
+	/**
+	 * Set this to true to use the Vector API for the per-pixel stages.
+	 * This only works when the JVM is run with <code>--add-modules jdk.incubator.vector</code>,
+	 * otherwise the scalar implementation is still used.
+	 *
+	 * @param vectorized
+	 */
+	public void setVectorized(boolean vectorized) {
+		this.pixelStages = vectorized ? PixelStages.vectorOrScalar() : PixelStages.SCALAR;
+	}
+
+	/** @return true if each photo is made into a grid of cartoons with different settings. */
+	public boolean isSweep() {
+		return sweepEdgeThresholds != null || sweepNumColours != null;
+	}
+
+	/**
+	 * Set up a parameter sweep, which makes a cartoon of each photo for every combination
+	 * of the given edge thresholds and numbers of colours.  The blur and edge gradients
+	 * are only calculated once per photo.  Intermediate images are not saved, and the
+	 * cartoons are not streamed, cached or pipelined.  A sweep always uses the staged CPU
+	 * stages, so the GPU, fused, planar and streaming settings do not apply to it.
+	 *
+	 * @param edgeThresholds the thresholds to try, or null to use just <code>getEdgeThreshold()</code>.
+	 * @param numColours the numbers of colours to try, or null to use just <code>getNumColours()</code>.
+	 */
+	public void setSweep(int[] edgeThresholds, int[] numColours) {
+		if (edgeThresholds != null) {
+			for (int threshold : edgeThresholds) {
+				if (threshold < 0) {
+					throw new IllegalArgumentException("edge threshold must be at least zero, not " + threshold);
+				}
+			}
+		}
+		if (numColours != null) {
+			for (int colours : numColours) {
+				if (colours <= 0 || colours > 256) {
+					throw new IllegalArgumentException("NumColours must be 0..256, not " + colours);
+				}
+			}
+		}
+		this.sweepEdgeThresholds = edgeThresholds == null ? null : edgeThresholds.clone();
+		this.sweepNumColours = numColours == null ? null : numColours.clone();
+	}
+
+	/** @return true if photos are streamed through in bands of rows. */
+	public boolean isStreaming() {
+		return streamingBandRows > 0;
+	}
+
+	/**
+	 * Set this to stream each photo through the CPU pipeline in bands of rows, so that the
+	 * whole photo is never in memory at once.  This is for photos that are too big for the heap.
+	 * The processing time then includes loading and saving, and intermediate images are not saved.
+	 *
+	 * @param bandRows the number of rows in each band, or 0 to turn streaming off.
+	 */
+	public void setStreamingBandRows(int bandRows) {
+		if (bandRows < 0) {
+			throw new IllegalArgumentException("band rows must be at least zero, not " + bandRows);
+		}
+		this.streamingBandRows = bandRows;
+	}
+
 	public boolean isDebug() {
 		return debug;
 	}
@@ -167,7 +594,44 @@ public class Cartoonify {
 	 * @return all the pixels in the current image that is on top of the stack.
 	 */
 	protected int[] currentImage() {
-		return pixels[currImage];
+		return pixels[currImage].pixels;
+	}
+
+	/**
+	 * An image on the stack.  The same image can be on the stack several times
+	 * (see <code>cloneImage</code>), so it counts how many stack positions refer to it.
+	 * Images on the stack are never changed, so sharing them is safe; the pixels are
+	 * only copied if a shared image is popped off the stack.
+	 */
+	private static final class SharedImage {
+		final int[] pixels;
+
+		/** The number of stack positions that refer to this image. */
+		int refs = 1;
+
+		SharedImage(int[] pixels) {
+			this.pixels = pixels;
+		}
+	}
+
+	/**
+	 * @param which the number/position of an image (as for cloneImage).
+	 * @return the pixels of that image, which must not be changed.
+	 */
+	protected int[] image(int which) {
+		final int stackPos = which >= 0 ? which : (currImage + which + 1);
+		assert 0 <= stackPos && stackPos <= currImage;
+		return pixels[stackPos].pixels;
+	}
+
+	/**
+	 * Gets a new image from the pixel buffer pool.
+	 * It may contain old pixels, so the caller must set every pixel.
+	 *
+	 * @return an array of width * height pixels.
+	 */
+	protected int[] newImage() {
+		return pixelPool.acquire(width * height);
 	}
 
 	/**
@@ -177,29 +641,60 @@ public class Cartoonify {
 	 */
 	protected void pushImage(int[] newPixels) {
 		assert newPixels.length == width * height;
+		push(new SharedImage(newPixels));
+	}
+
+	/** Pushes an image handle onto the stack. */
+	private void push(SharedImage image) {
 		currImage++;
 		if (currImage >= pixels.length) {
 			// expand the maximum number of possible images.
 			pixels = Arrays.copyOf(pixels, pixels.length * 2);
 		}
-		pixels[currImage] = newPixels;
+		pixels[currImage] = image;
 	}
 
 	/**
 	 * Remove the current image off the stack.
 	 *
+	 * If the same image is still elsewhere on the stack, the caller gets a copy of it,
+	 * so the caller can always change the pixels it gets back.
+	 *
 	 * @return all the pixels in that image.
 	 */
 	protected int[] popImage() {
-		final int[] result = pixels[currImage];
+		final SharedImage top = pixels[currImage];
 		pixels[currImage--] = null;
-		return result;
+		if (--top.refs == 0) {
+			return top.pixels;
+		}
+		int[] copy = newImage();
+		System.arraycopy(top.pixels, 0, copy, 0, width * height);
+		return copy;
+	}
+
+	/**
+	 * Remove the current image off the stack, without returning it.
+	 * Unlike <code>popImage</code>, this never copies the image.
+	 * If this was the last reference to the image, it is given back to the pixel buffer pool.
+	 */
+	protected void dropImage() {
+		release(pixels[currImage]);
+		pixels[currImage--] = null;
+	}
+
+	/** Removes one reference to an image, and gives it back to the pool if it was the last one. */
+	private void release(SharedImage image) {
+		if (--image.refs == 0) {
+			pixelPool.release(image.pixels);
+		}
 	}
 
 	/**
 	 * Push a shallow copy of the given image onto the stack.
 	 * For speed, this copies the pointer to the image, but does not
-	 * duplicate all the pixels in the image.
+	 * duplicate all the pixels in the image.  The pixels are only copied
+	 * if one of the copies is later popped off the stack while the other is still there.
 	 *
 	 * Negative numbers are relative to the top of the stack, so -1 means duplicate
 	 * the current top of the stack.  Zero or positive is relative to the bottom of
@@ -210,13 +705,22 @@ public class Cartoonify {
 	public void cloneImage(int which) {
 		final int stackPos = which >= 0 ? which : (currImage + which + 1);
 		assert 0 <= stackPos && stackPos <= currImage;
-		pushImage(Arrays.copyOf(pixels[stackPos], width * height));
+		final SharedImage image = pixels[stackPos];
+		image.refs++;
+		push(image);
 	}
 
 	/**
 	 * Reset the stack of images so that it is empty.
+	 *
+	 * The images still on the stack are given back to the pixel buffer pool, to be reused
+	 * by the next photo, so the caller must not keep any references to them.
+	 * Images that have been popped off the stack are not reused.
 	 */
 	public void clear() {
+		for (int i = 0; i <= currImage; i++) {
+			release(pixels[i]);
+		}
 		Arrays.fill(pixels, null);
 		currImage = -1;
 	}
@@ -232,21 +736,56 @@ public class Cartoonify {
 	 * @throws IOException if the image cannot be read or is the wrong size.
 	 */
 	public void loadPhoto(String filename) throws IOException {
-		BufferedImage image = ImageIO.read(new File(filename));
-		if (image == null) {
-			throw new RuntimeException("Invalid image file: " + filename);
-		}
+		pushPhoto(readPhoto(filename));
+	}
+
+	/**
+	 * Decodes a photo, recording the time taken as the "loadPhoto" stage.
+	 * The stack of images is not changed.
+	 *
+	 * @param filename
+	 * @return the decoded photo.
+	 * @throws IOException if the image cannot be read.
+	 */
+	Photo readPhoto(String filename) throws IOException {
+		final PipelineEvents.LoadPhoto event = new PipelineEvents.LoadPhoto();
+		final Metrics.Span span = metrics.start("loadPhoto", event);
+		final Photo photo = Photo.read(filename);
+		event.describe(filename, photo.width(), photo.height(), edgeThreshold, numColours);
+		span.stop((long) photo.width() * photo.height());
+		return photo;
+	}
+
+	/**
+	 * Encodes and saves a photo, recording the time taken as the "savePhoto" stage.
+	 *
+	 * @param photo the photo to save, named with the output file name.
+	 * @throws IOException
+	 */
+	void writePhoto(Photo photo) throws IOException {
+		final Metrics.Span span = metrics.start("savePhoto",
+				new PipelineEvents.SavePhoto().describe(photo.name(), photo.width(), photo.height(), edgeThreshold, numColours));
+		photoWriters.write(photo);
+		span.stop((long) photo.width() * photo.height());
+	}
+
+	/**
+	 * Pushes a photo that has already been decoded onto the stack of images.
+	 *
+	 * As for <code>loadPhoto</code>, this sets the width and height if the stack is empty,
+	 * otherwise it checks that the photo is the same size as the current images.
+	 *
+	 * @param photo a decoded photo.  Its pixels are not copied.
+	 * @throws IOException if the photo is the wrong size.
+	 */
+	public void pushPhoto(Photo photo) throws IOException {
 		if (numImages() == 0) {
-			width = image.getWidth();
-			height = image.getHeight();
-		} else if (width != image.getWidth() || height != image.getHeight()) {
-			throw new IOException("Incorrect image size: " + filename);
-		}
-		int[] newPixels = image.getRGB(0, 0, width, height, null, 0, width);
-		for (int i = 0; i < newPixels.length; i++) {
-			newPixels[i] &= 0x00FFFFFF; // remove any alpha channel, since we will use RGB only
+			width = photo.width();
+			height = photo.height();
+		} else if (width != photo.width() || height != photo.height()) {
+			throw new IOException("Incorrect image size: " + photo.name());
 		}
-		pushImage(newPixels);
+		pushImage(photo.pixels());
 	}
 
 	/**
@@ -258,13 +797,7 @@ public class Cartoonify {
 	 * @throws IOException
 	 */
 	public void savePhoto(String newName) throws IOException {
-		BufferedImage image = new BufferedImage(width, height,
-				BufferedImage.TYPE_INT_RGB);
-		image.setRGB(0, 0, width, height, currentImage(), 0, width);
-		final int dot = newName.lastIndexOf('.');
-		final String extn = newName.substring(dot + 1);
-		final File outFile = new File(newName);
-		ImageIO.write(image, extn, outFile);
+		writePhoto(new Photo(newName, width, height, currentImage()));
 	}
 
 	/**
@@ -287,17 +820,12 @@ public class Cartoonify {
 	 * Adds a new image that is a grayscale version of the current image.
 	 */
 	public void grayscale() {
+		final Metrics.Span span = startStage("grayscale");
 		int[] oldPixels = currentImage();
-		int[] newPixels = new int[width * height];
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				int rgb = oldPixels[y * width + x];
-				int average = (red(rgb) + green(rgb) + blue(rgb)) / 3;
-				int newRGB = createPixel(average, average, average);
-				newPixels[y * width + x] = newRGB;
-			}
-		}
+		int[] newPixels = newImage();
+		bands.forEach(height, (yStart, yEnd) -> pixelStages.grayscale(oldPixels, newPixels, yStart * width, yEnd * width));
 		pushImage(newPixels);
+		span.stop((long) width * height);
 	}
 
 	public static final int[] GAUSSIAN_FILTER = {
@@ -308,30 +836,43 @@ public class Cartoonify {
 		2,  4,  5,  4,  2  // sum=17
 	};
 	public static final double GAUSSIAN_SUM = 159.0;
+
+	/** The Gaussian filter, prepared once so that it can be applied to whole rows. */
+	public static final ConvolutionKernel GAUSSIAN_KERNEL = new ConvolutionKernel(GAUSSIAN_FILTER, (int) GAUSSIAN_SUM);
 	
 	/**
 	 * Adds one new image that is a blurred version of the current image.
 	 */
 	public void gaussianBlur() {
-		long startBlur = System.currentTimeMillis();
-		int[] newPixels = new int[width * height];
+		final Metrics.Span span = startStage("gaussianBlur");
+		int[] oldPixels = currentImage();
+		int[] newPixels = newImage();
+		bands.forEach(height, (yStart, yEnd) -> blurRows(oldPixels, newPixels, yStart, yEnd));
+		pushImage(newPixels);
+		stageDone(span, "gaussian blurring");
+	}
+
+	/**
+	 * Blurs rows <code>yStart .. yEnd-1</code> of one image into another.
+	 */
+	private void blurRows(int[] oldPixels, int[] newPixels, int yStart, int yEnd) {
+		// these row buffers are reused for every row, so that we do not allocate per pixel.
+		int[] rowStarts = new int[GAUSSIAN_KERNEL.size()];
+		int[] red = new int[width];
+		int[] green = new int[width];
+		int[] blue = new int[width];
 		
-		for (int y = 0; y < height; y++) {
+		for (int y = yStart; y < yEnd; y++) {
+			GAUSSIAN_KERNEL.rowStarts(y, width, height, rowStarts);
+			GAUSSIAN_KERNEL.applyRow(oldPixels, rowStarts, width, red, green, blue);
+			final int rowPos = y * width;
 			for (int x = 0; x < width; x++) {
-				int pos = y * width + x;
-				// blurPixel array contains R, G, B  values of the pixels
-				int[] blurPixel = convolution(x, y, GAUSSIAN_FILTER);
-				int blurR = clamp(blurPixel[0] / GAUSSIAN_SUM);
-				int blurG = clamp(blurPixel[1] / GAUSSIAN_SUM);
-				int blurB = clamp(blurPixel[2] / GAUSSIAN_SUM);				
-				newPixels[pos] = createPixel(blurR, blurG, blurB);
+				int blurR = GAUSSIAN_KERNEL.normalise(red[x]);
+				int blurG = GAUSSIAN_KERNEL.normalise(green[x]);
+				int blurB = GAUSSIAN_KERNEL.normalise(blue[x]);
+				newPixels[rowPos + x] = createPixel(blurR, blurG, blurB);
 			}	
 		}
-		pushImage(newPixels);
-		long endBlur = System.currentTimeMillis();
-		if(debug){
-		  System.out.println("  gaussian blurring took " + (endBlur - startBlur) / 1e3 + " secs.");
-		}
 	}
 
 	public static final int[] SOBEL_VERTICAL_FILTER = {
@@ -346,6 +887,12 @@ public class Cartoonify {
 		-1, -2, -1
 	};
 
+	/** The vertical Sobel filter, prepared once.  Its sums are used without normalising. */
+	public static final ConvolutionKernel SOBEL_VERTICAL_KERNEL = new ConvolutionKernel(SOBEL_VERTICAL_FILTER, 1);
+
+	/** The horizontal Sobel filter, prepared once.  Its sums are used without normalising. */
+	public static final ConvolutionKernel SOBEL_HORIZONTAL_KERNEL = new ConvolutionKernel(SOBEL_HORIZONTAL_FILTER, 1);
+
 	/**
 	 * Detects edges in the current image and adds an image where black pixels
 	 * mark the edges and the other pixels are all white.
@@ -355,38 +902,74 @@ public class Cartoonify {
 	 * while large values (e.g. 1000) generate few edges.
 	 */
 	public void sobelEdgeDetect() {
-		long startEdges = System.currentTimeMillis();
-		int[] newPixels = new int[width * height];
-		
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				int pos = y * width + x;
-				// verPixel and horPixels are arrays containing R, G, B values of the pixel
-				int[] verPixel = convolution(x, y, SOBEL_VERTICAL_FILTER);
-				int redVertical = verPixel[0];
-				int greenVertical = verPixel[1];
-				int blueVertical = verPixel[2];			
-				int[] horPixel = convolution(x, y, SOBEL_HORIZONTAL_FILTER);
-				int redHorizontal = horPixel[0];
-				int greenHorizontal = horPixel[1];
-				int blueHorizontal = horPixel[2];
-				
-				int verticalGradient = Math.abs(redVertical) + Math.abs(greenVertical) + Math.abs(blueVertical);
-				int horizontalGradient = Math.abs(redHorizontal) + Math.abs(greenHorizontal) + Math.abs(blueHorizontal);
-				// we could take use sqrt(vertGrad^2 + horizGrad^2), but simple addition catches most edges.
-				int totalGradient = verticalGradient + horizontalGradient;
-				if (totalGradient >= edgeThreshold) {
-					newPixels[pos] = black; // we colour the edges black
-				} else {
-					newPixels[pos] = white;
-			}
-		}
+		final Metrics.Span span = startStage("sobelEdgeDetect");
+		int[] oldPixels = currentImage();
+		int[] newPixels = newImage();
+		bands.forEach(height, (yStart, yEnd) -> edgeRows(oldPixels, newPixels, yStart, yEnd));
+		pushImage(newPixels);
+		stageDone(span, "sobel edge detect");
+	}
+
+	/**
+	 * Detects edges in rows <code>yStart .. yEnd-1</code> of one image, and writes
+	 * black or white pixels into those rows of another image.
+	 */
+	private void edgeRows(int[] oldPixels, int[] newPixels, int yStart, int yEnd) {
+		for (int y = yStart; y < yEnd; y++) {
+			// we colour the edges black
+			SobelOperator.edgeRow(oldPixels, y, width, height, edgeThreshold, black, white, newPixels, y * width);
 		}
+	}
+
+	/**
+	 * Calculates the Sobel gradient magnitude of every pixel in the current image,
+	 * without deciding which pixels are edges.  A pixel is an edge if its
+	 * magnitude is at least the edge threshold, so one magnitude map can be
+	 * compared against many different thresholds.
+	 *
+	 * @return width * height gradient magnitudes.  The stack of images is not changed.
+	 */
+	public int[] gradientMagnitudes() {
+		final Metrics.Span span = startStage("gradientMagnitudes");
+		final int[] oldPixels = currentImage();
+		final int[] magnitudes = newImage();
+		bands.forEach(height, (yStart, yEnd) -> {
+			for (int y = yStart; y < yEnd; y++) {
+				SobelOperator.magnitudeRow(oldPixels, y, width, height, magnitudes, y * width);
+			}
+		});
+		span.stop((long) width * height);
+		return magnitudes;
+	}
+
+	/**
+	 * Detects edges in the current image, like <code>sobelEdgeDetect</code>, but returns
+	 * them as one bit per pixel rather than pushing a black and white image.
+	 *
+	 * @return the edges of the current image.  The stack of images is not changed.
+	 */
+	public EdgeMask sobelEdgeMask() {
+		final Metrics.Span span = startStage("sobelEdgeDetect");
+		final int[] oldPixels = currentImage();
+		final EdgeMask mask = new EdgeMask(width, height);
+		bands.forEach(height, (yStart, yEnd) -> {
+			for (int y = yStart; y < yEnd; y++) {
+				SobelOperator.edgeRow(oldPixels, y, width, height, edgeThreshold, mask);
+			}
+		});
+		stageDone(span, "sobel edge detect");
+		return mask;
+	}
+
+	/**
+	 * Adds an edge mask to the stack as a black and white image, eg. so that it can be saved.
+	 *
+	 * @param mask edges of the same size as the current images.
+	 */
+	public void pushEdges(EdgeMask mask) {
+		int[] newPixels = newImage();
+		bands.forEach(height, (yStart, yEnd) -> mask.toPixels(black, white, newPixels, yStart, yEnd));
 		pushImage(newPixels);
-		long endEdges = System.currentTimeMillis();
-         if(debug){
-   			System.out.println("  sobel edge detect took " + (endEdges - startEdges) / 1e3 + " secs.");
-         }
 	}
 
 	/**
@@ -396,24 +979,16 @@ public class Cartoonify {
 	 * colour values in EACH colour channel after this method finishes.
 	 */
 	public void reduceColours() {	
-		long startQuantize = System.currentTimeMillis(); 		
+		final Metrics.Span span = startStage("reduceColours");
 		int[] oldPixels = currentImage();
-		int[] newPixels = new int[width * height];
+		int[] newPixels = newImage();
+		final ColourQuantizer colours = quantizer();
 		
 		// Handle the image pixels using 1D array
-		for (int pos = 0; pos < newPixels.length; pos++) {
-			int rgb = oldPixels[pos];
-			int newRed = quantizeColour(red(rgb), numColours);
-			int newGreen = quantizeColour(green(rgb), numColours);
-			int newBlue = quantizeColour(blue(rgb), numColours);
-			int newRGB = createPixel(newRed, newGreen, newBlue);
-			newPixels[pos] = newRGB;
-		}		
+		bands.forEach(height, (yStart, yEnd) ->
+			pixelStages.reduceColours(oldPixels, newPixels, yStart * width, yEnd * width, colours));
 		pushImage(newPixels);
-		long endQuantize = System.currentTimeMillis();
-		if(debug){
-			System.out.println("  colour reduction took  " + (endQuantize - startQuantize) / 1e3 + " secs.");
-		}
+		stageDone(span, "colour reduction");
 	}
 
 	/**
@@ -436,12 +1011,7 @@ public class Cartoonify {
 	 * @return a discrete colour value (0..COLOUR_MASK).
 	 */
 	int quantizeColour(int colourValue, int numPerChannel) {
-		float colour = colourValue / (COLOUR_MASK + 1.0f) * numPerChannel;
-		int discrete = Math.round(colour - 0.5f);
-		assert 0 <= discrete && discrete < numPerChannel;
-		int newColour = discrete * COLOUR_MASK / (numPerChannel - 1);
-		assert 0 <= newColour && newColour <= COLOUR_MASK;
-		return newColour;
+		return ColourQuantizer.quantizeColour(colourValue, numPerChannel);
 	}
 
 	/**
@@ -457,26 +1027,34 @@ public class Cartoonify {
 	 * @param otherImage the number/position of the underneath image. 
 	 */
 	public void mergeMask(int maskImage, int maskColour, int otherImage) {
-		long startMasking = System.currentTimeMillis();
-		cloneImage(maskImage);
-		int[] maskPixels = popImage();
-		cloneImage(otherImage);		
-		int[] photoPixels = popImage();
-		int[] newPixels = new int[width * height];
+		final Metrics.Span span = startStage("mergeMask");
+		final int[] maskPixels = image(maskImage);
+		final int[] photoPixels = image(otherImage);
+		int[] newPixels = newImage();
 		
 		// Handle image pixels using 1D array
-		for (int pos = 0; pos <newPixels.length; pos++) {
-			if (maskPixels[pos] == maskColour) {
-				newPixels[pos] = photoPixels[pos];
-			} else {
-				newPixels[pos] = maskPixels[pos];
-			}
-		}
-		pushImage(newPixels);	
-		long endMasking = System.currentTimeMillis();
-		if(debug){
-		  System.out.println("  masking edges took     " + (endMasking - startMasking) / 1e3 + " secs.");
-		}
+		bands.forEach(height, (yStart, yEnd) ->
+			pixelStages.mergeMask(maskPixels, maskColour, photoPixels, newPixels, yStart * width, yEnd * width));
+		pushImage(newPixels);
+		stageDone(span, "masking edges");
+	}
+
+	/**
+	 * Merges an edge mask on top of another image, and pushes the new merged image.
+	 * This gives the same image as merging the black and white edge image with
+	 * <code>mergeMask(edgeImage, white, otherImage)</code>, but reads 64 mask pixels at a time.
+	 *
+	 * @param edges edges of the same size as the current images.
+	 * @param edgeColour the colour of the edges (e.g. black).
+	 * @param otherImage the number/position of the underneath image.
+	 */
+	public void mergeMask(EdgeMask edges, int edgeColour, int otherImage) {
+		final Metrics.Span span = startStage("mergeMask");
+		final int[] photoPixels = image(otherImage);
+		int[] newPixels = newImage();
+		bands.forEach(height, (yStart, yEnd) -> edges.merge(edgeColour, photoPixels, newPixels, yStart, yEnd));
+		pushImage(newPixels);
+		stageDone(span, "masking edges");
 	}
 
 	/**
@@ -537,14 +1115,7 @@ public class Cartoonify {
 	 * @return the new index, which is in the range <code>0 .. size-1</code>.
 	 */
 	public int wrap(int pos, int size) {
-		if (pos < 0) {
-			pos = -1 - pos;
-		} else if (pos >= size) {
-			pos = (size - 1) - (pos - size);
-		}
-		assert 0 <= pos;
-		assert pos < size;
-		return pos;
+		return ConvolutionKernel.reflect(pos, size);
 	}
 
 	/**
@@ -637,6 +1208,9 @@ public class Cartoonify {
 	 * Saves the resulting photo in a new file of the same type.
 	 * E.g. if the input file is "foo.jpg" the output file will be "foo_cartoon.jpg".
 	 * 
+	 * If a result cache is set and already holds the cartoon of this photo,
+	 * the cached cartoon is copied instead, and the processing time is zero.
+	 *
 	 * @param name path to the photo, including a known extension (e.g. ".jpg").
 	 * @return the number of milliseconds to process this photo (excluding loading/saving).
 	 * @throws IOException
@@ -648,279 +1222,483 @@ public class Cartoonify {
 			System.err.println("Skipping unknown kind of file: " + name);
 			return 0L;
 		}
-		final String baseName = name.substring(0, dot);
-		final String extn = name.substring(dot).toLowerCase();
-		loadPhoto(name);
-  		final String newName = baseName + "_cartoon" + extn;	
+		final String cacheKey = resultCacheKey(name);
+		if (cacheKey != null && fetchCachedResult(name, cacheKey)) {
+			return 0L;
+		}
+		if (isSweep()) {
+			return processPhotoSweep(name);
+		}
+		final long time;
+		if (isStreaming()) {
+			time = processPhotoStreaming(name);
+		} else {
+			loadPhoto(name);
+			time = processCurrentPhoto(name);
+			for (Photo output : takeOutputs(name)) {
+				writePhoto(output);
+				pixelPool.release(output.pixels());
+			}
+			clear();
+		}
+		if (cacheKey != null) {
+			resultCache.store(cacheKey, outputName(name, "_cartoon"));
+		}
+		return time;
+	}
+
+	/**
+	 * Makes and saves a cartoon of one photo for every combination of the sweep settings.
+	 *
+	 * @param name path to the photo, including a known extension (e.g. ".jpg").
+	 * @return the number of milliseconds to process all the cartoons (excluding loading/saving).
+	 * @throws IOException
+	 */
+	protected long processPhotoSweep(String name) throws IOException {
+		final int[] thresholds = sweepEdgeThresholds != null ? sweepEdgeThresholds : new int[] {edgeThreshold};
+		final int[] colours = sweepNumColours != null ? sweepNumColours : new int[] {numColours};
+		photoName = name;
+		final long time = new ParameterSweep(this, thresholds, colours).process(name);
+		pixelsProcessed += (long) width * height;
+		return time;
+	}
+
+	/**
+	 * Copies the cached cartoon of a photo to its output file, if it is in the result cache.
+	 *
+	 * @param name path to the input photo.
+	 * @param cacheKey the result cache key of the photo.
+	 * @return true if the cartoon was in the cache.
+	 * @throws IOException if the output file cannot be written.
+	 */
+	boolean fetchCachedResult(String name, String cacheKey) throws IOException {
+		final String newName = outputName(name, "_cartoon");
+		if (!resultCache.fetch(cacheKey, newName)) {
+			return false;
+		}
+		System.out.println("Cached " + name + " -> " + newName);
+		return true;
+	}
+
+	/**
+	 * Applies all the desired transformations to the photo that has just been loaded.
+	 * The results are left on the stack of images, ready for <code>takeOutputs</code>.
+	 *
+	 * @param name path to the photo, including a known extension (e.g. ".jpg").
+	 * @return the number of milliseconds to process this photo (excluding loading/saving).
+	 */
+	protected long processCurrentPhoto(String name) {
+  		final String newName = outputName(name, "_cartoon");	
+		photoName = name;
+		final Metrics.Span span = startStage("processPhoto");
 		//Please do NOT change the start of time measurement
 		final long time0 = System.currentTimeMillis();
 		if(useGPU){
 		    processPhotoOpenCL();
 	        }  	
+		else if (fused) {
+		    processPhotoFused();
+		}
+		else if (planar) {
+		    processPhotoPlanar();
+		}
                 else{
          	    processPhotoOnCPU();       		      	
                 }
 		//Please do NOT change the end of time measurement
 		long time1 = System.currentTimeMillis();
+		span.stop((long) width * height);
+		pixelsProcessed += (long) width * height;
 		//Please do NOT remove or change this output message 
   		System.out.println("Done " + name + " -> " + newName + " in " + (time1 - time0) / 1e3 + " secs.");   	 
-		savePhoto(newName);			
+ 		return time1 - time0;
+	}
+
+	/**
+	 * Streams one input photo through the CPU pipeline in bands of rows, and saves the result.
+	 * The stack of images is not used.
+	 *
+	 * @param name path to the photo, including a known extension (e.g. ".jpg").
+	 * @return the number of milliseconds to load, process and save this photo.
+	 * @throws IOException
+	 */
+	protected long processPhotoStreaming(String name) throws IOException {
+		final String newName = outputName(name, "_cartoon");
+		StreamingCartoonify streaming = new StreamingCartoonify(this, streamingBandRows);
+		photoName = name;
+		final Metrics.Span span = startStage("streamPhoto");
+		final long time0 = System.currentTimeMillis();
+		streaming.process(name, newName);
+		long time1 = System.currentTimeMillis();
+		span.stop((long) streaming.width() * streaming.height());
+		pixelsProcessed += (long) streaming.width() * streaming.height();
+		System.out.println("Done " + name + " -> " + newName + " in " + (time1 - time0) / 1e3 + " secs.");
+		return time1 - time0;
+	}
+
+	/**
+	 * Pops the processed images off the stack, as photos that are ready to be saved.
+	 * The first one is the final cartoon, followed by the intermediate images if debugging.
+	 * Only the original photo is left on the stack.
+	 *
+	 * @param name path to the input photo, including a known extension (e.g. ".jpg").
+	 * @return the photos to save, named after the input photo.
+	 */
+	protected List<Photo> takeOutputs(String name) {
+		List<Photo> outputs = new ArrayList<>();
+		outputs.add(new Photo(outputName(name, "_cartoon"), width, height, popImage()));
 		if (debug) {
 			// At this stage the stack of images is (from bottom to top):
-			//  original, blurred, edges, original, quantized, final
-			popImage();
-			savePhoto(baseName + "_colours" + extn);
-			popImage();
-			popImage();
-			savePhoto(baseName + "_edges" + extn);
-			popImage();
-			savePhoto(baseName + "_blurred" + extn);
-			popImage();
+			//  original, blurred, edges, original, quantized
+			outputs.add(new Photo(intermediateName(name, "_colours"), width, height, popImage()));
+			dropImage();
+			outputs.add(new Photo(intermediateName(name, "_edges"), width, height, popImage()));
+			outputs.add(new Photo(intermediateName(name, "_blurred"), width, height, popImage()));
 			assert numImages() == 1;
 		}
-		clear();
- 		return time1 - time0;
+		return outputs;
+	}
+
+	/**
+	 * Works out the name of an output file, eg. "foo.JPG" becomes "foo_cartoon.jpg".
+	 *
+	 * @param name path to the input photo, including a known extension.
+	 * @param suffix what to add to the base name, eg. "_cartoon".
+	 * @return the output file name.
+	 */
+	static String outputName(String name, String suffix) {
+		final int dot = name.lastIndexOf(".");
+		return name.substring(0, dot) + suffix + name.substring(dot).toLowerCase();
+	}
+
+	/**
+	 * Works out the name of an intermediate image file, which is the same as
+	 * <code>outputName</code> unless intermediates are being saved as raw pixel files.
+	 *
+	 * @param name path to the input photo, including a known extension.
+	 * @param suffix what to add to the base name, eg. "_blurred".
+	 * @return the output file name.
+	 */
+	String intermediateName(String name, String suffix) {
+		if (!rawIntermediates) {
+			return outputName(name, suffix);
+		}
+		return name.substring(0, name.lastIndexOf(".")) + suffix + "." + RawPixels.EXTENSION;
 	}
 /**
  *  Initialize the source required to implementing on GPU
  */
 	protected void setupOpenCL() {
-		// Enable openCL exceptions, so that we can avoid duplicated error checking
-		CL.setExceptionsEnabled(true);
-	
-		final int platformIndex = 0; // Platform index
-		final long deviceType = CL.CL_DEVICE_TYPE_GPU; // Show GPU device type
-		final int deviceIndex = 0; // Device number
-		
-		// Obtain all platform ids on this machine.
-		cl_platform_id[] platforms = JOCLUtil.getAllPlatforms();
-		cl_platform_id platform = platforms[platformIndex];// Get platform id at 'platformIndex'
-		System.out.println("Selected CLPlatform: " + JOCLUtil.getPlatformInfoString(platform, CL.CL_PLATFORM_NAME));
-
-		// Get all devices on the selected 'platform'
-		cl_device_id[] devices = JOCLUtil.getAllDevices(platform, deviceType);
-		device = devices[deviceIndex]; // Get a single device id
-		System.out.println("Selected CLDevice: " + JOCLUtil.getDeviceInfoString(device, CL_DEVICE_NAME) + "\nDevice Version:" + JOCLUtil.getDeviceInfoString(device, CL.CL_DEVICE_VERSION));// Show device
-		
-		detectDeviceV2(platform);
-		
-		// Initialize the context properties
-		cl_context_properties contextProperties = new cl_context_properties();
-		contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
-		// Create a context for the selected device with contextProperties
-		context = clCreateContext(contextProperties, 1, new cl_device_id[] { device }, null, null, null);				
-	}	
+		openCL = OpenCLSession.open(OpenCLSession.DEFAULT_BINARY_CACHE);
+	}
 
 	/**
-	 * Detect all devices supported OpenCL 2.0
-	 * @param platform
+	 * Releases the OpenCL session, if this processor has used one.
+	 * It is set up again if another photo is processed with OpenCL.
 	 */
-	protected void detectDeviceV2(cl_platform_id platform) {
-		cl_device_id deviceV2 = null;  
-		
-        // Obtain the number of devices for the platform
-        int numDevicesArray[] = new int[1];
-        clGetDeviceIDs(platform, CL_DEVICE_TYPE_ALL, 0, null, numDevicesArray);
-        int numDevices = numDevicesArray[0];
-
-        // Obtain the all device IDs
-        cl_device_id allDevices[] = new cl_device_id[numDevices];
-        clGetDeviceIDs(platform, CL_DEVICE_TYPE_ALL, numDevices, allDevices, null);
-
-        // Find the first device that supports OpenCL 2.0
-       System.out.println("\n");
-        for (cl_device_id currentDevice : allDevices)
-        {
-            String deviceName = JOCLUtil.getString(currentDevice, CL_DEVICE_NAME);
-            float version = JOCLUtil.getOpenCLVersion(currentDevice);
-            if (version >= 2.0)
-            {
-                System.out.println("Using device "+ deviceName+", version "+version);
-                deviceV2 = currentDevice;
-                break;
-            }
-            else
-            {
-                System.out.println("Skipping device "+ deviceName+", version "+version);
-            }
-        }
-        if (deviceV2 == null)
-        {
-            System.out.println("No OpenCL 2.0 capable device found \n");
-        }
+	public void releaseOpenCL() {
+		if (openCL != null) {
+			openCL.close();
+			openCL = null;
+		}
 	}
-	
+
 	/**
-	 *  Implement this method to process one input photo on GPU or GPU and CPU 
+	 * Process one input photo with OpenCL.
+	 *
+	 * The OpenCL session is set up by the first photo and reused for the rest.
+	 * The blurred, edge and colour images are only read back from the device when debugging,
+	 * so that the stack of images ends up the same as for <code>processPhotoOnCPU</code>.
+	 * Otherwise only the final image is pushed on top of the original photo.
 	 */
-	protected void processPhotoOpenCL() {		
-		
-		final String srcCode = new String(JOCLUtil.readResourceToString("/com/celanim/cartoonify/kernel.cl"));
-		if (context == null) {
+	protected void processPhotoOpenCL() {
+		if (openCL == null) {
 			setupOpenCL();
 		}
-		
-		// Create input and outputs arrays for original image and images in each stage
-		int[] curPixels = currentImage();
-		int[] blurPixels = new int[width * height];
-		int[] edgePixels = new int[width * height];
-		int[] colorPixels = new int[width * height];
-		int[] mergePixels = new int[width * height];
-		
-		Pointer ptrPixels = Pointer.to(curPixels);
-		Pointer ptrBlurPixels = Pointer.to(blurPixels);
-		Pointer ptrEdgePixels = Pointer.to(edgePixels);
-		Pointer ptrColorPixels = Pointer.to(colorPixels);
-		Pointer ptrMergePixels = Pointer.to(mergePixels);
-		
-		// Allocate OpenCL-hosted memory for inputs and outputs
-		cl_mem memIn = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, Sizeof.cl_int * (width * height), ptrPixels, null);
-		cl_mem memBlurOut = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int * (width * height), null, null);		
-		cl_mem memEdgeOut = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int * (width * height), null, null);
-		cl_mem memColorOut = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int * (width * height), null, null);
-		cl_mem memMergeOut = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int * (width * height), null, null);
-		
-		
-		// Load the source code 'srcCode' to the program object
-		cl_program program = clCreateProgramWithSource(context, 1, new String[] { srcCode }, null, null);		
-		// Build the program
-		clBuildProgram(program, 0, null, null, null, null);
-		
-		// Create 4 kernels for different tasks and set arguments
-		cl_kernel blurKernel = clCreateKernel(program, "gaussianBlur", null);
-		clSetKernelArg(blurKernel, 0, Sizeof.cl_int, Pointer.to(new int[] { width }));
-		clSetKernelArg(blurKernel, 1, Sizeof.cl_int, Pointer.to(new int[] { height }));
-		clSetKernelArg(blurKernel, 2, Sizeof.cl_mem, Pointer.to(memIn));
-		clSetKernelArg(blurKernel, 3, Sizeof.cl_mem, Pointer.to(memBlurOut));
-		
-		cl_kernel edgeKernel = clCreateKernel(program, "sobelEdgeDetect", null);
-		clSetKernelArg(edgeKernel, 0, Sizeof.cl_int, Pointer.to(new int[] { width }));
-		clSetKernelArg(edgeKernel, 1, Sizeof.cl_int, Pointer.to(new int[] { height }));
-		clSetKernelArg(edgeKernel, 2, Sizeof.cl_int, Pointer.to(new int[] { edgeThreshold }));
-		clSetKernelArg(edgeKernel, 3, Sizeof.cl_mem, Pointer.to(memBlurOut));
-		clSetKernelArg(edgeKernel, 4, Sizeof.cl_mem, Pointer.to(memEdgeOut));
-		
-		cl_kernel colorKernel = clCreateKernel(program, "reduceColours", null);
-		clSetKernelArg(colorKernel, 0, Sizeof.cl_mem, Pointer.to(memIn));
-		clSetKernelArg(colorKernel, 1, Sizeof.cl_mem, Pointer.to(memColorOut));
-		
-		cl_kernel mergeKernel = clCreateKernel(program, "mergeMask", null);	
-		clSetKernelArg(mergeKernel, 0, Sizeof.cl_mem, Pointer.to(memEdgeOut));
-		clSetKernelArg(mergeKernel, 1, Sizeof.cl_mem, Pointer.to(memColorOut));
-		clSetKernelArg(mergeKernel, 2, Sizeof.cl_mem, Pointer.to(memMergeOut));
-		
-		// Set the work-item dimensions
-		long global_work_size[] = new long[] { width * height}; 
-		long local_work_size[] = new long[] { WORK_GROUP_SIZE };
-		
-		// create three queues on the same context of the GPU device.
-		@SuppressWarnings("deprecation")
-		cl_command_queue queue = clCreateCommandQueue(context, device, 0 , null); 
-		@SuppressWarnings("deprecation")
-		cl_command_queue queue2 = clCreateCommandQueue(context, device, 0, null); 
-		@SuppressWarnings("deprecation")
-		cl_command_queue queue3 = clCreateCommandQueue(context, device, 0, null); 
-			
-		// Start to execute the kernels with global and local workgroup size		
-		cl_event event = new cl_event();		
-		clEnqueueNDRangeKernel(queue, blurKernel, 1, null, global_work_size, local_work_size, 0, null, event);
-		clEnqueueNDRangeKernel(queue, edgeKernel, 1, null, global_work_size, local_work_size, 0, null, event);		
-		
-		cl_event colorEvent = new cl_event();		
-		clEnqueueNDRangeKernel(queue2, colorKernel, 1, null, global_work_size, local_work_size, 0, null, colorEvent);
-		
-		// Set the event order
-		CL.clWaitForEvents(2, new cl_event[] {event, colorEvent});
-		
-		cl_event mergeEvent = new cl_event();		
-		clEnqueueNDRangeKernel(queue3, mergeKernel, 1, null, global_work_size, local_work_size, 0, null, mergeEvent);
-		
-		// Set the event order
-		CL.clWaitForEvents(1, new cl_event[] { mergeEvent});
-
-		// Read all the results back to array 'output'	
-		clEnqueueReadBuffer(queue, memBlurOut, CL_TRUE, 0, Sizeof.cl_int * (width * height), ptrBlurPixels, 0, null, null);
-		clEnqueueReadBuffer(queue, memEdgeOut, CL_TRUE, 0, Sizeof.cl_int * (width * height), ptrEdgePixels, 0, null, null);
-		clEnqueueReadBuffer(queue2, memColorOut, CL_TRUE, 0, Sizeof.cl_int * (width * height), ptrColorPixels, 0, null, null);
-		clEnqueueReadBuffer(queue3, memMergeOut, CL_TRUE, 0, Sizeof.cl_int * (width * height), ptrMergePixels, 0, null, null);
-		
-		// Release memory objects, kernel, program, queue and context
-		clReleaseMemObject(memIn);
-		clReleaseMemObject(memBlurOut);
-		clReleaseMemObject(memEdgeOut);
-		clReleaseMemObject(memColorOut);
-		clReleaseMemObject(memMergeOut);
-		clReleaseKernel(blurKernel);
-		clReleaseKernel(edgeKernel);
-		clReleaseKernel(colorKernel);
-		clReleaseKernel(mergeKernel);
-		clReleaseProgram(program);
-		clReleaseCommandQueue(queue);
-		clReleaseCommandQueue(queue2);
-		clReleaseCommandQueue(queue3);
-		clReleaseContext(context);	
-		
-		pushImage(blurPixels);
-		pushImage(edgePixels);
-     	// now convert the original image into a few discrete colours
-		cloneImage(0);
-		pushImage(colorPixels);
-		pushImage(mergePixels); 
+		final int[] curPixels = currentImage();
+		final int[] mergePixels = newImage();
+
+		final PipelineEvents.OpenCL enqueueEvent = openCLEvent("enqueue");
+		enqueueEvent.begin();
+		openCL.run(curPixels, width, height, edgeThreshold);
+		enqueueEvent.commit();
+
+		final PipelineEvents.OpenCL readbackEvent = openCLEvent("readback");
+		readbackEvent.begin();
+		if (debug) {
+			int[] blurPixels = newImage();
+			int[] edgePixels = newImage();
+			int[] colorPixels = newImage();
+			openCL.readResults(blurPixels, edgePixels, colorPixels, mergePixels);
+			readbackEvent.commit();
+			pushImage(blurPixels);
+			pushImage(edgePixels);
+			// now convert the original image into a few discrete colours
+			cloneImage(0);
+			pushImage(colorPixels);
+		} else {
+			openCL.readResults(null, null, null, mergePixels);
+			readbackEvent.commit();
+		}
+		pushImage(mergePixels);
 	}
-	
+
+	/**
+	 * @param operation "enqueue" or "readback".
+	 * @return a flight recorder event for that OpenCL step of the current photo.
+	 */
+	private PipelineEvents.OpenCL openCLEvent(String operation) {
+		final PipelineEvents.OpenCL event = new PipelineEvents.OpenCL(operation);
+		event.describe(photoName, width, height, edgeThreshold, numColours);
+		return event;
+	}
+
 	/**
 	 * Process one input photo step-by-step on CPU
 	 */
 	protected void processPhotoOnCPU() {
-		// no need to change the implementation of this method
 		// This sequence of processing commands is done to every photo.
 		gaussianBlur();
-		sobelEdgeDetect();
-		int edgeMask = numImages() - 1;
+		EdgeMask edges = sobelEdgeMask();
+		if (debug) {
+			pushEdges(edges); // only converted to an image so that it can be saved.
+		}
      	// now convert the original image into a few discrete colours
 		cloneImage(0);
 		reduceColours();        		
-		mergeMask(edgeMask, white, -1); 		
+		mergeMask(edges, black, -1); 		
+	}
+
+	/**
+	 * Process one input photo on CPU, doing all the stages in a single pass.
+	 *
+	 * The blurred, edge and colour images are only created when debugging,
+	 * so that the stack of images ends up the same as for <code>processPhotoOnCPU</code>.
+	 * Otherwise only the final image is pushed on top of the original photo.
+	 */
+	protected void processPhotoFused() {
+		final Metrics.Span span = startStage("fusedPipeline");
+		FusedPipeline pipeline = new FusedPipeline(this);
+		int[] newPixels = newImage();
+		if (debug) {
+			int[] blurred = newImage();
+			int[] edges = newImage();
+			int[] colours = newImage();
+			pipeline.run(currentImage(), newPixels, blurred, edges, colours, bands);
+			pushImage(blurred);
+			pushImage(edges);
+			cloneImage(0);
+			pushImage(colours);
+		} else {
+			pipeline.run(currentImage(), newPixels, null, null, null, bands);
+		}
+		pushImage(newPixels);
+		stageDone(span, "fused pipeline");
 	}
 	
-	
+	/**
+	 * Process one input photo on CPU, blurring and detecting edges on separate colour planes.
+	 *
+	 * The photo is blurred straight into planes, which are kept for the next photo of
+	 * the same size.  The blurred planes are only packed back into an image when debugging,
+	 * and then the stack of images ends up the same as for <code>processPhotoOnCPU</code>.
+	 */
+	protected void processPhotoPlanar() {
+		final Metrics.Span span = startStage("planarBlurAndEdges");
+		final int[] photo = currentImage();
+		if (blurredPlanes == null || blurredPlanes.width() != width || blurredPlanes.height() != height) {
+			blurredPlanes = null; // so the old planes can be collected before the new ones are allocated.
+			blurredPlanes = new PlanarImage(width, height);
+		}
+		final PlanarImage blurred = blurredPlanes;
+		final EdgeMask edges = new EdgeMask(width, height);
+		bands.forEach(height, (yStart, yEnd) -> blurred.convolve(GAUSSIAN_KERNEL, photo, yStart, yEnd));
+		bands.forEach(height, (yStart, yEnd) -> {
+			final int[] magnitudes = new int[width];
+			for (int y = yStart; y < yEnd; y++) {
+				SobelOperator.edgeRow(blurred, y, edgeThreshold, magnitudes, edges);
+			}
+		});
+		stageDone(span, "planar blur and edges");
+		if (debug) {
+			int[] blurredPixels = newImage();
+			bands.forEach(height, (yStart, yEnd) -> blurred.pack(blurredPixels, yStart, yEnd));
+			pushImage(blurredPixels);
+			pushEdges(edges);
+		}
+		cloneImage(0);
+		reduceColours();
+		mergeMask(edges, black, -1);
+	}
+
+	/**
+	 * @param list comma-separated numbers, eg. "50,128,256".
+	 * @return the numbers.
+	 */
+	static int[] parseList(String list) {
+		final String[] items = list.split(",");
+		int[] numbers = new int[items.length];
+		for (int i = 0; i < items.length; i++) {
+			numbers[i] = Integer.parseInt(items[i].trim());
+		}
+		return numbers;
+	}
+
 	/**
 	 * Uses the given command line arguments to set Cartoonify options.
 	 * 
 	 * @param args command line arguments
 	 * @param firstArg the first argument to start at.
 	 * @return the position of the first non-flag argument.  That is, first file.
+	 * @throws IOException if the result cache directory cannot be opened.
 	 */
-	protected int setFlags(String[] args, int firstArg) {
+	protected int setFlags(String[] args, int firstArg) throws IOException {
 		int currArg = firstArg;
 		if ("-g".equals(args[currArg])) {
 			useGPU = true;
 			currArg += 1;
 		}
+		if ("-p".equals(args[currArg])) {
+			setParallelism(Integer.parseInt(args[currArg + 1]));
+			System.out.println("Using " + getParallelism() + " CPU threads.");
+			currArg += 2;
+		}
+		if ("-j".equals(args[currArg])) {
+			setBatchWorkers(Integer.parseInt(args[currArg + 1]));
+			System.out.println("Processing " + getBatchWorkers() + " photos at a time.");
+			currArg += 2;
+		}
+		if ("-o".equals(args[currArg])) {
+			setPipelineDepth(Integer.parseInt(args[currArg + 1]));
+			System.out.println("Overlapping loading and saving, with up to " + getPipelineDepth() + " photos queued.");
+			currArg += 2;
+		}
+		if ("-m".equals(args[currArg])) {
+			setPixelPool(new PixelBufferPool(Long.parseLong(args[currArg + 1]) * 1024 * 1024));
+			System.out.println("Pooling up to " + args[currArg + 1] + " MB of pixel buffers.");
+			currArg += 2;
+		}
+		if ("-q".equals(args[currArg])) {
+			setJpegQuality(Float.parseFloat(args[currArg + 1]));
+			System.out.println("Using JPEG quality " + getPhotoWriters().jpegQuality());
+			currArg += 2;
+		}
+		if ("-z".equals(args[currArg])) {
+			setPngCompression(Integer.parseInt(args[currArg + 1]));
+			System.out.println("Using PNG compression level " + getPhotoWriters().pngCompression());
+			currArg += 2;
+		}
+		if ("-w".equals(args[currArg])) {
+			setParallelPng(true);
+			currArg += 1;
+		}
+		if ("-k".equals(args[currArg])) {
+			final long maxBytes = Long.parseLong(args[currArg + 2]) * 1024 * 1024;
+			setResultCache(new ResultCache(Paths.get(args[currArg + 1]), maxBytes));
+			System.out.println("Caching up to " + args[currArg + 2] + " MB of results in " + args[currArg + 1]);
+			currArg += 3;
+		}
+		if ("-t".equals(args[currArg])) {
+			setMetricsReport(Paths.get(args[currArg + 1]));
+			System.out.println("Saving stage metrics to " + getMetricsReport());
+			currArg += 2;
+		}
+		if ("-v".equals(args[currArg])) {
+			setVectorized(true);
+			System.out.println("Using " + getPixelStages() + " per-pixel stages.");
+			currArg += 1;
+		}
+		if ("-f".equals(args[currArg])) {
+			setFused(true);
+			currArg += 1;
+		}
+		if ("-l".equals(args[currArg])) {
+			setPlanar(true);
+			currArg += 1;
+		}
+		if ("-s".equals(args[currArg])) {
+			setStreamingBandRows(StreamingCartoonify.DEFAULT_BAND_ROWS);
+			currArg += 1;
+		}
+		if ("-r".equals(args[currArg])) {
+			setRawIntermediates(true);
+			currArg += 1;
+		}
 		if ("-d".equals(args[currArg])) {
 			setDebug(true);
 			currArg += 1;
 		}
+		int[] edgeThresholds = null;
+		int[] colours = null;
 		if ("-e".equals(args[currArg])) {
-			setEdgeThreshold(Integer.parseInt(args[currArg + 1]));
-			System.out.println("Using edge threshold " + getEdgeThreshold());
+			edgeThresholds = parseList(args[currArg + 1]);
+			if (edgeThresholds.length == 1) {
+				setEdgeThreshold(edgeThresholds[0]);
+				edgeThresholds = null;
+				System.out.println("Using edge threshold " + getEdgeThreshold());
+			} else {
+				System.out.println("Sweeping edge thresholds " + args[currArg + 1]);
+			}
 			currArg += 2;
 		}
 		if ("-c".equals(args[currArg])) {
-			setNumColours(Integer.parseInt(args[currArg + 1]));
-			System.out.println("Using " + getNumColours() + " discrete colours per channel.");
+			colours = parseList(args[currArg + 1]);
+			if (colours.length == 1) {
+				setNumColours(colours[0]);
+				colours = null;
+				System.out.println("Using " + getNumColours() + " discrete colours per channel.");
+			} else {
+				System.out.println("Sweeping " + args[currArg + 1] + " discrete colours per channel.");
+			}
 			currArg += 2;
 		}
+		if (edgeThresholds != null || colours != null) {
+			setSweep(edgeThresholds, colours);
+			final String unused = (isUseGPU() ? " -g" : "") + (isFused() ? " -f" : "")
+					+ (isPlanar() ? " -l" : "") + (isStreaming() ? " -s" : "");
+			if (!unused.isEmpty()) {
+				throw new IllegalArgumentException("-e and -c lists always use the staged CPU stages, so they cannot be combined with" + unused);
+			}
+		}
+		if (isStreaming()) {
+			final String unused = (isUseGPU() ? " -g" : "") + (isFused() ? " -f" : "") + (isPlanar() ? " -l" : "");
+			if (!unused.isEmpty()) {
+				throw new IllegalArgumentException("-s always streams through the CPU stages, so it cannot be combined with" + unused);
+			}
+			if (isDebug()) {
+				System.err.println("-s saves no intermediate photos, so -d only prints the stage timings.");
+			}
+		}
 		return currArg;
 	}
 
 	/** Prints a help/usage message to standard output. */
 	public void help() {
-		System.out.println("Arguments: [-g] [-d] [-e EdgeThreshold] [-c NumColours] photo1.jpg photo2.jpg ...");
+		System.out.println("Arguments: [-g] [-p Threads] [-j Workers] [-o Depth] [-m PoolMB] [-q JpegQuality] [-z PngLevel] [-w] [-k CacheDir MaxMB] [-t MetricsFile] [-v] [-f] [-l] [-s] [-r] [-d] [-e EdgeThreshold] [-c NumColours] photo1.jpg photo2.jpg ...");
 		System.out.println("  -g use the GPU, to speed up photo processing.");
+		System.out.println("  -p Threads splits each stage over this many CPU threads (0 means all processors).");
+		System.out.println("  -j Workers processes this many photos at the same time.");
+		System.out.println("  -o Depth overlaps loading, processing and saving, with up to Depth photos queued.");
+		System.out.println("  -m PoolMB reuses up to this many MB of pixel buffers between photos (0 means no reuse).");
+		System.out.println("  -q JpegQuality is the quality of saved JPEG photos, from 0.0 to 1.0 (default 0.75).");
+		System.out.println("  -z PngLevel is the compression level of saved PNG photos, from 0 to 9 (default 4).");
+		System.out.println("  -w writes PNG photos with a parallel encoder, using all the processors.");
+		System.out.println("  -k CacheDir MaxMB reuses cartoons of unchanged photos, keeping up to MaxMB of them in CacheDir.");
+		System.out.println("  -t MetricsFile saves the time, pixels and allocations of each stage as JSON (or CSV for .csv).");
+		System.out.println("  -v uses the Vector API for per-pixel stages (needs --add-modules jdk.incubator.vector).");
+		System.out.println("  -f fuses the CPU stages into one pass, without full-size intermediate images.");
+		System.out.println("  -l blurs and detects edges on separate colour planes, rather than packed pixels.");
+		System.out.println("  -s streams each photo through in bands of rows, for photos too big for memory.");
+		System.out.println("     JPEG and non-interlaced PNG photos are decoded once, but other photos are decoded");
+		System.out.println("     again for every band, which is slow for tall photos.");
+		System.out.println("     It cannot be combined with -g, -f or -l, and with -d it saves no intermediate photos.");
+		System.out.println("  -r saves the intermediate photos as raw ." + RawPixels.EXTENSION + " pixel files, which are fast to reload.");
 		System.out.println("  -d means turn on debugging, which saves intermediate photos.");
 		System.out.println("  -e EdgeThreshold values can range from 0 (everything is an edge) up to about 1000 or more.");
 		System.out.println("  -c NumColours is the number of discrete values within each colour channel (2..256).");
+		System.out.println("  -e and -c also accept comma-separated lists (eg. -e 50,128,256 -c 2,3,4), which save a");
+		System.out.println("     cartoon for every combination, named like photo1_cartoon_e128_c3.jpg.");
+		System.out.println("     Lists use the staged CPU stages, so they cannot be combined with -g, -f, -l or -s.");
 	}
 
 	/**
@@ -937,14 +1715,22 @@ public class Cartoonify {
 			System.exit(1);
 		}
 		int arg = cartoon.setFlags(args, 0);
-		long time = 0;
-		int done = 0;
-		for (; arg < args.length; arg++) {
-			time += cartoon.processPhoto(args[arg]);
-			done++;
+		try {
+			cartoon.getMetrics().registerMBean();
+		} catch (JMException e) {
+			System.err.println("Cannot publish metrics through JMX: " + e);
 		}
+		BatchProcessor batch = new BatchProcessor(cartoon, cartoon.getBatchWorkers());
+		batch.setPipelineDepth(cartoon.getPipelineDepth());
+		batch.run(Arrays.asList(args).subList(arg, args.length));
+		long time = batch.getProcessingMillis();
+		int done = batch.getDone();
 		//Please do NOT remove or change this output message
 		System.out.format("Average processing time is %.3f for %d photos.", time / done / 1e3, done);
+		batch.printThroughput();
+		if (cartoon.getMetricsReport() != null) {
+			cartoon.getMetrics().writeReport(cartoon.getMetricsReport());
+		}
 	}
 	
 }
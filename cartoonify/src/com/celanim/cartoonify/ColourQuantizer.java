@@ -0,0 +1,89 @@
+package com.celanim.cartoonify;
+
+/**
+ * Reduces the number of colours in RGB pixels using precomputed lookup tables.
+ *
+ * The quantized value of a colour channel only depends on the channel value and the
+ * number of colours, so there is one 256-entry table per channel.  Each table entry is
+ * already shifted into its channel position, so quantizing a pixel is just three lookups
+ * and two ORs.  Quantizers are immutable, so one can be shared by many threads.
+ */
+public final class ColourQuantizer {
+
+	/** Number of values in each colour channel (R, G, B) after quantization. */
+	private final int numColours;
+
+	/** Quantized red values, already shifted into the red position. */
+	private final int[] redTable = new int[Cartoonify.COLOUR_MASK + 1];
+
+	/** Quantized green values, already shifted into the green position. */
+	private final int[] greenTable = new int[Cartoonify.COLOUR_MASK + 1];
+
+	/** Quantized blue values, already shifted into the blue position. */
+	private final int[] blueTable = new int[Cartoonify.COLOUR_MASK + 1];
+
+	/**
+	 * Builds the lookup tables for the given number of colours.
+	 *
+	 * @param numColours how many colours we want in each output channel.
+	 */
+	public ColourQuantizer(int numColours) {
+		this.numColours = numColours;
+		for (int value = 0; value <= Cartoonify.COLOUR_MASK; value++) {
+			final int newColour = quantizeColour(value, numColours);
+			redTable[value] = newColour << (Cartoonify.RED * Cartoonify.COLOUR_BITS);
+			greenTable[value] = newColour << (Cartoonify.GREEN * Cartoonify.COLOUR_BITS);
+			blueTable[value] = newColour << (Cartoonify.BLUE * Cartoonify.COLOUR_BITS);
+		}
+	}
+
+	/** @return Number of values in each colour channel (R, G, B) after quantization. */
+	public int numColours() {
+		return numColours;
+	}
+
+	/**
+	 * Quantizes all three colour channels of one pixel.
+	 *
+	 * @param rgb an RGB pixel.
+	 * @return the pixel with each channel replaced by its quantized value.
+	 */
+	public int quantize(int rgb) {
+		return redTable[(rgb >> 16) & 0xFF] | greenTable[(rgb >> 8) & 0xFF] | blueTable[rgb & 0xFF];
+	}
+
+	/**
+	 * Quantizes pixels <code>from .. to-1</code> of one image into another.
+	 *
+	 * @param src the RGB pixels to read.
+	 * @param dst receives the quantized pixels, at the same positions.
+	 * @param from the first position.
+	 * @param to one past the last position.
+	 */
+	public void quantize(int[] src, int[] dst, int from, int to) {
+		final int[] reds = redTable;
+		final int[] greens = greenTable;
+		final int[] blues = blueTable;
+		for (int pos = from; pos < to; pos++) {
+			final int rgb = src[pos];
+			dst[pos] = reds[(rgb >> 16) & 0xFF] | greens[(rgb >> 8) & 0xFF] | blues[rgb & 0xFF];
+		}
+	}
+
+	/**
+	 * Converts the given colour value (eg. 0..255) to an approximate colour value.
+	 * See <code>Cartoonify.quantizeColour</code> for details.
+	 *
+	 * @param colourValue 0 .. COLOUR_MASK
+	 * @param numPerChannel how many colours we want in the output.
+	 * @return a discrete colour value (0..COLOUR_MASK).
+	 */
+	static int quantizeColour(int colourValue, int numPerChannel) {
+		float colour = colourValue / (Cartoonify.COLOUR_MASK + 1.0f) * numPerChannel;
+		int discrete = Math.round(colour - 0.5f);
+		assert 0 <= discrete && discrete < numPerChannel;
+		int newColour = discrete * Cartoonify.COLOUR_MASK / (numPerChannel - 1);
+		assert 0 <= newColour && newColour <= Cartoonify.COLOUR_MASK;
+		return newColour;
+	}
+}
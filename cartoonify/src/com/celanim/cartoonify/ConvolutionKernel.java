@@ -0,0 +1,268 @@
+package com.celanim.cartoonify;
+
+import java.util.Arrays;
+
+/**
+ * A square N*N filter that has been checked and prepared once, so that it can be
+ * applied to whole rows of an image without allocating anything per pixel.
+ *
+ * The size, half-width and integer weights are fixed when the kernel is built.
+ * The apply methods write their results into buffers supplied by the caller, so a
+ * stage can allocate a few row-sized buffers once and reuse them for every row.
+ *
+ * Source rows are passed as an array of row start positions (one per filter row),
+ * which lets the same kernel read from a whole image or from a small window of rows.
+ */
+public final class ConvolutionKernel {
+
+	/** Number of fractional bits in the fixed-point reciprocal of the divisor. */
+	private static final int RECIPROCAL_BITS = 32;
+
+	/** The width and height of the filter matrix. */
+	private final int size;
+
+	/** How far the filter reaches on each side of the centre pixel. */
+	private final int half;
+
+	/** The filter weights, in row-major order. */
+	private final int[] weights;
+
+	/** What the channel sums are divided by in <code>normalise</code>. */
+	private final int divisor;
+
+	/** ceil(2^RECIPROCAL_BITS / (2 * divisor)), used to divide with rounding. */
+	private final long reciprocal;
+
+	/**
+	 * Builds a kernel from a square filter matrix.
+	 *
+	 * @param filter a 2D square matrix, laid out in row-major order in a 1D array.  It is copied.
+	 * @param divisor what the channel sums are divided by when they are normalised (e.g. 159).
+	 */
+	public ConvolutionKernel(int[] filter, int divisor) {
+		int filterSize = 1;
+		while (filterSize * filterSize < filter.length) {
+			filterSize++;
+		}
+		if (filterSize * filterSize != filter.length || filterSize % 2 == 0) {
+			throw new IllegalArgumentException("filter must be square with an odd size: " + Arrays.toString(filter));
+		}
+		if (divisor <= 0) {
+			throw new IllegalArgumentException("divisor must be positive, not " + divisor);
+		}
+		this.size = filterSize;
+		this.half = filterSize / 2;
+		this.weights = filter.clone();
+		this.divisor = divisor;
+		final long twoDivisor = 2L * divisor;
+		this.reciprocal = ((1L << RECIPROCAL_BITS) + twoDivisor - 1) / twoDivisor;
+		// the reciprocal is exact as long as numerator * error < 2^RECIPROCAL_BITS.
+		long maxSum = 0;
+		for (int w : weights) {
+			maxSum += Math.abs(w) * (long) Cartoonify.COLOUR_MASK;
+		}
+		final long error = reciprocal * twoDivisor - (1L << RECIPROCAL_BITS);
+		if ((2 * maxSum + divisor) * error >= (1L << RECIPROCAL_BITS)) {
+			throw new IllegalArgumentException("divisor " + divisor + " is too large for this filter");
+		}
+	}
+
+	/** @return the width (and height) of the filter matrix. */
+	public int size() {
+		return size;
+	}
+
+	/** @return how far the filter reaches on each side of the centre pixel. */
+	public int half() {
+		return half;
+	}
+
+	/**
+	 * Works out where each source row used for output row <code>y</code> starts,
+	 * reflecting off the top and bottom edges of the image.
+	 *
+	 * @param y the output row, 0 .. height-1.
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 * @param rowStarts output buffer of length <code>size()</code>.
+	 */
+	public void rowStarts(int y, int width, int height, int[] rowStarts) {
+		for (int filterY = 0; filterY < size; filterY++) {
+			rowStarts[filterY] = reflect(y + filterY - half, height) * width;
+		}
+	}
+
+	/**
+	 * Applies this filter to one row of pixels, and writes the raw R, G, B sums.
+	 *
+	 * Only the <code>half()</code> pixels at each end of the row can reach outside the
+	 * image, so those are done one at a time by reflecting off the edges.  All the other
+	 * pixels are done tap by tap with straight-line indexing and no branches.
+	 * The top and bottom edges are already handled by <code>rowStarts</code>.
+	 *
+	 * @param src the source pixels, in RGB format.
+	 * @param rowStarts where each of the <code>size()</code> source rows starts in <code>src</code>.
+	 * @param width the number of pixels in each row.
+	 * @param red receives the red sums, at positions 0 .. width-1.
+	 * @param green receives the green sums, at positions 0 .. width-1.
+	 * @param blue receives the blue sums, at positions 0 .. width-1.
+	 */
+	public void applyRow(int[] src, int[] rowStarts, int width, int[] red, int[] green, int[] blue) {
+		final int leftEnd = Math.min(half, width);
+		final int rightStart = Math.max(width - half, leftEnd);
+		for (int x = 0; x < leftEnd; x++) {
+			applyBorder(src, rowStarts, width, x, red, green, blue);
+		}
+		if (leftEnd < rightStart) {
+			applyInterior(src, rowStarts, leftEnd, rightStart, red, green, blue);
+		}
+		for (int x = rightStart; x < width; x++) {
+			applyBorder(src, rowStarts, width, x, red, green, blue);
+		}
+	}
+
+	/**
+	 * Applies the filter to pixels <code>xStart .. xEnd-1</code>, which must all be
+	 * at least <code>half</code> pixels away from the left and right edges.
+	 * This loops over the taps on the outside and the pixels on the inside, so the
+	 * inner loop is a simple contiguous sweep that the JIT can unroll.
+	 */
+	private void applyInterior(int[] src, int[] rowStarts, int xStart, int xEnd,
+			int[] red, int[] green, int[] blue) {
+		for (int x = xStart; x < xEnd; x++) {
+			red[x] = 0;
+			green[x] = 0;
+			blue[x] = 0;
+		}
+		for (int filterY = 0; filterY < size; filterY++) {
+			final int rowStart = rowStarts[filterY] - half;
+			final int filterRow = filterY * size;
+			for (int filterX = 0; filterX < size; filterX++) {
+				final int weight = weights[filterRow + filterX];
+				if (weight == 0) {
+					continue; // zero taps add nothing to the sums.
+				}
+				final int offset = rowStart + filterX;
+				for (int x = xStart; x < xEnd; x++) {
+					final int rgb = src[offset + x];
+					red[x] += ((rgb >> 16) & 0xFF) * weight;
+					green[x] += ((rgb >> 8) & 0xFF) * weight;
+					blue[x] += (rgb & 0xFF) * weight;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies the filter to the single pixel <code>x</code>, reflecting off the left
+	 * and right edges of the image.
+	 */
+	private void applyBorder(int[] src, int[] rowStarts, int width, int x,
+			int[] red, int[] green, int[] blue) {
+		int r = 0;
+		int g = 0;
+		int b = 0;
+		for (int filterY = 0; filterY < size; filterY++) {
+			final int rowStart = rowStarts[filterY];
+			final int filterRow = filterY * size;
+			for (int filterX = 0; filterX < size; filterX++) {
+				final int rgb = src[rowStart + reflect(x + filterX - half, width)];
+				final int weight = weights[filterRow + filterX];
+				r += ((rgb >> 16) & 0xFF) * weight;
+				g += ((rgb >> 8) & 0xFF) * weight;
+				b += (rgb & 0xFF) * weight;
+			}
+		}
+		red[x] = r;
+		green[x] = g;
+		blue[x] = b;
+	}
+
+	/**
+	 * Applies this filter to one row of a single colour plane (see <code>PlanarImage</code>),
+	 * and writes the raw sums.  This is the same as <code>applyRow</code> for one channel,
+	 * but each tap is a plain byte load, with no shifting and masking.
+	 *
+	 * @param plane the source colour values, one byte per pixel.
+	 * @param rowStarts where each of the <code>size()</code> source rows starts in <code>plane</code>.
+	 * @param width the number of pixels in each row.
+	 * @param sums receives the sums, at positions 0 .. width-1.
+	 */
+	public void applyRow(byte[] plane, int[] rowStarts, int width, int[] sums) {
+		final int leftEnd = Math.min(half, width);
+		final int rightStart = Math.max(width - half, leftEnd);
+		for (int x = 0; x < leftEnd; x++) {
+			sums[x] = applyBorder(plane, rowStarts, width, x);
+		}
+		if (leftEnd < rightStart) {
+			for (int x = leftEnd; x < rightStart; x++) {
+				sums[x] = 0;
+			}
+			for (int filterY = 0; filterY < size; filterY++) {
+				final int rowStart = rowStarts[filterY] - half;
+				final int filterRow = filterY * size;
+				for (int filterX = 0; filterX < size; filterX++) {
+					final int weight = weights[filterRow + filterX];
+					if (weight == 0) {
+						continue; // zero taps add nothing to the sums.
+					}
+					final int offset = rowStart + filterX;
+					for (int x = leftEnd; x < rightStart; x++) {
+						sums[x] += (plane[offset + x] & 0xFF) * weight;
+					}
+				}
+			}
+		}
+		for (int x = rightStart; x < width; x++) {
+			sums[x] = applyBorder(plane, rowStarts, width, x);
+		}
+	}
+
+	/** @return the filter sum of the single plane pixel <code>x</code>, reflecting off the left and right edges. */
+	private int applyBorder(byte[] plane, int[] rowStarts, int width, int x) {
+		int sum = 0;
+		for (int filterY = 0; filterY < size; filterY++) {
+			final int rowStart = rowStarts[filterY];
+			final int filterRow = filterY * size;
+			for (int filterX = 0; filterX < size; filterX++) {
+				sum += (plane[rowStart + reflect(x + filterX - half, width)] & 0xFF) * weights[filterRow + filterX];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Divides a channel sum by the divisor and clamps it to a colour value.
+	 *
+	 * This gives exactly the same result as <code>clamp(sum / (double) divisor)</code>,
+	 * but uses a fixed-point reciprocal rather than a floating point division.
+	 *
+	 * @param sum a channel sum from <code>applyRow</code>.
+	 * @return a colour value in the range 0 .. COLOUR_MASK.
+	 */
+	public int normalise(int sum) {
+		if (sum <= 0) {
+			return 0;
+		}
+		final int result = (int) (((2L * sum + divisor) * reciprocal) >>> RECIPROCAL_BITS);
+		return result > Cartoonify.COLOUR_MASK ? Cartoonify.COLOUR_MASK : result;
+	}
+
+	/**
+	 * Restricts an index to be within the image, by reflecting off each edge.
+	 *
+	 * @param pos an index that might be slightly outside the image boundaries.
+	 * @param size the width of the image (for x value) or the height (for y values).
+	 * @return the new index, which is in the range <code>0 .. size-1</code>.
+	 */
+	static int reflect(int pos, int size) {
+		if (pos < 0) {
+			pos = -1 - pos;
+		} else if (pos >= size) {
+			pos = (size - 1) - (pos - size);
+		}
+		assert 0 <= pos;
+		assert pos < size;
+		return pos;
+	}
+}
@@ -0,0 +1,173 @@
+package com.celanim.cartoonify;
+
+import java.util.Arrays;
+
+/**
+ * A black and white edge image stored as one bit per pixel, rather than one int per pixel.
+ *
+ * Bit <code>x % 64</code> of word <code>y * wordsPerRow() + x / 64</code> is set if pixel
+ * (x,y) is an edge.  Each row starts at a new word, so that different threads can fill
+ * or read different bands of rows without sharing any words.  The unused bits at the
+ * end of each row are always zero.
+ *
+ * Merging the edges onto a photo can then look at 64 pixels at a time, and just copy
+ * the photo pixels when none of them are edges.  The mask only needs to be converted
+ * to an int image when it is saved (see <code>toPixels</code>).
+ */
+public final class EdgeMask {
+
+	/** The number of pixels in each word. */
+	static final int WORD_BITS = Long.SIZE;
+
+	private final int width;
+	private final int height;
+	private final int wordsPerRow;
+
+	/** The edge bits, in row-major order. */
+	private final long[] words;
+
+	/**
+	 * Creates a mask with no edges.
+	 *
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 */
+	public EdgeMask(int width, int height) {
+		if (width < 0 || height < 0) {
+			throw new IllegalArgumentException("bad mask size " + width + "x" + height);
+		}
+		this.width = width;
+		this.height = height;
+		this.wordsPerRow = (width + WORD_BITS - 1) / WORD_BITS;
+		this.words = new long[Math.multiplyExact(wordsPerRow, height)];
+	}
+
+	/** @return the width of the image. */
+	public int width() {
+		return width;
+	}
+
+	/** @return the height of the image. */
+	public int height() {
+		return height;
+	}
+
+	/** @return the number of words used for each row. */
+	public int wordsPerRow() {
+		return wordsPerRow;
+	}
+
+	/** @return the edge bits of all the rows.  The caller must not change the unused bits. */
+	long[] words() {
+		return words;
+	}
+
+	/** @return where row y starts in <code>words()</code>. */
+	int rowStart(int y) {
+		return y * wordsPerRow;
+	}
+
+	/** @return true if pixel (x,y) is an edge. */
+	public boolean isEdge(int x, int y) {
+		return (words[rowStart(y) + x / WORD_BITS] & (1L << x)) != 0;
+	}
+
+	/**
+	 * Marks pixel (x,y) as an edge or not.
+	 *
+	 * @param x 0 .. width-1.
+	 * @param y 0 .. height-1.
+	 * @param edge true to make it an edge.
+	 */
+	public void setEdge(int x, int y, boolean edge) {
+		final int word = rowStart(y) + x / WORD_BITS;
+		if (edge) {
+			words[word] |= 1L << x;
+		} else {
+			words[word] &= ~(1L << x);
+		}
+	}
+
+	/**
+	 * Sets the edges of row y from its gradient magnitudes.
+	 *
+	 * @param y the row, 0 .. height-1.
+	 * @param magnitudes the gradient magnitudes of the row, at positions 0 .. width-1.
+	 * @param threshold the smallest gradient magnitude that is an edge.
+	 */
+	void setRow(int y, int[] magnitudes, int threshold) {
+		final int rowWords = rowStart(y);
+		for (int w = 0; w < wordsPerRow; w++) {
+			final int start = w * WORD_BITS;
+			final int count = Math.min(WORD_BITS, width - start);
+			long bits = 0;
+			for (int i = 0; i < count; i++) {
+				if (magnitudes[start + i] >= threshold) {
+					bits |= 1L << i;
+				}
+			}
+			words[rowWords + w] = bits;
+		}
+	}
+
+	/** @return the number of edge pixels. */
+	public long countEdges() {
+		long count = 0;
+		for (long word : words) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	/**
+	 * Converts rows <code>yStart .. yEnd-1</code> into an int image.
+	 *
+	 * @param edgeColour the pixel written for edges (e.g. black).
+	 * @param otherColour the pixel written for everything else (e.g. white).
+	 * @param dst receives width * height pixels, in row-major order.
+	 */
+	public void toPixels(int edgeColour, int otherColour, int[] dst, int yStart, int yEnd) {
+		for (int y = yStart; y < yEnd; y++) {
+			final int rowWords = rowStart(y);
+			final int rowPos = y * width;
+			for (int w = 0; w < wordsPerRow; w++) {
+				final long bits = words[rowWords + w];
+				final int pos = rowPos + w * WORD_BITS;
+				final int end = pos + Math.min(WORD_BITS, width - w * WORD_BITS);
+				if (bits == 0) {
+					Arrays.fill(dst, pos, end, otherColour);
+					continue;
+				}
+				for (int i = pos; i < end; i++) {
+					dst[i] = (bits & (1L << (i - pos))) != 0 ? edgeColour : otherColour;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the edges in rows <code>yStart .. yEnd-1</code> on top of a photo.
+	 * Edge pixels become <code>edgeColour</code>, and all the others are copied from the photo.
+	 * Each row of the photo is copied in one go, then only the words that contain
+	 * edges are looked at, one set bit at a time.
+	 *
+	 * @param edgeColour the colour of the edges (e.g. black).
+	 * @param photo the pixels underneath the edges.
+	 * @param dst receives the merged pixels, at the same positions.
+	 */
+	public void merge(int edgeColour, int[] photo, int[] dst, int yStart, int yEnd) {
+		for (int y = yStart; y < yEnd; y++) {
+			final int rowWords = rowStart(y);
+			final int rowPos = y * width;
+			System.arraycopy(photo, rowPos, dst, rowPos, width);
+			for (int w = 0; w < wordsPerRow; w++) {
+				long bits = words[rowWords + w];
+				final int pos = rowPos + w * WORD_BITS;
+				while (bits != 0) {
+					dst[pos + Long.numberOfTrailingZeros(bits)] = edgeColour;
+					bits &= bits - 1;
+				}
+			}
+		}
+	}
+}
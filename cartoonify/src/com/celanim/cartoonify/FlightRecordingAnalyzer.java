@@ -0,0 +1,151 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarises the cartoon events in a Java Flight Recorder file (see <code>PipelineEvents</code>)
+ * into the number of runs, total and maximum time of each stage, and the slowest photo for each.
+ *
+ * Loading and saving are shown as the "loadPhoto" and "savePhoto" stages, and the OpenCL
+ * steps as "opencl enqueue" and "opencl readback".  Other events in the file are ignored.
+ *
+ * Run <code>main</code> with the names of one or more .jfr files.
+ */
+public final class FlightRecordingAnalyzer {
+
+	private FlightRecordingAnalyzer() {
+	}
+
+	/** The totals of one stage. */
+	public static final class StageTotal {
+		private final String name;
+		private long count = 0;
+		private long totalNanos = 0;
+		private long maxNanos = -1;
+		private String slowestPhoto = "";
+
+		StageTotal(String name) {
+			this.name = name;
+		}
+
+		void add(long nanos, String photo) {
+			count++;
+			totalNanos += nanos;
+			if (nanos > maxNanos) {
+				maxNanos = nanos;
+				slowestPhoto = photo == null ? "" : photo;
+			}
+		}
+
+		/** @return eg. "gaussianBlur". */
+		public String name() {
+			return name;
+		}
+
+		/** @return the number of events for this stage. */
+		public long count() {
+			return count;
+		}
+
+		/** @return the total duration of this stage, in nanoseconds. */
+		public long totalNanos() {
+			return totalNanos;
+		}
+
+		/** @return the longest single duration of this stage, in nanoseconds. */
+		public long maxNanos() {
+			return maxNanos;
+		}
+
+		/** @return the photo that this stage took longest on. */
+		public String slowestPhoto() {
+			return slowestPhoto;
+		}
+	}
+
+	/**
+	 * @param event a cartoon event.
+	 * @return the name of its stage, or null if it is not a cartoon event.
+	 */
+	static String stageName(RecordedEvent event) {
+		switch (event.getEventType().getName()) {
+		case PipelineEvents.PREFIX + "LoadPhoto":
+			return "loadPhoto";
+		case PipelineEvents.PREFIX + "Stage":
+			return event.getString("stage");
+		case PipelineEvents.PREFIX + "OpenCL":
+			return "opencl " + event.getString("operation");
+		case PipelineEvents.PREFIX + "SavePhoto":
+			return "savePhoto";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a recording and adds up its cartoon events.
+	 *
+	 * @param recording a .jfr file.
+	 * @param totals the totals so far, keyed by stage name.  The events are added to these.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static void summarise(Path recording, Map<String, StageTotal> totals) throws IOException {
+		try (RecordingFile file = new RecordingFile(recording)) {
+			while (file.hasMoreEvents()) {
+				final RecordedEvent event = file.readEvent();
+				final String stage = stageName(event);
+				if (stage != null) {
+					totals.computeIfAbsent(stage, StageTotal::new).add(event.getDuration().toNanos(), event.getString("photo"));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param recording a .jfr file.
+	 * @return the totals of each stage in that recording, sorted by stage name.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static Map<String, StageTotal> summarise(Path recording) throws IOException {
+		Map<String, StageTotal> totals = new TreeMap<>();
+		summarise(recording, totals);
+		return totals;
+	}
+
+	/** Prints a table of stage totals. */
+	public static void print(Map<String, StageTotal> totals, PrintStream out) {
+		out.format("%-20s %7s %12s %10s %10s  %s%n", "stage", "runs", "total secs", "mean ms", "max ms", "slowest photo");
+		for (StageTotal stage : totals.values()) {
+			out.format("%-20s %7d %12.3f %10.3f %10.3f  %s%n", stage.name(), stage.count(), stage.totalNanos() / 1e9,
+					stage.totalNanos() / 1e6 / stage.count(), stage.maxNanos() / 1e6, stage.slowestPhoto());
+		}
+	}
+
+	/**
+	 * Prints the per-stage totals of all the given recordings together.
+	 *
+	 * @param args the .jfr files.
+	 * @throws IOException if a file cannot be read.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Arguments: recording1.jfr recording2.jfr ...");
+			System.out.println("  Prints the time taken by each Cartoonify stage in flight recordings made with");
+			System.out.println("  java -XX:StartFlightRecording:filename=recording1.jfr ... com.celanim.cartoonify.Cartoonify ...");
+			System.exit(1);
+		}
+		Map<String, StageTotal> totals = new TreeMap<>();
+		for (String name : args) {
+			summarise(Paths.get(name), totals);
+		}
+		print(totals, System.out);
+	}
+}
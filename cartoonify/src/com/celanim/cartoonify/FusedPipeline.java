@@ -0,0 +1,181 @@
+package com.celanim.cartoonify;
+
+/**
+ * Does the whole cartoon pipeline (blur, edge detection, colour reduction and merging)
+ * in one pass over the image, without creating the full-size intermediate images.
+ *
+ * Each band of rows is swept from top to bottom.  A rolling window of the last three
+ * blurred rows is kept for the Sobel filter, and each output row is quantized and
+ * merged as soon as its edges are known, so only the final image is written.
+ * The intermediate images can optionally be written too, for debugging.
+ *
+ * The source rows can either be a whole image, or a small ring of rows that the caller
+ * keeps filled (see <code>Strip</code>), so the same code is used to stream huge images.
+ *
+ * The results are exactly the same as <code>Cartoonify.processPhotoOnCPU()</code>.
+ */
+final class FusedPipeline {
+
+	/** The number of blurred rows that the Sobel filter needs. */
+	private static final int WINDOW_ROWS = 3;
+
+	/** The number of source rows that a ring must hold, for streaming. */
+	static final int SOURCE_RING_ROWS = WINDOW_ROWS + 2;
+
+	private final Cartoonify cart;
+	private final int width;
+	private final int height;
+	private final int edgeThreshold;
+	private final ColourQuantizer quantizer;
+
+	/**
+	 * @param cart supplies the image size, settings and pixel helpers.
+	 */
+	FusedPipeline(Cartoonify cart) {
+		this(cart, cart.width(), cart.height());
+	}
+
+	/**
+	 * @param cart supplies the settings and pixel helpers.
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 */
+	FusedPipeline(Cartoonify cart, int width, int height) {
+		this.cart = cart;
+		this.width = width;
+		this.height = height;
+		this.edgeThreshold = cart.getEdgeThreshold();
+		this.quantizer = cart.quantizer();
+	}
+
+	/**
+	 * Cartoonifies a whole image.
+	 *
+	 * @param src the original photo.
+	 * @param out receives the final cartoon image.
+	 * @param blurred receives the blurred image, or null if it is not needed.
+	 * @param edges receives the black and white edge image, or null if it is not needed.
+	 * @param colours receives the colour-reduced image, or null if it is not needed.
+	 * @param bands how to split the rows between threads.
+	 */
+	void run(int[] src, int[] out, int[] blurred, int[] edges, int[] colours, RowBands bands) {
+		bands.forEach(height, (yStart, yEnd) -> {
+			Strip strip = new Strip(src, 0, yStart, yEnd);
+			for (int y = yStart; y < yEnd; y++) {
+				strip.processRow(y, out, y * width, blurred, edges, colours);
+			}
+		});
+	}
+
+	/**
+	 * @return the last source row that must be available before output row y can be processed.
+	 */
+	int lastSourceRow(int y) {
+		return Math.min(y + WINDOW_ROWS, height - 1);
+	}
+
+	/**
+	 * Processes rows <code>yStart .. yEnd-1</code> in order, keeping the row buffers
+	 * and the window of blurred rows between one row and the next.
+	 */
+	final class Strip {
+		private final ConvolutionKernel gaussian = Cartoonify.GAUSSIAN_KERNEL;
+
+		/** The source rows. */
+		private final int[] src;
+
+		/** 0 if src is the whole image, otherwise source row r is at slot (r % sourceRows). */
+		private final int sourceRows;
+
+		private final int yStart;
+		private final int yEnd;
+
+		/** Blurred row r lives in slot (r % WINDOW_ROWS) of this window. */
+		private final int[] window = new int[WINDOW_ROWS * width];
+		private final int[] blurStarts = new int[gaussian.size()];
+		private final int[] red = new int[width];
+		private final int[] green = new int[width];
+		private final int[] blue = new int[width];
+		private final int[] magnitudes = new int[width];
+
+		/** The next blurred row to put into the window. */
+		private int nextBlurRow;
+
+		/**
+		 * @param src the whole source image, or a ring of source rows.
+		 * @param sourceRows 0 if src is the whole image, otherwise the number of rows in the
+		 *     ring (at least SOURCE_RING_ROWS), and source row r must be at slot (r % sourceRows)
+		 *     whenever <code>lastSourceRow(y)</code> is the last row put into the ring.
+		 * @param yStart the first row that will be processed.
+		 * @param yEnd one past the last row that will be processed.
+		 */
+		Strip(int[] src, int sourceRows, int yStart, int yEnd) {
+			assert sourceRows == 0 || sourceRows >= SOURCE_RING_ROWS;
+			this.src = src;
+			this.sourceRows = sourceRows;
+			this.yStart = yStart;
+			this.yEnd = yEnd;
+			this.nextBlurRow = ConvolutionKernel.reflect(yStart - 1, height);
+		}
+
+		/** @return where source row r starts in src. */
+		private int sourceStart(int r) {
+			return (sourceRows == 0 ? r : r % sourceRows) * width;
+		}
+
+		/** @return where blurred row r (reflected at the top and bottom edges) starts in the window. */
+		private int windowStart(int r) {
+			return (ConvolutionKernel.reflect(r, height) % WINDOW_ROWS) * width;
+		}
+
+		/**
+		 * Processes the next row.  Rows must be processed in order, starting from yStart.
+		 *
+		 * @param y the row to process.
+		 * @param out receives the final cartoon row.
+		 * @param outPos where the row starts in <code>out</code>.
+		 * @param blurred receives the blurred image, or null if it is not needed.
+		 * @param edges receives the black and white edge image, or null if it is not needed.
+		 * @param colours receives the colour-reduced image, or null if it is not needed.
+		 */
+		void processRow(int y, int[] out, int outPos, int[] blurred, int[] edges, int[] colours) {
+			// make sure the blurred rows y-1, y and y+1 are all in the window.
+			final int lastNeeded = ConvolutionKernel.reflect(y + 1, height);
+			for (; nextBlurRow <= lastNeeded; nextBlurRow++) {
+				for (int filterY = 0; filterY < blurStarts.length; filterY++) {
+					blurStarts[filterY] = sourceStart(ConvolutionKernel.reflect(
+							nextBlurRow + filterY - gaussian.half(), height));
+				}
+				gaussian.applyRow(src, blurStarts, width, red, green, blue);
+				final int slotPos = (nextBlurRow % WINDOW_ROWS) * width;
+				for (int x = 0; x < width; x++) {
+					window[slotPos + x] = cart.createPixel(gaussian.normalise(red[x]),
+							gaussian.normalise(green[x]), gaussian.normalise(blue[x]));
+				}
+				if (blurred != null && yStart <= nextBlurRow && nextBlurRow < yEnd) {
+					System.arraycopy(window, slotPos, blurred, nextBlurRow * width, width);
+				}
+			}
+
+			SobelOperator.magnitudeRow(window, windowStart(y - 1), windowStart(y), windowStart(y + 1),
+					width, magnitudes, 0);
+
+			final int black = cart.black;
+			final int white = cart.white;
+			final int srcPos = sourceStart(y);
+			final int rowPos = y * width;
+			for (int x = 0; x < width; x++) {
+				final boolean isEdge = magnitudes[x] >= edgeThreshold;
+				final int quantized = quantizer.quantize(src[srcPos + x]);
+				// this is mergeMask(edges, white, colours), since edge pixels are black.
+				out[outPos + x] = isEdge ? black : quantized;
+				if (edges != null) {
+					edges[rowPos + x] = isEdge ? black : white;
+				}
+				if (colours != null) {
+					colours[rowPos + x] = quantized;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.celanim.cartoonify;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values, such as latencies in nanoseconds.
+ *
+ * Values below 32 each have their own bucket.  Above that, each power of two is split
+ * into 32 buckets, so a percentile is accurate to about 3% of its value while the whole
+ * histogram is a fixed array of under 2000 counters.  Recording a value is a few
+ * atomic increments, so it is cheap enough to leave on all the time.
+ */
+public final class Histogram {
+
+	/** log2 of the number of buckets for each power of two. */
+	private static final int SUB_BITS = 5;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** Enough buckets for every positive long. */
+	private static final int NUM_BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/** @return the bucket that holds the given value. */
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/** @return the largest value that goes into the given bucket. */
+	static long bucketMax(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+		return lowest + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * Records one value.
+	 *
+	 * @param value a value of at least zero.  Negative values are recorded as zero.
+	 */
+	public void record(long value) {
+		final long v = Math.max(0L, value);
+		buckets.incrementAndGet(bucket(v));
+		count.increment();
+		total.add(v);
+		if (v > max.get()) {
+			max.accumulateAndGet(v, Math::max);
+		}
+	}
+
+	/** @return the number of values recorded. */
+	public long count() {
+		return count.sum();
+	}
+
+	/** @return the sum of all the values recorded. */
+	public long total() {
+		return total.sum();
+	}
+
+	/** @return the largest value recorded, or 0 if there are none. */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * @param fraction eg. 0.5 for the median, or 0.99 for the 99th percentile.
+	 * @return a value that at least that fraction of the recorded values are no bigger than,
+	 *     to within the bucket accuracy.  0 if nothing has been recorded.
+	 */
+	public long percentile(double fraction) {
+		long n = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			n += buckets.get(i);
+		}
+		if (n == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1L, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(bucketMax(i), max());
+			}
+		}
+		return max();
+	}
+
+	/** Forgets all the recorded values.  Values recorded at the same time may be partly lost. */
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+}
@@ -0,0 +1,307 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Event;
+
+/**
+ * Always-on performance metrics: a latency histogram, pixel count and allocated bytes
+ * for each processing stage, plus a histogram of the depth of each queue.
+ *
+ * A stage is timed by calling <code>start</code> before it and <code>Span.stop</code> after it.
+ * Times come from <code>System.nanoTime</code>, and allocations from the thread's allocation
+ * counter (see <code>com.sun.management.ThreadMXBean</code>).  Only the allocations of the
+ * thread that starts and stops the span are counted, not those of other threads that
+ * process bands of rows for it.  Each span costs a few hundred nanoseconds, and stages
+ * are timed once per photo, so the overhead is tiny compared to the pixel processing.
+ * A span can also carry a Java Flight Recorder event, which is committed when it stops.
+ *
+ * The metrics can be saved as a JSON or CSV report, and read through JMX
+ * (see <code>MetricsMXBean</code>).  All methods can be called from many threads at once.
+ */
+public final class Metrics implements MetricsMXBean {
+
+	/** The name that <code>registerMBean</code> uses. */
+	public static final String MBEAN_NAME = "com.celanim.cartoonify:type=Metrics";
+
+	/** Reads the allocation counter of the current thread, or null if the JVM cannot. */
+	private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+	/** The stages, sorted by name. */
+	private final Map<String, Stage> stages = new ConcurrentSkipListMap<>();
+
+	/** The queues, sorted by name. */
+	private final Map<String, Histogram> queues = new ConcurrentSkipListMap<>();
+
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		try {
+			java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+				if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+					return counter;
+				}
+			}
+		} catch (LinkageError | UnsupportedOperationException e) {
+			// no allocation counts on this JVM.
+		}
+		return null;
+	}
+
+	/** @return the bytes allocated so far by the current thread, or 0 if this is not supported. */
+	static long allocatedBytes() {
+		return THREADS == null ? 0L : THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+	/** The metrics of one processing stage. */
+	public static final class Stage {
+		private final String name;
+		private final Histogram nanos = new Histogram();
+		private final LongAdder pixels = new LongAdder();
+		private final LongAdder allocated = new LongAdder();
+
+		private Stage(String name) {
+			this.name = name;
+		}
+
+		/** @return the name of the stage, eg. "gaussianBlur". */
+		public String name() {
+			return name;
+		}
+
+		/** @return the time taken by each run of this stage, in nanoseconds. */
+		public Histogram nanos() {
+			return nanos;
+		}
+
+		/** @return the total number of pixels processed by this stage. */
+		public long pixels() {
+			return pixels.sum();
+		}
+
+		/** @return the total bytes allocated by this stage's threads while it ran. */
+		public long allocatedBytes() {
+			return allocated.sum();
+		}
+
+		/** Adds one run of this stage. */
+		public void record(long nanoseconds, long pixelCount, long allocatedBytes) {
+			nanos.record(nanoseconds);
+			pixels.add(pixelCount);
+			allocated.add(Math.max(0L, allocatedBytes));
+		}
+
+		void reset() {
+			nanos.reset();
+			pixels.reset();
+			allocated.reset();
+		}
+	}
+
+	/** One run of a stage, which is recorded when it stops. */
+	public static final class Span {
+		private final Stage stage;
+		private final long startNanos;
+		private final long startBytes;
+		private final Event event;
+
+		private Span(Stage stage, Event event) {
+			this.stage = stage;
+			this.event = event;
+			this.startBytes = allocatedBytes();
+			if (event != null) {
+				event.begin();
+			}
+			this.startNanos = System.nanoTime();
+		}
+
+		/**
+		 * Records this run of the stage.  This must be called on the thread that started it.
+		 *
+		 * @param pixelCount the number of pixels that the stage processed.
+		 * @return the time taken, in nanoseconds.
+		 */
+		public long stop(long pixelCount) {
+			final long nanos = System.nanoTime() - startNanos;
+			stage.record(nanos, pixelCount, allocatedBytes() - startBytes);
+			if (event != null) {
+				event.commit();
+			}
+			return nanos;
+		}
+	}
+
+	/**
+	 * @param name eg. "gaussianBlur".
+	 * @return the metrics of that stage, which are created if necessary.
+	 */
+	public Stage stage(String name) {
+		final Stage stage = stages.get(name);
+		return stage != null ? stage : stages.computeIfAbsent(name, Stage::new);
+	}
+
+	/**
+	 * Starts timing one run of a stage.
+	 *
+	 * @param name eg. "gaussianBlur".
+	 * @return call <code>stop</code> on this when the stage has finished.
+	 */
+	public Span start(String name) {
+		return new Span(stage(name), null);
+	}
+
+	/**
+	 * Starts timing one run of a stage, and begins a flight recorder event for it.
+	 *
+	 * @param name eg. "gaussianBlur".
+	 * @param event committed when the span stops.  Recording may be off, which makes this almost free.
+	 * @return call <code>stop</code> on this when the stage has finished.
+	 */
+	public Span start(String name, Event event) {
+		return new Span(stage(name), event);
+	}
+
+	/**
+	 * @param name eg. "decoded".
+	 * @return the histogram of that queue's depth, which is created if necessary.
+	 */
+	public Histogram queue(String name) {
+		return queues.computeIfAbsent(name, n -> new Histogram());
+	}
+
+	/**
+	 * Records the current depth of a queue.
+	 *
+	 * @param name eg. "decoded".
+	 * @param depth the number of items in the queue.
+	 */
+	public void recordQueueDepth(String name, int depth) {
+		queue(name).record(depth);
+	}
+
+	/** Forgets everything recorded so far, eg. after warming up. */
+	@Override
+	public void reset() {
+		for (Stage stage : stages.values()) {
+			stage.reset();
+		}
+		for (Histogram queue : queues.values()) {
+			queue.reset();
+		}
+	}
+
+	@Override
+	public List<StageStats> getStages() {
+		List<StageStats> result = new ArrayList<>();
+		for (Stage stage : stages.values()) {
+			result.add(new StageStats(stage));
+		}
+		return result;
+	}
+
+	@Override
+	public List<QueueStats> getQueues() {
+		List<QueueStats> result = new ArrayList<>();
+		for (Map.Entry<String, Histogram> queue : queues.entrySet()) {
+			result.add(new QueueStats(queue.getKey(), queue.getValue()));
+		}
+		return result;
+	}
+
+	/** @return all the metrics as a JSON object, with times in milliseconds. */
+	@Override
+	public String getJson() {
+		StringBuilder json = new StringBuilder("{\n  \"stages\": [");
+		String separator = "\n";
+		for (StageStats stage : getStages()) {
+			json.append(separator).append(String.format(Locale.ROOT,
+					"    {\"name\": \"%s\", \"count\": %d, \"totalMillis\": %.3f, \"p50Millis\": %.3f,"
+					+ " \"p99Millis\": %.3f, \"maxMillis\": %.3f, \"pixels\": %d, \"megapixelsPerSecond\": %.3f,"
+					+ " \"allocatedBytes\": %d}",
+					stage.getName(), stage.getCount(), stage.getTotalMillis(), stage.getP50Millis(),
+					stage.getP99Millis(), stage.getMaxMillis(), stage.getPixels(), stage.getMegapixelsPerSecond(),
+					stage.getAllocatedBytes()));
+			separator = ",\n";
+		}
+		json.append("\n  ],\n  \"queues\": [");
+		separator = "\n";
+		for (QueueStats queue : getQueues()) {
+			json.append(separator).append(String.format(Locale.ROOT,
+					"    {\"name\": \"%s\", \"samples\": %d, \"p50Depth\": %d, \"p99Depth\": %d, \"maxDepth\": %d}",
+					queue.getName(), queue.getSamples(), queue.getP50Depth(), queue.getP99Depth(), queue.getMaxDepth()));
+			separator = ",\n";
+		}
+		return json.append("\n  ]\n}\n").toString();
+	}
+
+	/**
+	 * @return all the metrics as CSV, with one row per stage or queue.  Stage times are in
+	 *     milliseconds, and the p50, p99 and max of a queue are its depth.
+	 */
+	@Override
+	public String getCsv() {
+		StringBuilder csv = new StringBuilder("kind,name,count,total,p50,p99,max,pixels,allocated_bytes\n");
+		for (StageStats stage : getStages()) {
+			csv.append(String.format(Locale.ROOT, "stage,%s,%d,%.3f,%.3f,%.3f,%.3f,%d,%d%n",
+					stage.getName(), stage.getCount(), stage.getTotalMillis(), stage.getP50Millis(),
+					stage.getP99Millis(), stage.getMaxMillis(), stage.getPixels(), stage.getAllocatedBytes()));
+		}
+		for (QueueStats queue : getQueues()) {
+			csv.append(String.format(Locale.ROOT, "queue,%s,%d,,%d,%d,%d,,%n",
+					queue.getName(), queue.getSamples(), queue.getP50Depth(), queue.getP99Depth(), queue.getMaxDepth()));
+		}
+		return csv.toString();
+	}
+
+	/**
+	 * Saves the metrics to a file, as CSV if its name ends with ".csv" and as JSON otherwise.
+	 *
+	 * @param file the report file, which is replaced if it exists.
+	 * @throws IOException
+	 */
+	public void writeReport(Path file) throws IOException {
+		final boolean csv = file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv");
+		Files.write(file, (csv ? getCsv() : getJson()).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** Prints a table of the stage metrics. */
+	public void printStats() {
+		for (StageStats stage : getStages()) {
+			System.out.format("  %-20s %5d runs, p50 %9.3f ms, p99 %9.3f ms, max %9.3f ms, %8.2f MP/s, %6.1f MB allocated.%n",
+					stage.getName(), stage.getCount(), stage.getP50Millis(), stage.getP99Millis(), stage.getMaxMillis(),
+					stage.getMegapixelsPerSecond(), stage.getAllocatedBytes() / (1024.0 * 1024.0));
+		}
+	}
+
+	/**
+	 * Makes these metrics readable through JMX, as <code>MBEAN_NAME</code>.
+	 * If other metrics are already registered under that name, they are replaced.
+	 *
+	 * @throws JMException if the platform MBean server refuses them.
+	 */
+	public void registerMBean() throws JMException {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName(MBEAN_NAME);
+		try {
+			server.registerMBean(this, name);
+		} catch (InstanceAlreadyExistsException e) {
+			server.unregisterMBean(name);
+			server.registerMBean(this, name);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.celanim.cartoonify;
+
+import java.util.List;
+
+/**
+ * The JMX view of the processing metrics (see <code>Metrics</code>), so that a running
+ * batch can be watched with tools such as JConsole or VisualVM.
+ */
+public interface MetricsMXBean {
+
+	/** @return the latency, pixels and allocations of each stage. */
+	List<StageStats> getStages();
+
+	/** @return the depths of each queue. */
+	List<QueueStats> getQueues();
+
+	/** @return all the metrics as a JSON object. */
+	String getJson();
+
+	/** @return all the metrics as CSV. */
+	String getCsv();
+
+	/** Forgets everything recorded so far. */
+	void reset();
+}
@@ -0,0 +1,333 @@
+package com.celanim.cartoonify;
+
+import static org.jocl.CL.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_command_queue;
+import org.jocl.cl_context;
+import org.jocl.cl_context_properties;
+import org.jocl.cl_device_id;
+import org.jocl.cl_kernel;
+import org.jocl.cl_mem;
+import org.jocl.cl_platform_id;
+import org.jocl.cl_program;
+
+/**
+ * An OpenCL context, command queue, program, kernels and device buffers that are set up
+ * once and then reused for every photo.
+ *
+ * The kernel.cl program is built once per session.  Its compiled binary is also saved in a
+ * cache directory, under a hash of the source and of the device and driver versions, so
+ * later sessions (including later runs of the program) load the binary instead of
+ * compiling the source again.  The device buffers are kept while the photos are the same
+ * size, and are only reallocated when a photo of a different size comes along.
+ *
+ * The four kernels run one after the other on a single in-order queue.
+ * A session must only be used by one thread at a time.  Call <code>close</code> to release it.
+ */
+public final class OpenCLSession implements AutoCloseable {
+
+	/** The kernel source, as a class path resource. */
+	static final String KERNEL_SOURCE = "/com/celanim/cartoonify/kernel.cl";
+
+	/** Where compiled programs are cached, unless another directory is given. */
+	public static final Path DEFAULT_BINARY_CACHE = Paths.get(System.getProperty("java.io.tmpdir"), "cartoonify-opencl");
+
+	private final cl_device_id device;
+	private cl_context context;
+	private cl_command_queue queue;
+	private cl_program program;
+	private cl_kernel blurKernel;
+	private cl_kernel edgeKernel;
+	private cl_kernel colourKernel;
+	private cl_kernel mergeKernel;
+
+	/** True if the program was loaded from a cached binary, rather than compiled from the source. */
+	private boolean cachedBinary = false;
+
+	/** The number of pixels that the device buffers hold.  0 means there are none yet. */
+	private int bufferPixels = 0;
+	private cl_mem input;
+	private cl_mem blurred;
+	private cl_mem edges;
+	private cl_mem colours;
+	private cl_mem merged;
+
+	/** @return true if the OpenCL library can be loaded and there is at least one platform. */
+	public static boolean isAvailable() {
+		try {
+			CL.setExceptionsEnabled(true);
+			return JOCLUtil.getAllPlatforms().length > 0;
+		} catch (LinkageError | CLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Opens a session on the first GPU of any platform, or on the first device of any
+	 * type (eg. a CPU runtime such as POCL) if there is no GPU.
+	 *
+	 * @param binaryCache the directory that compiled programs are cached in, or null for no caching.
+	 * @return the new session.
+	 * @throws CLException if there is no OpenCL device, or the program cannot be built.
+	 */
+	public static OpenCLSession open(Path binaryCache) {
+		CL.setExceptionsEnabled(true);
+		final cl_platform_id[] platforms = JOCLUtil.getAllPlatforms();
+		for (long deviceType : new long[] {CL_DEVICE_TYPE_GPU, CL_DEVICE_TYPE_ALL}) {
+			for (cl_platform_id platform : platforms) {
+				final cl_device_id[] devices;
+				try {
+					devices = JOCLUtil.getAllDevices(platform, deviceType);
+				} catch (CLException e) {
+					continue; // no devices of this type on this platform.
+				}
+				if (devices.length > 0) {
+					System.out.println("Selected CLPlatform: " + JOCLUtil.getPlatformInfoString(platform, CL_PLATFORM_NAME));
+					System.out.println("Selected CLDevice: " + JOCLUtil.getDeviceInfoString(devices[0], CL_DEVICE_NAME)
+							+ "\nDevice Version:" + JOCLUtil.getDeviceInfoString(devices[0], CL_DEVICE_VERSION));
+					return new OpenCLSession(platform, devices[0], binaryCache);
+				}
+			}
+		}
+		throw new CLException("No OpenCL devices found");
+	}
+
+	private OpenCLSession(cl_platform_id platform, cl_device_id device, Path binaryCache) {
+		this.device = device;
+		try {
+			cl_context_properties contextProperties = new cl_context_properties();
+			contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
+			context = clCreateContext(contextProperties, 1, new cl_device_id[] { device }, null, null, null);
+			@SuppressWarnings("deprecation")
+			cl_command_queue newQueue = clCreateCommandQueue(context, device, 0, null);
+			queue = newQueue;
+			program = buildProgram(JOCLUtil.readResourceToString(KERNEL_SOURCE), binaryCache);
+			blurKernel = clCreateKernel(program, "gaussianBlur", null);
+			edgeKernel = clCreateKernel(program, "sobelEdgeDetect", null);
+			colourKernel = clCreateKernel(program, "reduceColours", null);
+			mergeKernel = clCreateKernel(program, "mergeMask", null);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param source the program source.
+	 * @param deviceDescription the device name, device version and driver version.
+	 * @return the name of the cached binary of that source on that device.
+	 */
+	static String binaryName(String source, String deviceDescription) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			sha.update(source.getBytes(StandardCharsets.UTF_8));
+			sha.update((byte) 0);
+			sha.update(deviceDescription.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder("kernel-");
+			for (byte b : sha.digest()) {
+				name.append(String.format("%02x", b));
+			}
+			return name.append(".bin").toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is always available", e);
+		}
+	}
+
+	/**
+	 * Loads the program from its cached binary if there is one, otherwise compiles it and caches it.
+	 */
+	private cl_program buildProgram(String source, Path binaryCache) {
+		final Path binaryFile = binaryCache == null ? null : binaryCache.resolve(binaryName(source,
+				JOCLUtil.getDeviceInfoString(device, CL_DEVICE_NAME) + "\n"
+				+ JOCLUtil.getDeviceInfoString(device, CL_DEVICE_VERSION) + "\n"
+				+ JOCLUtil.getDeviceInfoString(device, CL_DRIVER_VERSION)));
+		if (binaryFile != null && Files.isReadable(binaryFile)) {
+			cl_program cached = null;
+			try {
+				final byte[] binary = Files.readAllBytes(binaryFile);
+				cached = clCreateProgramWithBinary(context, 1, new cl_device_id[] { device },
+						new long[] { binary.length }, new byte[][] { binary }, null, null);
+				clBuildProgram(cached, 0, null, null, null, null);
+				cachedBinary = true;
+				return cached;
+			} catch (IOException | CLException e) {
+				// an unreadable or stale binary: compile the source again, and replace the binary.
+				if (cached != null) {
+					clReleaseProgram(cached);
+				}
+			}
+		}
+		final cl_program built = clCreateProgramWithSource(context, 1, new String[] { source }, null, null);
+		try {
+			clBuildProgram(built, 0, null, null, null, null);
+		} catch (CLException e) {
+			final String log = buildLog(built);
+			clReleaseProgram(built);
+			throw new CLException(e.getMessage() + "\n" + log, e, e.getStatus());
+		}
+		if (binaryFile != null) {
+			saveBinary(built, binaryFile);
+		}
+		return built;
+	}
+
+	/** @return the compiler messages for the program. */
+	private String buildLog(cl_program failed) {
+		long[] size = new long[1];
+		clGetProgramBuildInfo(failed, device, CL_PROGRAM_BUILD_LOG, 0, null, size);
+		byte[] log = new byte[(int) size[0]];
+		clGetProgramBuildInfo(failed, device, CL_PROGRAM_BUILD_LOG, log.length, Pointer.to(log), null);
+		return new String(log, 0, Math.max(0, log.length - 1), StandardCharsets.UTF_8);
+	}
+
+	/** Saves the compiled binary of a program.  A failure is only reported, since the program still works. */
+	private static void saveBinary(cl_program built, Path binaryFile) {
+		long[] size = new long[1];
+		clGetProgramInfo(built, CL_PROGRAM_BINARY_SIZES, Sizeof.size_t, Pointer.to(size), null);
+		byte[] binary = new byte[(int) size[0]];
+		clGetProgramInfo(built, CL_PROGRAM_BINARIES, Sizeof.POINTER, Pointer.to(Pointer.to(binary)), null);
+		try {
+			Files.createDirectories(binaryFile.getParent());
+			// written under a temporary name first, so other processes never see half a binary.
+			Path temp = Files.createTempFile(binaryFile.getParent(), "kernel", ".tmp");
+			Files.write(temp, binary);
+			Files.move(temp, binaryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Cannot cache the OpenCL program in " + binaryFile + ": " + e);
+		}
+	}
+
+	/** @return true if the program was loaded from a cached binary, rather than compiled from the source. */
+	public boolean isCachedBinary() {
+		return cachedBinary;
+	}
+
+	/** @return the number of pixels that the device buffers currently hold. */
+	int bufferPixels() {
+		return bufferPixels;
+	}
+
+	/** Makes sure that the device buffers hold the given number of pixels, and points the kernels at them. */
+	private void ensureBuffers(int pixels) {
+		if (pixels == bufferPixels) {
+			return;
+		}
+		releaseBuffers();
+		final long bytes = (long) Sizeof.cl_int * pixels;
+		input = clCreateBuffer(context, CL_MEM_READ_ONLY, bytes, null, null);
+		blurred = clCreateBuffer(context, CL_MEM_READ_WRITE, bytes, null, null);
+		edges = clCreateBuffer(context, CL_MEM_READ_WRITE, bytes, null, null);
+		colours = clCreateBuffer(context, CL_MEM_READ_WRITE, bytes, null, null);
+		merged = clCreateBuffer(context, CL_MEM_WRITE_ONLY, bytes, null, null);
+		bufferPixels = pixels;
+
+		clSetKernelArg(blurKernel, 2, Sizeof.cl_mem, Pointer.to(input));
+		clSetKernelArg(blurKernel, 3, Sizeof.cl_mem, Pointer.to(blurred));
+		clSetKernelArg(edgeKernel, 3, Sizeof.cl_mem, Pointer.to(blurred));
+		clSetKernelArg(edgeKernel, 4, Sizeof.cl_mem, Pointer.to(edges));
+		clSetKernelArg(colourKernel, 0, Sizeof.cl_mem, Pointer.to(input));
+		clSetKernelArg(colourKernel, 1, Sizeof.cl_mem, Pointer.to(colours));
+		clSetKernelArg(mergeKernel, 0, Sizeof.cl_mem, Pointer.to(edges));
+		clSetKernelArg(mergeKernel, 1, Sizeof.cl_mem, Pointer.to(colours));
+		clSetKernelArg(mergeKernel, 2, Sizeof.cl_mem, Pointer.to(merged));
+	}
+
+	/**
+	 * Copies a photo to the device, runs all the kernels on it, and waits until they finish.
+	 * The results stay on the device until <code>readResults</code> is called.
+	 *
+	 * @param photo width * height pixels.
+	 * @param width
+	 * @param height
+	 * @param edgeThreshold as for <code>Cartoonify.setEdgeThreshold</code>.
+	 */
+	public void run(int[] photo, int width, int height, int edgeThreshold) {
+		final int pixels = width * height;
+		ensureBuffers(pixels);
+		clEnqueueWriteBuffer(queue, input, CL_TRUE, 0, (long) Sizeof.cl_int * pixels, Pointer.to(photo), 0, null, null);
+		final Pointer widthArg = Pointer.to(new int[] { width });
+		final Pointer heightArg = Pointer.to(new int[] { height });
+		clSetKernelArg(blurKernel, 0, Sizeof.cl_int, widthArg);
+		clSetKernelArg(blurKernel, 1, Sizeof.cl_int, heightArg);
+		clSetKernelArg(edgeKernel, 0, Sizeof.cl_int, widthArg);
+		clSetKernelArg(edgeKernel, 1, Sizeof.cl_int, heightArg);
+		clSetKernelArg(edgeKernel, 2, Sizeof.cl_int, Pointer.to(new int[] { edgeThreshold }));
+
+		// one work item per pixel.  The runtime chooses the work-group size, since the number
+		// of pixels need not be a multiple of any fixed size.
+		final long[] globalWorkSize = new long[] { pixels };
+		clEnqueueNDRangeKernel(queue, blurKernel, 1, null, globalWorkSize, null, 0, null, null);
+		clEnqueueNDRangeKernel(queue, edgeKernel, 1, null, globalWorkSize, null, 0, null, null);
+		clEnqueueNDRangeKernel(queue, colourKernel, 1, null, globalWorkSize, null, 0, null, null);
+		clEnqueueNDRangeKernel(queue, mergeKernel, 1, null, globalWorkSize, null, 0, null, null);
+		clFinish(queue);
+	}
+
+	/**
+	 * Reads the images made by the last <code>run</code> back from the device.
+	 *
+	 * @param blurredPixels receives the blurred photo, or null if it is not wanted.
+	 * @param edgePixels receives the black and white edges, or null if they are not wanted.
+	 * @param colourPixels receives the photo with fewer colours, or null if it is not wanted.
+	 * @param cartoon receives the final cartoon.
+	 */
+	public void readResults(int[] blurredPixels, int[] edgePixels, int[] colourPixels, int[] cartoon) {
+		read(blurred, blurredPixels);
+		read(edges, edgePixels);
+		read(colours, colourPixels);
+		read(merged, cartoon);
+	}
+
+	private void read(cl_mem buffer, int[] pixels) {
+		if (pixels != null) {
+			clEnqueueReadBuffer(queue, buffer, CL_TRUE, 0, (long) Sizeof.cl_int * bufferPixels, Pointer.to(pixels), 0, null, null);
+		}
+	}
+
+	private void releaseBuffers() {
+		for (cl_mem buffer : new cl_mem[] { input, blurred, edges, colours, merged }) {
+			if (buffer != null) {
+				clReleaseMemObject(buffer);
+			}
+		}
+		input = blurred = edges = colours = merged = null;
+		bufferPixels = 0;
+	}
+
+	/** Releases the buffers, kernels, program, queue and context.  The session cannot be used afterwards. */
+	@Override
+	public void close() {
+		releaseBuffers();
+		for (cl_kernel kernel : new cl_kernel[] { blurKernel, edgeKernel, colourKernel, mergeKernel }) {
+			if (kernel != null) {
+				clReleaseKernel(kernel);
+			}
+		}
+		blurKernel = edgeKernel = colourKernel = mergeKernel = null;
+		if (program != null) {
+			clReleaseProgram(program);
+			program = null;
+		}
+		if (queue != null) {
+			clReleaseCommandQueue(queue);
+			queue = null;
+		}
+		if (context != null) {
+			clReleaseContext(context);
+			context = null;
+		}
+	}
+}
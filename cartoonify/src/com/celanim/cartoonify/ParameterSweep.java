@@ -0,0 +1,99 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+
+/**
+ * Makes a grid of cartoons of one photo, one for each combination of several
+ * edge thresholds and several numbers of colours.
+ *
+ * The blurred image and its Sobel gradient magnitudes do not depend on either setting,
+ * so they are calculated only once.  Each number of colours then needs one quantizing
+ * pass over the original photo, and each cartoon is a single pass that compares the
+ * gradient magnitudes with its threshold and merges the edges onto the quantized colours.
+ *
+ * Each cartoon is exactly the same as a separate run with those settings.
+ * For example, "foo.jpg" with threshold 128 and 3 colours is saved as "foo_cartoon_e128_c3.jpg".
+ */
+final class ParameterSweep {
+
+	private final Cartoonify cart;
+	private final int[] edgeThresholds;
+	private final int[] numColours;
+
+	/**
+	 * @param cart the processor to use.  Its stack of images must be empty.
+	 * @param edgeThresholds the edge thresholds to try.
+	 * @param numColours the numbers of colours per channel to try.
+	 */
+	ParameterSweep(Cartoonify cart, int[] edgeThresholds, int[] numColours) {
+		this.cart = cart;
+		this.edgeThresholds = edgeThresholds;
+		this.numColours = numColours;
+	}
+
+	/**
+	 * @param name path to the input photo.
+	 * @param edgeThreshold an edge threshold.
+	 * @param colours a number of colours per channel.
+	 * @return the name of the cartoon with those settings.
+	 */
+	static String outputName(String name, int edgeThreshold, int colours) {
+		return Cartoonify.outputName(name, "_cartoon_e" + edgeThreshold + "_c" + colours);
+	}
+
+	/**
+	 * Loads one photo, and saves all the cartoons of it.
+	 *
+	 * @param name path to the photo, including a known extension (e.g. ".jpg").
+	 * @return the number of milliseconds spent processing (excluding loading and saving).
+	 * @throws IOException
+	 */
+	long process(String name) throws IOException {
+		cart.loadPhoto(name);
+		final int width = cart.width();
+		final int height = cart.height();
+		final int[] original = cart.currentImage();
+		final PixelBufferPool pool = cart.getPixelPool();
+
+		long start = System.currentTimeMillis();
+		cart.gaussianBlur();
+		final int[] magnitudes = cart.gradientMagnitudes();
+		final int[] quantized = pool.acquire(width * height);
+		final int[] cartoon = pool.acquire(width * height);
+		// the buffers go back to the pool even if a cartoon cannot be saved.
+		try {
+			long processingMillis = System.currentTimeMillis() - start;
+			final int black = cart.black;
+			for (int colours : numColours) {
+				start = System.currentTimeMillis();
+				final Metrics.Span reduceSpan = cart.startStage("reduceColours", cart.getEdgeThreshold(), colours);
+				final ColourQuantizer quantizer = new ColourQuantizer(colours);
+				cart.bands().forEach(height, (yStart, yEnd) ->
+					cart.pixelStages().reduceColours(original, quantized, yStart * width, yEnd * width, quantizer));
+				reduceSpan.stop((long) width * height);
+				processingMillis += System.currentTimeMillis() - start;
+				for (int edgeThreshold : edgeThresholds) {
+					final long time0 = System.currentTimeMillis();
+					final Metrics.Span thresholdSpan = cart.startStage("sweepThreshold", edgeThreshold, colours);
+					cart.bands().forEach(height, (yStart, yEnd) -> {
+						for (int pos = yStart * width; pos < yEnd * width; pos++) {
+							cartoon[pos] = magnitudes[pos] >= edgeThreshold ? black : quantized[pos];
+						}
+					});
+					thresholdSpan.stop((long) width * height);
+					final long time1 = System.currentTimeMillis();
+					processingMillis += time1 - time0;
+					final String newName = outputName(name, edgeThreshold, colours);
+					System.out.println("Done " + name + " -> " + newName + " in " + (time1 - time0) / 1e3 + " secs.");
+					cart.writePhoto(new Photo(newName, width, height, cartoon));
+				}
+			}
+			return processingMillis;
+		} finally {
+			pool.release(magnitudes);
+			pool.release(quantized);
+			pool.release(cartoon);
+			cart.clear();
+		}
+	}
+}
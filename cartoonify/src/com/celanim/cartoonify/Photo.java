@@ -0,0 +1,214 @@
+package com.celanim.cartoonify;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A decoded photo: its file name, its size, and its RGB pixels in row-major order.
+ *
+ * This is how photos are passed between the threads that load, process and save them,
+ * so that decoding and encoding can happen outside of any Cartoonify object.
+ */
+public final class Photo {
+
+	/** The positions of the red, green and blue bits in each pixel. */
+	private static final int[] RGB_MASKS = {0x00FF0000, 0x0000FF00, 0x000000FF};
+
+	/** 0RGB pixels packed into an int, as for TYPE_INT_RGB. */
+	private static final DirectColorModel RGB = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+
+	/** Used by <code>write()</code>. */
+	private static final PhotoWriters DEFAULT_WRITERS = new PhotoWriters();
+
+	/** The file that this photo was read from, or will be written to. */
+	private final String name;
+
+	private final int width;
+
+	private final int height;
+
+	/** The RGB pixels, in row-major order.  Not copied. */
+	private final int[] pixels;
+
+	/**
+	 * @param name the file name, whose extension (eg. .jpg) determines the file type.
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 * @param pixels width * height RGB pixels.  These are not copied.
+	 */
+	public Photo(String name, int width, int height, int[] pixels) {
+		assert pixels.length == width * height;
+		this.name = name;
+		this.width = width;
+		this.height = height;
+		this.pixels = pixels;
+	}
+
+	/** @return the file that this photo was read from, or will be written to. */
+	public String name() {
+		return name;
+	}
+
+	/** @return the width of the image. */
+	public int width() {
+		return width;
+	}
+
+	/** @return the height of the image. */
+	public int height() {
+		return height;
+	}
+
+	/** @return the RGB pixels, in row-major order.  This is not a copy. */
+	public int[] pixels() {
+		return pixels;
+	}
+
+	/**
+	 * Reads and decodes a photo file.  Any alpha channel is removed.
+	 * Raw pixel files (see <code>RawPixels</code>) are read without decoding.
+	 *
+	 * @param filename
+	 * @return the decoded photo.
+	 * @throws IOException if the image cannot be read.
+	 */
+	public static Photo read(String filename) throws IOException {
+		if (RawPixels.isRaw(filename)) {
+			return RawPixels.read(filename);
+		}
+		BufferedImage image = ImageIO.read(new File(filename));
+		if (image == null) {
+			throw new RuntimeException("Invalid image file: " + filename);
+		}
+		return new Photo(filename, image.getWidth(), image.getHeight(), rgbPixels(image));
+	}
+
+	/**
+	 * Gets the 0RGB pixels of an image, without any alpha channel.
+	 *
+	 * For the common image layouts (packed RGB or ARGB ints, and interleaved RGB, BGR
+	 * or ABGR bytes), this reads the raster's DataBuffer directly, in one pass.
+	 * Other layouts go through <code>getRGB</code>, which converts each pixel via
+	 * the ColorModel.  Either way, the result is the same as <code>getRGB</code>.
+	 *
+	 * @param image a decoded image.
+	 * @return width * height 0RGB pixels, in row-major order.
+	 */
+	static int[] rgbPixels(BufferedImage image) {
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final int[] pixels = new int[width * height];
+		final Raster raster = image.getRaster();
+		final ColorModel cm = image.getColorModel();
+		// premultiplied or non-sRGB pixels (such as linear gray) need the ColorModel conversion.
+		final boolean plainRGB = cm.getColorSpace().isCS_sRGB() && !cm.isAlphaPremultiplied()
+				&& cm.getNumColorComponents() == 3 && hasEightBitComponents(cm);
+		if (plainRGB && cm instanceof DirectColorModel
+				&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+				&& raster.getDataBuffer() instanceof DataBufferInt
+				&& isRGBMasks((DirectColorModel) cm)) {
+			unpackInts(raster, pixels, width, height);
+		} else if (plainRGB && cm instanceof ComponentColorModel
+				&& raster.getSampleModel() instanceof ComponentSampleModel
+				&& raster.getDataBuffer() instanceof DataBufferByte
+				&& raster.getDataBuffer().getNumBanks() == 1) {
+			unpackBytes(raster, pixels, width, height);
+		} else {
+			image.getRGB(0, 0, width, height, pixels, 0, width);
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] &= 0x00FFFFFF; // remove any alpha channel, since we will use RGB only
+			}
+		}
+		return pixels;
+	}
+
+	private static boolean hasEightBitComponents(ColorModel cm) {
+		for (int size : cm.getComponentSize()) {
+			if (size != 8) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return true if the colour model has 8-bit red, green and blue in the usual 0RGB positions. */
+	private static boolean isRGBMasks(DirectColorModel cm) {
+		return cm.getRedMask() == 0x00FF0000 && cm.getGreenMask() == 0x0000FF00 && cm.getBlueMask() == 0x000000FF;
+	}
+
+	/** Copies packed RGB or ARGB ints, removing any alpha channel. */
+	private static void unpackInts(Raster raster, int[] pixels, int width, int height) {
+		final SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+		final DataBuffer buffer = raster.getDataBuffer();
+		final int[] data = ((DataBufferInt) buffer).getData();
+		final int x0 = raster.getMinX() - raster.getSampleModelTranslateX();
+		final int y0 = raster.getMinY() - raster.getSampleModelTranslateY();
+		for (int y = 0; y < height; y++) {
+			int in = buffer.getOffset() + sm.getOffset(x0, y0 + y);
+			int out = y * width;
+			for (int x = 0; x < width; x++) {
+				pixels[out++] = data[in++] & 0x00FFFFFF;
+			}
+		}
+	}
+
+	/** Packs interleaved 8-bit colour samples (in any band order, with or without alpha) into 0RGB ints. */
+	private static void unpackBytes(Raster raster, int[] pixels, int width, int height) {
+		final ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		final DataBuffer buffer = raster.getDataBuffer();
+		final byte[] data = ((DataBufferByte) buffer).getData();
+		final int stride = sm.getScanlineStride();
+		final int pixelStride = sm.getPixelStride();
+		final int[] bandOffsets = sm.getBandOffsets();
+		final int x0 = raster.getMinX() - raster.getSampleModelTranslateX();
+		final int y0 = raster.getMinY() - raster.getSampleModelTranslateY();
+		for (int y = 0; y < height; y++) {
+			final int rowStart = buffer.getOffset() + (y0 + y) * stride + x0 * pixelStride;
+			int r = rowStart + bandOffsets[0];
+			int g = rowStart + bandOffsets[1];
+			int b = rowStart + bandOffsets[2];
+			int out = y * width;
+			for (int x = 0; x < width; x++) {
+				pixels[out++] = (data[r] & 0xFF) << 16 | (data[g] & 0xFF) << 8 | (data[b] & 0xFF);
+				r += pixelStride;
+				g += pixelStride;
+				b += pixelStride;
+			}
+		}
+	}
+
+	/**
+	 * Wraps the pixels of this photo in a BufferedImage, without copying them.
+	 * Changes to the image change the pixels of this photo.
+	 *
+	 * @return a 0RGB image that shares the pixels of this photo.
+	 */
+	public BufferedImage image() {
+		DataBufferInt buffer = new DataBufferInt(pixels, pixels.length);
+		WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width, RGB_MASKS, null);
+		return new BufferedImage(RGB, raster, false, null);
+	}
+
+	/**
+	 * Encodes and writes this photo to its file, using the default quality settings.
+	 * The extension of the name (eg. .jpg) determines the output file type.
+	 *
+	 * @throws IOException
+	 */
+	public void write() throws IOException {
+		DEFAULT_WRITERS.write(this);
+	}
+}
@@ -0,0 +1,267 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Overlaps the loading, processing and saving of a batch of photos.
+ *
+ * Decoder threads read the next few photos ahead of time, worker threads process them,
+ * and encoder threads save the results.  The stages are connected by bounded queues,
+ * so at most <code>queueSize</code> decoded photos (and the same number of finished
+ * results) wait in memory at once: a stage that gets too far ahead blocks until the
+ * next stage catches up.  The time each stage spends blocked on each queue is recorded,
+ * and so is the depth of each queue after every put (see <code>Metrics.queue</code>).
+ *
+ * Each worker times only its processing, exactly as <code>Cartoonify.processPhoto</code> does.
+ * Photos that are already in the result cache are copied by the decoders and never queued.
+ */
+final class PhotoPipeline {
+
+	/** Put on the decoded queue to tell a worker that there are no more photos. */
+	private static final Photo NO_MORE_PHOTOS = new Photo("", 0, 0, new int[0]);
+
+	/** Put on the output queue to tell an encoder that there are no more results. */
+	private static final List<Photo> NO_MORE_OUTPUTS = new ArrayList<>();
+
+	/** Records the results of each photo. */
+	private final BatchProcessor batch;
+
+	/** The settings that each worker's Cartoonify is copied from. */
+	private final Cartoonify settings;
+
+	private final int decoders;
+	private final int workers;
+	private final int encoders;
+
+	/** Decoded photos, waiting to be processed. */
+	private final BlockingQueue<Photo> decoded;
+
+	/** Processed results, waiting to be saved. */
+	private final BlockingQueue<List<Photo>> outputs;
+
+	/** The result cache keys of photos that were not in the cache, keyed by the name of their cartoon. */
+	private final Map<String, String> cacheKeys = new ConcurrentHashMap<>();
+
+	/** The depths of the decoded queue. */
+	private final Histogram decodedDepth;
+
+	/** The depths of the output queue. */
+	private final Histogram outputDepth;
+
+	/** Nanoseconds that decoders spent waiting for room in the decoded queue. */
+	private final AtomicLong decodedPutNanos = new AtomicLong();
+
+	/** Nanoseconds that workers spent waiting for a decoded photo. */
+	private final AtomicLong decodedTakeNanos = new AtomicLong();
+
+	/** Nanoseconds that workers spent waiting for room in the output queue. */
+	private final AtomicLong outputPutNanos = new AtomicLong();
+
+	/** Nanoseconds that encoders spent waiting for a result to save. */
+	private final AtomicLong outputTakeNanos = new AtomicLong();
+
+	/**
+	 * @param batch records the results of each photo.
+	 * @param settings the Cartoonify whose settings every worker should use.
+	 * @param decoders the number of decoding threads.
+	 * @param workers the number of processing threads.
+	 * @param encoders the number of encoding threads.
+	 * @param queueSize the maximum number of photos waiting in each queue.
+	 */
+	PhotoPipeline(BatchProcessor batch, Cartoonify settings, int decoders, int workers, int encoders, int queueSize) {
+		this.batch = batch;
+		this.settings = settings;
+		this.decoders = decoders;
+		this.workers = workers;
+		this.encoders = encoders;
+		this.decoded = new ArrayBlockingQueue<>(queueSize);
+		this.outputs = new ArrayBlockingQueue<>(queueSize);
+		this.decodedDepth = settings.getMetrics().queue("decoded");
+		this.outputDepth = settings.getMetrics().queue("outputs");
+	}
+
+	/**
+	 * Loads, processes and saves all the given photos, and waits until they are finished.
+	 *
+	 * @param photos the photo file names.
+	 * @throws IOException if any photo cannot be loaded or saved.
+	 */
+	void run(List<String> photos) throws IOException {
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger decodersLeft = new AtomicInteger(decoders);
+		final AtomicInteger workersLeft = new AtomicInteger(workers);
+		ExecutorService executor = Executors.newFixedThreadPool(decoders + workers + encoders);
+		// a failed decoder, worker or encoder is taken as soon as it ends, even while the
+		// other stages are still blocked on their queues.
+		CompletionService<Void> threads = new ExecutorCompletionService<>(executor);
+		try {
+			for (int i = 0; i < decoders; i++) {
+				threads.submit(() -> {
+					decode(photos, next, decodersLeft);
+					return null;
+				});
+			}
+			for (int i = 0; i < workers; i++) {
+				threads.submit(() -> {
+					process(workersLeft);
+					return null;
+				});
+			}
+			for (int i = 0; i < encoders; i++) {
+				threads.submit(() -> {
+					encode();
+					return null;
+				});
+			}
+			for (int i = 0; i < decoders + workers + encoders; i++) {
+				threads.take().get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("photo pipeline was interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			// if one stage failed, this stops the others from waiting for it forever.
+			executor.shutdownNow();
+			BatchProcessor.awaitWorkers(executor);
+		}
+	}
+
+	/** A decoder thread: reads photos until there are none left. */
+	private void decode(List<String> photos, AtomicInteger next, AtomicInteger decodersLeft)
+			throws IOException, InterruptedException {
+		int photo;
+		while ((photo = next.getAndIncrement()) < photos.size()) {
+			final String name = photos.get(photo);
+			if (name.lastIndexOf(".") <= 0) {
+				System.err.println("Skipping unknown kind of file: " + name);
+				batch.record(0L, 0L);
+				continue;
+			}
+			final String cacheKey = settings.resultCacheKey(name);
+			if (cacheKey != null) {
+				if (settings.fetchCachedResult(name, cacheKey)) {
+					batch.record(0L, 0L);
+					continue;
+				}
+				cacheKeys.put(Cartoonify.outputName(name, "_cartoon"), cacheKey);
+			}
+			put(decoded, settings.readPhoto(name), decodedPutNanos, decodedDepth);
+		}
+		// a stage that fails sends no end markers, since run() then interrupts every thread.
+		if (decodersLeft.decrementAndGet() == 0) {
+			for (int i = 0; i < workers; i++) {
+				put(decoded, NO_MORE_PHOTOS, decodedPutNanos, decodedDepth);
+			}
+		}
+	}
+
+	/** A worker thread: processes decoded photos until there are none left. */
+	private void process(AtomicInteger workersLeft) throws IOException, InterruptedException {
+		final Cartoonify cart = new Cartoonify(settings);
+		try {
+			Photo photo;
+			while ((photo = take(decoded, decodedTakeNanos)) != NO_MORE_PHOTOS) {
+				cart.pushPhoto(photo);
+				final long time = cart.processCurrentPhoto(photo.name());
+				final List<Photo> results = cart.takeOutputs(photo.name());
+				cart.clear();
+				batch.record(time, (long) photo.width() * photo.height());
+				put(outputs, results, outputPutNanos, outputDepth);
+			}
+		} finally {
+			cart.releaseOpenCL();
+		}
+		if (workersLeft.decrementAndGet() == 0) {
+			for (int i = 0; i < encoders; i++) {
+				put(outputs, NO_MORE_OUTPUTS, outputPutNanos, outputDepth);
+			}
+		}
+	}
+
+	/** An encoder thread: saves results until there are none left, then recycles their pixels. */
+	private void encode() throws IOException, InterruptedException {
+		final PixelBufferPool pool = settings.getPixelPool();
+		List<Photo> results;
+		while ((results = take(outputs, outputTakeNanos)) != NO_MORE_OUTPUTS) {
+			for (Photo result : results) {
+				settings.writePhoto(result);
+				pool.release(result.pixels());
+				final String cacheKey = cacheKeys.remove(result.name());
+				if (cacheKey != null) {
+					settings.getResultCache().store(cacheKey, result.name());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Puts an item on a queue, adding any time spent waiting for room to the given counter,
+	 * and then records the depth of the queue.
+	 */
+	private static <T> void put(BlockingQueue<T> queue, T item, AtomicLong blockedNanos, Histogram depths)
+			throws InterruptedException {
+		if (!queue.offer(item)) {
+			final long start = System.nanoTime();
+			queue.put(item);
+			blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+		depths.record(queue.size());
+	}
+
+	/** Takes an item from a queue, adding any time spent waiting for one to the given counter. */
+	private static <T> T take(BlockingQueue<T> queue, AtomicLong blockedNanos) throws InterruptedException {
+		T item = queue.poll();
+		if (item == null) {
+			final long start = System.nanoTime();
+			item = queue.take();
+			blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+		return item;
+	}
+
+	/** @return seconds that decoders spent waiting for room in the decoded queue. */
+	double decodedPutSeconds() {
+		return decodedPutNanos.get() / 1e9;
+	}
+
+	/** @return seconds that workers spent waiting for a decoded photo. */
+	double decodedTakeSeconds() {
+		return decodedTakeNanos.get() / 1e9;
+	}
+
+	/** @return seconds that workers spent waiting for room in the output queue. */
+	double outputPutSeconds() {
+		return outputPutNanos.get() / 1e9;
+	}
+
+	/** @return seconds that encoders spent waiting for a result to save. */
+	double outputTakeSeconds() {
+		return outputTakeNanos.get() / 1e9;
+	}
+
+	/** Prints how long each stage was blocked on each queue. */
+	void printQueueTimes() {
+		System.out.format("Blocked on decoded queue: decoders %.3f secs, workers %.3f secs.%n",
+				decodedPutSeconds(), decodedTakeSeconds());
+		System.out.format("Blocked on output queue: workers %.3f secs, encoders %.3f secs.%n",
+				outputPutSeconds(), outputTakeSeconds());
+	}
+}
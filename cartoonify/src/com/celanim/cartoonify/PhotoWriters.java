@@ -0,0 +1,188 @@
+package com.celanim.cartoonify;
+
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes images to files, reusing one ImageWriter per file type on each thread.
+ *
+ * Looking up and creating an ImageWriter (as <code>ImageIO.write</code> does for every file)
+ * is surprisingly expensive, so each thread keeps the writers it has used before.
+ * PNG photos can optionally be written by the parallel <code>PngEncoder</code> instead.
+ * The settings are immutable, so one PhotoWriters can be shared by many threads.
+ */
+public final class PhotoWriters {
+
+	/** The JPEG quality that ImageIO uses by default. */
+	public static final float DEFAULT_JPEG_QUALITY = 0.75f;
+
+	/** The PNG compression level (deflate level) that ImageIO uses by default. */
+	public static final int DEFAULT_PNG_COMPRESSION = 4;
+
+	/** JPEG quality, from 0.0 (smallest files) to 1.0 (best quality). */
+	private final float jpegQuality;
+
+	/** PNG compression level, from 0 (none) to 9 (smallest files). */
+	private final int pngCompression;
+
+	/** The threads that PNG photos are deflated on, or null to use the ImageIO PNG writer. */
+	private final RowBands pngBands;
+
+	/** The writers used by each thread, keyed by lower-case file extension. */
+	private final ThreadLocal<Map<String, ImageWriter>> writers = ThreadLocal.withInitial(HashMap::new);
+
+	/** Uses the ImageIO default JPEG quality and PNG compression level. */
+	public PhotoWriters() {
+		this(DEFAULT_JPEG_QUALITY, DEFAULT_PNG_COMPRESSION);
+	}
+
+	/**
+	 * @param jpegQuality from 0.0 (smallest files) to 1.0 (best quality).
+	 * @param pngCompression from 0 (no compression) to 9 (smallest files).
+	 */
+	public PhotoWriters(float jpegQuality, int pngCompression) {
+		this(jpegQuality, pngCompression, null);
+	}
+
+	/**
+	 * @param jpegQuality from 0.0 (smallest files) to 1.0 (best quality).
+	 * @param pngCompression from 0 (no compression) to 9 (smallest files).
+	 * @param pngBands the threads that PNG photos are deflated on, or null to use the ImageIO PNG writer.
+	 */
+	public PhotoWriters(float jpegQuality, int pngCompression, RowBands pngBands) {
+		if (!(0.0f <= jpegQuality && jpegQuality <= 1.0f)) {
+			throw new IllegalArgumentException("JPEG quality must be 0.0 .. 1.0, not " + jpegQuality);
+		}
+		if (pngCompression < 0 || pngCompression > 9) {
+			throw new IllegalArgumentException("PNG compression must be 0 .. 9, not " + pngCompression);
+		}
+		this.jpegQuality = jpegQuality;
+		this.pngCompression = pngCompression;
+		this.pngBands = pngBands;
+	}
+
+	/** @return JPEG quality, from 0.0 (smallest files) to 1.0 (best quality). */
+	public float jpegQuality() {
+		return jpegQuality;
+	}
+
+	/** @return PNG compression level, from 0 (none) to 9 (smallest files). */
+	public int pngCompression() {
+		return pngCompression;
+	}
+
+	/** @return a copy of these settings, with a different JPEG quality. */
+	public PhotoWriters withJpegQuality(float quality) {
+		return new PhotoWriters(quality, pngCompression, pngBands);
+	}
+
+	/** @return a copy of these settings, with a different PNG compression level. */
+	public PhotoWriters withPngCompression(int level) {
+		return new PhotoWriters(jpegQuality, level, pngBands);
+	}
+
+	/** @return the threads that PNG photos are deflated on, or null if the ImageIO PNG writer is used. */
+	public RowBands pngBands() {
+		return pngBands;
+	}
+
+	/**
+	 * @param bands the threads that PNG photos are deflated on, or null to use the ImageIO PNG writer.
+	 * @return a copy of these settings, with a different PNG encoder.
+	 */
+	public PhotoWriters withPngBands(RowBands bands) {
+		return new PhotoWriters(jpegQuality, pngCompression, bands);
+	}
+
+	/**
+	 * Encodes and writes a photo to its file.
+	 * Raw pixel files (see <code>RawPixels</code>) are written without encoding.
+	 *
+	 * @param photo the extension of its name (eg. .jpg) determines the output file type.
+	 * @throws IOException
+	 */
+	public void write(Photo photo) throws IOException {
+		final String name = photo.name();
+		if (RawPixels.isRaw(name)) {
+			RawPixels.write(photo);
+			return;
+		}
+		if (pngBands != null && name.toLowerCase(Locale.ROOT).endsWith(".png")) {
+			new PngEncoder(pngBands, pngCompression).write(photo);
+			return;
+		}
+		write(photo.image(), name);
+	}
+
+	/**
+	 * Encodes and writes an image to a file.
+	 * Like <code>ImageIO.write</code>, nothing is written if there is no writer for that file type.
+	 *
+	 * @param image the image to save.
+	 * @param name the extension of this name (eg. .jpg) determines the output file type.
+	 * @return false if there is no writer for that file type.
+	 * @throws IOException
+	 */
+	public boolean write(RenderedImage image, String name) throws IOException {
+		final String extn = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+		final Map<String, ImageWriter> cache = writers.get();
+		ImageWriter writer = cache.get(extn);
+		if (writer == null) {
+			Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(extn);
+			if (!found.hasNext()) {
+				return false;
+			}
+			writer = found.next();
+			cache.put(extn, writer);
+		}
+		final File file = new File(name);
+		file.delete(); // as ImageIO.write does, since the output stream does not truncate files.
+		boolean written = false;
+		try (ImageOutputStream output = new FileImageOutputStream(file)) {
+			writer.setOutput(output);
+			writer.write(null, new IIOImage(image, null, null), writeParam(writer, extn));
+			written = true;
+		} finally {
+			if (written) {
+				writer.reset();
+			} else {
+				// the writer may be in a bad state, so do not reuse it.
+				cache.remove(extn);
+				writer.dispose();
+			}
+		}
+		return true;
+	}
+
+	/** @return the parameters that give the chosen quality or compression level, or null for other file types. */
+	private ImageWriteParam writeParam(ImageWriter writer, String extn) {
+		final float quality;
+		if ("jpg".equals(extn) || "jpeg".equals(extn)) {
+			quality = jpegQuality;
+		} else if ("png".equals(extn)) {
+			// the PNG writer uses deflate level 9 - round(9 * quality).
+			quality = (9 - pngCompression) / 9.0f;
+		} else {
+			return null;
+		}
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (!param.canWriteCompressed()) {
+			return null;
+		}
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(quality);
+		return param;
+	}
+}
@@ -0,0 +1,106 @@
+package com.celanim.cartoonify;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for each photo that goes through the cartoon pipeline.
+ *
+ * There is one event type for loading a photo, one for each processing stage, one for
+ * the OpenCL enqueue and readback steps, and one for saving a photo.  Every event
+ * records the photo, its size and the edge threshold and number of colours in use,
+ * so a continuous recording (eg. <code>java -XX:StartFlightRecording ...</code>)
+ * shows which photo and which stage was slow.  When recording is off, an event costs
+ * one small allocation and its fields are not even filled in.
+ *
+ * <code>FlightRecordingAnalyzer</code> summarises a recording into per-stage totals.
+ */
+public final class PipelineEvents {
+
+	/** The prefix of the name of every event type. */
+	public static final String PREFIX = "com.celanim.cartoonify.";
+
+	private PipelineEvents() {
+	}
+
+	/** The fields that all the cartoon events share. */
+	@Category("Cartoonify")
+	public abstract static class PhotoEvent extends Event {
+		@Label("Photo")
+		@Description("The photo file that is read, processed or written.")
+		public String photo;
+
+		@Label("Width")
+		public int width;
+
+		@Label("Height")
+		public int height;
+
+		@Label("Edge Threshold")
+		public int edgeThreshold;
+
+		@Label("Colours")
+		@Description("The number of values in each colour channel.")
+		public int numColours;
+
+		/**
+		 * Fills in the fields, unless recording is off.
+		 *
+		 * @return this event.
+		 */
+		PhotoEvent describe(String photo, int width, int height, int edgeThreshold, int numColours) {
+			if (isEnabled()) {
+				this.photo = photo;
+				this.width = width;
+				this.height = height;
+				this.edgeThreshold = edgeThreshold;
+				this.numColours = numColours;
+			}
+			return this;
+		}
+	}
+
+	/** Reading and decoding one photo. */
+	@Name(PREFIX + "LoadPhoto")
+	@Label("Load Photo")
+	public static final class LoadPhoto extends PhotoEvent {
+	}
+
+	/** One processing stage of one photo, such as "gaussianBlur". */
+	@Name(PREFIX + "Stage")
+	@Label("Processing Stage")
+	public static final class Stage extends PhotoEvent {
+		@Label("Stage")
+		public String stage;
+
+		Stage(String stage) {
+			if (isEnabled()) {
+				this.stage = stage;
+			}
+		}
+	}
+
+	/** Enqueueing OpenCL kernels and waiting for them, or reading their results back. */
+	@Name(PREFIX + "OpenCL")
+	@Label("OpenCL")
+	public static final class OpenCL extends PhotoEvent {
+		@Label("Operation")
+		@Description("\"enqueue\" or \"readback\".")
+		public String operation;
+
+		OpenCL(String operation) {
+			if (isEnabled()) {
+				this.operation = operation;
+			}
+		}
+	}
+
+	/** Encoding and writing one photo. */
+	@Name(PREFIX + "SavePhoto")
+	@Label("Save Photo")
+	public static final class SavePhoto extends PhotoEvent {
+	}
+}
@@ -0,0 +1,128 @@
+package com.celanim.cartoonify;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A pool of int[] pixel buffers, so that the images of one photo can be reused for the next.
+ *
+ * Buffers are kept in separate lists for each size.  When the pooled buffers use more than
+ * <code>maxBytes</code>, buffers of the least recently used size are dropped first,
+ * so a batch of same-sized photos keeps reusing the same few buffers.
+ * All methods are synchronized, so one pool can be shared by many threads.
+ */
+public final class PixelBufferPool {
+
+	/** The default maximum memory used by pooled buffers: 256 MB. */
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+	/** The free buffers of each length, least recently used length first. */
+	private final Map<Integer, ArrayDeque<int[]>> free = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** The maximum number of bytes of free buffers to keep. */
+	private final long maxBytes;
+
+	/** The number of bytes of free buffers currently in the pool. */
+	private long pooledBytes;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param maxBytes the maximum number of bytes of free buffers to keep.  0 turns pooling off.
+	 */
+	public PixelBufferPool(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("pool size must be at least zero, not " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Gets a buffer from the pool, or allocates a new one if there is no free buffer of that length.
+	 * A pooled buffer still contains its old pixels, so the caller must overwrite all of them.
+	 *
+	 * @param length the number of pixels.
+	 * @return a buffer of exactly that length.
+	 */
+	public synchronized int[] acquire(int length) {
+		ArrayDeque<int[]> buffers = free.get(length);
+		if (buffers != null && !buffers.isEmpty()) {
+			hits++;
+			pooledBytes -= bytes(length);
+			return buffers.pop();
+		}
+		misses++;
+		return new int[length];
+	}
+
+	/**
+	 * Gives a buffer back to the pool.  The caller must not use it again.
+	 *
+	 * @param buffer a buffer that is no longer needed.
+	 */
+	public synchronized void release(int[] buffer) {
+		if (bytes(buffer.length) > maxBytes) {
+			evictions++;
+			return;
+		}
+		ArrayDeque<int[]> buffers = free.computeIfAbsent(buffer.length, length -> new ArrayDeque<>());
+		assert buffers.stream().noneMatch(b -> b == buffer) : "buffer released twice";
+		buffers.push(buffer);
+		pooledBytes += bytes(buffer.length);
+		evict();
+	}
+
+	/** Drops the oldest buffers of the least recently used lengths until the pool is small enough. */
+	private void evict() {
+		Iterator<ArrayDeque<int[]>> lists = free.values().iterator();
+		while (pooledBytes > maxBytes && lists.hasNext()) {
+			ArrayDeque<int[]> buffers = lists.next();
+			while (pooledBytes > maxBytes && !buffers.isEmpty()) {
+				pooledBytes -= bytes(buffers.removeLast().length);
+				evictions++;
+			}
+			if (buffers.isEmpty()) {
+				lists.remove();
+			}
+		}
+	}
+
+	private static long bytes(int length) {
+		return (long) length * Integer.BYTES;
+	}
+
+	/** @return the maximum number of bytes of free buffers to keep. */
+	public long maxBytes() {
+		return maxBytes;
+	}
+
+	/** @return the number of bytes of free buffers currently in the pool. */
+	public synchronized long pooledBytes() {
+		return pooledBytes;
+	}
+
+	/** @return how many times <code>acquire</code> reused a pooled buffer. */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/** @return how many times <code>acquire</code> had to allocate a new buffer. */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/** @return how many released buffers were dropped to keep the pool under its maximum size. */
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	/** Prints the pool statistics. */
+	public synchronized void printStats() {
+		System.out.format("Pixel buffer pool: %d hits, %d misses, %d evictions, %.1f MB pooled.%n",
+				hits, misses, evictions, pooledBytes / (1024.0 * 1024.0));
+	}
+}
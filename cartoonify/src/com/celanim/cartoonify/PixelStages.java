@@ -0,0 +1,101 @@
+package com.celanim.cartoonify;
+
+/**
+ * The per-pixel processing stages, which just loop over one or two pixel arrays.
+ *
+ * Each method processes positions <code>from .. to-1</code>, so that the caller can
+ * split an image into bands.  There is a plain scalar implementation, and an optional
+ * one that uses the <code>jdk.incubator.vector</code> API to do many pixels at once.
+ * Both give exactly the same results.
+ */
+public abstract class PixelStages {
+
+	/** The plain Java implementation, which always works. */
+	public static final PixelStages SCALAR = new ScalarPixelStages();
+
+	/** The name of the class that implements the stages with the Vector API. */
+	private static final String VECTOR_CLASS = "com.celanim.cartoonify.VectorPixelStages";
+
+	/** The module that the Vector API lives in. */
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+	/** @return a short name for this implementation, eg. "scalar". */
+	public abstract String name();
+
+	/**
+	 * Converts pixels to grayscale, by averaging the three colour channels.
+	 *
+	 * @param src the RGB pixels to read.
+	 * @param dst receives the gray pixels, at the same positions.
+	 */
+	public abstract void grayscale(int[] src, int[] dst, int from, int to);
+
+	/**
+	 * Reduces the number of colours in each channel of some pixels.
+	 *
+	 * @param src the RGB pixels to read.
+	 * @param dst receives the quantized pixels, at the same positions.
+	 * @param quantizer says how many colours each channel should have.
+	 */
+	public abstract void reduceColours(int[] src, int[] dst, int from, int to, ColourQuantizer quantizer);
+
+	/**
+	 * Merges a mask image on top of another image.
+	 * Where the mask is <code>maskColour</code> the photo pixel is chosen, otherwise the mask pixel.
+	 *
+	 * @param mask the mask pixels.
+	 * @param maskColour an exact pixel colour.
+	 * @param photo the pixels underneath the mask.
+	 * @param dst receives the merged pixels, at the same positions.
+	 */
+	public abstract void mergeMask(int[] mask, int maskColour, int[] photo, int[] dst, int from, int to);
+
+	/**
+	 * Returns the Vector API implementation if the JVM was started with the
+	 * <code>jdk.incubator.vector</code> module, or the scalar implementation if not.
+	 */
+	public static PixelStages vectorOrScalar() {
+		if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+			return SCALAR;
+		}
+		try {
+			return (PixelStages) Class.forName(VECTOR_CLASS).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return SCALAR;
+		}
+	}
+
+	/** The plain Java implementation of the per-pixel stages. */
+	private static final class ScalarPixelStages extends PixelStages {
+
+		@Override
+		public String name() {
+			return "scalar";
+		}
+
+		@Override
+		public void grayscale(int[] src, int[] dst, int from, int to) {
+			for (int pos = from; pos < to; pos++) {
+				final int rgb = src[pos];
+				final int average = (((rgb >> 16) & 0xFF) + ((rgb >> 8) & 0xFF) + (rgb & 0xFF)) / 3;
+				dst[pos] = (average << 16) | (average << 8) | average;
+			}
+		}
+
+		@Override
+		public void reduceColours(int[] src, int[] dst, int from, int to, ColourQuantizer quantizer) {
+			quantizer.quantize(src, dst, from, to);
+		}
+
+		@Override
+		public void mergeMask(int[] mask, int maskColour, int[] photo, int[] dst, int from, int to) {
+			for (int pos = from; pos < to; pos++) {
+				if (mask[pos] == maskColour) {
+					dst[pos] = photo[pos];
+				} else {
+					dst[pos] = mask[pos];
+				}
+			}
+		}
+	}
+}
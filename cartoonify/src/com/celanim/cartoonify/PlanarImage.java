@@ -0,0 +1,162 @@
+package com.celanim.cartoonify;
+
+/**
+ * An image stored as three separate colour planes, with one byte per pixel in each.
+ *
+ * Packed 0RGB pixels have to be unpacked with shifts and masks for every filter tap,
+ * so a 5x5 blur does that 25 times for each output pixel.  In planar form each tap is
+ * just a byte load, and each plane is filtered by a simple contiguous loop that the JIT
+ * can vectorise.  A planar image also needs 3 bytes per pixel rather than 4.
+ *
+ * Photos are blurred straight from their packed pixels into planes, and packed back into
+ * ints only when they are merged or saved.  The methods work on bands of rows, so they can be run in parallel.
+ */
+public final class PlanarImage {
+
+	private final int width;
+	private final int height;
+	private final byte[] red;
+	private final byte[] green;
+	private final byte[] blue;
+
+	/**
+	 * Creates a black image.
+	 *
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 */
+	public PlanarImage(int width, int height) {
+		if (width < 0 || height < 0) {
+			throw new IllegalArgumentException("bad image size " + width + "x" + height);
+		}
+		this.width = width;
+		this.height = height;
+		final int size = Math.multiplyExact(width, height);
+		this.red = new byte[size];
+		this.green = new byte[size];
+		this.blue = new byte[size];
+	}
+
+	/** @return the width of the image. */
+	public int width() {
+		return width;
+	}
+
+	/** @return the height of the image. */
+	public int height() {
+		return height;
+	}
+
+	/** @return the red values, in row-major order. */
+	byte[] red() {
+		return red;
+	}
+
+	/** @return the green values, in row-major order. */
+	byte[] green() {
+		return green;
+	}
+
+	/** @return the blue values, in row-major order. */
+	byte[] blue() {
+		return blue;
+	}
+
+	/**
+	 * Copies rows <code>yStart .. yEnd-1</code> of packed pixels into the planes.
+	 *
+	 * @param pixels width * height pixels, in RGB format.
+	 */
+	public void unpack(int[] pixels, int yStart, int yEnd) {
+		for (int pos = yStart * width; pos < yEnd * width; pos++) {
+			final int rgb = pixels[pos];
+			red[pos] = (byte) (rgb >> 16);
+			green[pos] = (byte) (rgb >> 8);
+			blue[pos] = (byte) rgb;
+		}
+	}
+
+	/**
+	 * Packs rows <code>yStart .. yEnd-1</code> of the planes into pixels.
+	 *
+	 * @param pixels receives width * height pixels, in RGB format.
+	 */
+	public void pack(int[] pixels, int yStart, int yEnd) {
+		for (int pos = yStart * width; pos < yEnd * width; pos++) {
+			pixels[pos] = (red[pos] & 0xFF) << 16 | (green[pos] & 0xFF) << 8 | (blue[pos] & 0xFF);
+		}
+	}
+
+	/**
+	 * Applies a filter to each plane, and writes the normalised results into rows
+	 * <code>yStart .. yEnd-1</code> of another image.  This gives exactly the same
+	 * colours as applying the kernel to the packed pixels.
+	 *
+	 * @param kernel the filter, eg. <code>Cartoonify.GAUSSIAN_KERNEL</code>.
+	 * @param dst an image of the same size, which must not be this one.
+	 */
+	public void convolve(ConvolutionKernel kernel, PlanarImage dst, int yStart, int yEnd) {
+		assert dst != this && dst.width == width && dst.height == height;
+		final int[] rowStarts = new int[kernel.size()];
+		final int[] sums = new int[width];
+		for (int y = yStart; y < yEnd; y++) {
+			kernel.rowStarts(y, width, height, rowStarts);
+			convolveRow(kernel, red, rowStarts, sums, dst.red, y * width);
+			convolveRow(kernel, green, rowStarts, sums, dst.green, y * width);
+			convolveRow(kernel, blue, rowStarts, sums, dst.blue, y * width);
+		}
+	}
+
+	/**
+	 * Applies a filter to packed pixels, and writes the normalised results into rows
+	 * <code>yStart .. yEnd-1</code> of this image.  This gives exactly the same colours
+	 * as unpacking the pixels and then convolving them, but only the <code>kernel.size()</code>
+	 * rows that the filter reaches are unpacked at a time, into a small ring of planes.
+	 *
+	 * @param kernel the filter, eg. <code>Cartoonify.GAUSSIAN_KERNEL</code>.
+	 * @param pixels width * height pixels, in RGB format.
+	 */
+	public void convolve(ConvolutionKernel kernel, int[] pixels, int yStart, int yEnd) {
+		final int size = kernel.size();
+		final int half = kernel.half();
+		// source row r is kept in row r % size of the ring, since the filter never needs
+		// more than size consecutive rows.
+		final PlanarImage ring = new PlanarImage(width, size);
+		final int[] rowStarts = new int[size];
+		final int[] sums = new int[width];
+		for (int row = Math.max(0, yStart - half); row < Math.min(height, yStart + half); row++) {
+			ring.unpackRow(pixels, row, row % size);
+		}
+		for (int y = yStart; y < yEnd; y++) {
+			if (y + half < height) {
+				ring.unpackRow(pixels, y + half, (y + half) % size);
+			}
+			for (int filterY = 0; filterY < size; filterY++) {
+				rowStarts[filterY] = ConvolutionKernel.reflect(y + filterY - half, height) % size * width;
+			}
+			convolveRow(kernel, ring.red, rowStarts, sums, red, y * width);
+			convolveRow(kernel, ring.green, rowStarts, sums, green, y * width);
+			convolveRow(kernel, ring.blue, rowStarts, sums, blue, y * width);
+		}
+	}
+
+	/** Copies row <code>srcRow</code> of packed pixels into row <code>row</code> of the planes. */
+	private void unpackRow(int[] pixels, int srcRow, int row) {
+		final int srcPos = srcRow * width;
+		final int pos = row * width;
+		for (int x = 0; x < width; x++) {
+			final int rgb = pixels[srcPos + x];
+			red[pos + x] = (byte) (rgb >> 16);
+			green[pos + x] = (byte) (rgb >> 8);
+			blue[pos + x] = (byte) rgb;
+		}
+	}
+
+	private void convolveRow(ConvolutionKernel kernel, byte[] src, int[] rowStarts, int[] sums,
+			byte[] dst, int rowPos) {
+		kernel.applyRow(src, rowStarts, width, sums);
+		for (int x = 0; x < width; x++) {
+			dst[rowPos + x] = (byte) kernel.normalise(sums[x]);
+		}
+	}
+}
@@ -0,0 +1,412 @@
+package com.celanim.cartoonify;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder that deflates strips of rows in parallel.
+ *
+ * The rows are filtered, then split into strips that are deflated on separate threads.
+ * Each strip is primed with the last 32 KB of the strip before it as its dictionary,
+ * and is ended with a SYNC_FLUSH, so the strips join up into one zlib stream that
+ * compresses almost as well as deflating the whole image on one thread.
+ * Each strip is written as its own IDAT chunk.
+ *
+ * Cartoons usually have very few colours, so an image with at most 256 colours is
+ * written as a palette image, without row filters (which do not help palette indexes).
+ * Other images are written as 8-bit RGB, choosing the best filter for each row.
+ */
+public final class PngEncoder {
+
+	/** Every PNG file starts with these bytes. */
+	private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+
+	/** The most colours that a palette image can have. */
+	static final int MAX_PALETTE = 256;
+
+	/** The deflate window size, which is the most dictionary that is useful. */
+	private static final int DICTIONARY_BYTES = 32 * 1024;
+
+	/** Roughly how many bytes of filtered rows to deflate in each strip. */
+	private static final int STRIP_BYTES = 256 * 1024;
+
+	private static final int COLOUR_TYPE_RGB = 2;
+	private static final int COLOUR_TYPE_PALETTE = 3;
+
+	private static final int FILTER_NONE = 0;
+	private static final int FILTER_SUB = 1;
+	private static final int FILTER_UP = 2;
+	private static final int FILTER_AVERAGE = 3;
+	private static final int FILTER_PAETH = 4;
+
+	/** Runs the strips. */
+	private final RowBands bands;
+
+	/** The deflate level, 0 .. 9. */
+	private final int level;
+
+	/**
+	 * @param bands the threads that strips are filtered and deflated on.
+	 * @param level the deflate level, from 0 (none) to 9 (smallest files).
+	 */
+	public PngEncoder(RowBands bands, int level) {
+		if (level < 0 || level > 9) {
+			throw new IllegalArgumentException("PNG compression must be 0 .. 9, not " + level);
+		}
+		this.bands = bands;
+		this.level = level;
+	}
+
+	/**
+	 * Encodes a photo and writes it to its file.
+	 *
+	 * @param photo a photo whose name ends with .png.
+	 * @throws IOException
+	 */
+	public void write(Photo photo) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(photo.name()))) {
+			encode(photo.pixels(), photo.width(), photo.height(), out);
+		}
+	}
+
+	/**
+	 * Encodes an image as PNG.
+	 *
+	 * @param pixels width * height 0RGB pixels, in row-major order.
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 * @param out receives the PNG file.  It is not closed.
+	 * @throws IOException
+	 */
+	public void encode(int[] pixels, int width, int height, OutputStream out) throws IOException {
+		final Palette palette = Palette.of(pixels);
+		final int bytesPerPixel = palette == null ? 3 : 1;
+		final int rowBytes = 1 + width * bytesPerPixel; // each row starts with its filter type.
+		final int stripRows = Math.max(1, STRIP_BYTES / rowBytes);
+		final int numStrips = Math.max(1, (height + stripRows - 1) / stripRows);
+
+		// filter all the rows first, since each strip needs the end of the previous one as its dictionary.
+		final byte[][] filtered = new byte[numStrips][];
+		bands.forEach(numStrips, (first, last) -> {
+			for (int s = first; s < last; s++) {
+				final int yStart = s * stripRows;
+				final int yEnd = Math.min(height, yStart + stripRows);
+				filtered[s] = palette == null
+						? filterRGB(pixels, width, yStart, yEnd)
+						: paletteRows(pixels, width, yStart, yEnd, palette);
+			}
+		});
+		final byte[][] deflated = new byte[numStrips][];
+		bands.forEach(numStrips, (first, last) -> {
+			for (int s = first; s < last; s++) {
+				deflated[s] = deflate(s == 0 ? null : filtered[s - 1], filtered[s], s == numStrips - 1);
+			}
+		});
+		final Adler32 adler = new Adler32();
+		for (byte[] strip : filtered) {
+			adler.update(strip);
+		}
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.write(SIGNATURE);
+		ByteBuffer ihdr = ByteBuffer.allocate(13);
+		ihdr.putInt(width).putInt(height);
+		ihdr.put((byte) 8); // bit depth
+		ihdr.put((byte) (palette == null ? COLOUR_TYPE_RGB : COLOUR_TYPE_PALETTE));
+		ihdr.put((byte) 0); // deflate compression
+		ihdr.put((byte) 0); // adaptive filtering
+		ihdr.put((byte) 0); // no interlacing
+		writeChunk(data, "IHDR", ihdr.array());
+		if (palette != null) {
+			byte[] plte = new byte[3 * palette.size()];
+			for (int i = 0; i < palette.size(); i++) {
+				final int rgb = palette.colour(i);
+				plte[3 * i] = (byte) (rgb >> 16);
+				plte[3 * i + 1] = (byte) (rgb >> 8);
+				plte[3 * i + 2] = (byte) rgb;
+			}
+			writeChunk(data, "PLTE", plte);
+		}
+		final byte[] none = new byte[0];
+		for (int s = 0; s < numStrips; s++) {
+			final byte[] header = s == 0 ? ByteBuffer.allocate(2).putShort((short) zlibHeader()).array() : none;
+			final byte[] checksum = s == numStrips - 1
+					? ByteBuffer.allocate(4).putInt((int) adler.getValue()).array() : none;
+			writeChunk(data, "IDAT", header, deflated[s], checksum);
+		}
+		writeChunk(data, "IEND");
+		data.flush();
+	}
+
+	/** Writes one PNG chunk: its length, type, data and CRC. */
+	private static void writeChunk(DataOutputStream data, String type, byte[]... parts) throws IOException {
+		final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		int length = 0;
+		for (byte[] part : parts) {
+			length += part.length;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		data.writeInt(length);
+		data.write(typeBytes);
+		for (byte[] part : parts) {
+			crc.update(part);
+			data.write(part);
+		}
+		data.writeInt((int) crc.getValue());
+	}
+
+	/** @return the two zlib header bytes for a 32 KB window and this deflate level. */
+	int zlibHeader() {
+		final int cmf = 0x78; // deflate, 32 KB window
+		final int levelBits = level <= 1 ? 0 : level <= 5 ? 1 : level == 6 ? 2 : 3;
+		int flg = levelBits << 6;
+		flg += (31 - ((cmf << 8) + flg) % 31) % 31;
+		return (cmf << 8) | flg;
+	}
+
+	/**
+	 * Deflates one strip, as raw deflate data that can be joined to the strips around it.
+	 *
+	 * @param previous the filtered bytes of the previous strip, or null for the first strip.
+	 * @param strip the filtered bytes of this strip.
+	 * @param last true for the last strip, which ends the deflate stream.
+	 * @return the deflated bytes.
+	 */
+	private byte[] deflate(byte[] previous, byte[] strip, boolean last) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (previous != null) {
+				final int dictLength = Math.min(DICTIONARY_BYTES, previous.length);
+				deflater.setDictionary(previous, previous.length - dictLength, dictLength);
+			}
+			deflater.setInput(strip);
+			if (last) {
+				deflater.finish();
+			}
+			byte[] out = new byte[strip.length / 4 + 64];
+			int length = 0;
+			while (true) {
+				if (length == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				final int n = last
+						? deflater.deflate(out, length, out.length - length)
+						: deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+				length += n;
+				// deflate has flushed everything once it leaves some of the output buffer unused.
+				if (length < out.length && (last ? deflater.finished() : deflater.needsInput())) {
+					break;
+				}
+			}
+			return Arrays.copyOf(out, length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/** @return the palette indexes of rows <code>yStart .. yEnd-1</code>, each with filter type None. */
+	private static byte[] paletteRows(int[] pixels, int width, int yStart, int yEnd, Palette palette) {
+		final byte[] out = new byte[(yEnd - yStart) * (1 + width)];
+		int pos = 0;
+		for (int y = yStart; y < yEnd; y++) {
+			out[pos++] = FILTER_NONE;
+			final int rowStart = y * width;
+			for (int x = 0; x < width; x++) {
+				out[pos++] = (byte) palette.index(pixels[rowStart + x]);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Filters RGB rows <code>yStart .. yEnd-1</code>, choosing the filter for each row
+	 * that gives the smallest sum of absolute differences (the usual PNG heuristic).
+	 */
+	private static byte[] filterRGB(int[] pixels, int width, int yStart, int yEnd) {
+		final int rowBytes = 3 * width;
+		final byte[] out = new byte[(yEnd - yStart) * (1 + rowBytes)];
+		byte[] prior = new byte[rowBytes];
+		byte[] raw = new byte[rowBytes];
+		final byte[][] candidates = new byte[FILTER_PAETH + 1][rowBytes];
+		if (yStart > 0) {
+			unpackRow(pixels, width, yStart - 1, prior);
+		}
+		int pos = 0;
+		for (int y = yStart; y < yEnd; y++) {
+			unpackRow(pixels, width, y, raw);
+			int best = FILTER_NONE;
+			long bestSum = Long.MAX_VALUE;
+			for (int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+				final long sum = filterRow(filter, raw, prior, candidates[filter]);
+				if (sum < bestSum) {
+					best = filter;
+					bestSum = sum;
+				}
+			}
+			out[pos++] = (byte) best;
+			System.arraycopy(candidates[best], 0, out, pos, rowBytes);
+			pos += rowBytes;
+			final byte[] swap = prior;
+			prior = raw;
+			raw = swap;
+		}
+		return out;
+	}
+
+	/** Unpacks one row of 0RGB pixels into R, G, B bytes. */
+	private static void unpackRow(int[] pixels, int width, int y, byte[] row) {
+		int in = y * width;
+		for (int i = 0; i < row.length; i += 3) {
+			final int rgb = pixels[in++];
+			row[i] = (byte) (rgb >> 16);
+			row[i + 1] = (byte) (rgb >> 8);
+			row[i + 2] = (byte) rgb;
+		}
+	}
+
+	/**
+	 * Applies one PNG filter to a row of RGB bytes.
+	 *
+	 * @return the sum of the absolute values of the filtered bytes, taken as signed bytes.
+	 */
+	private static long filterRow(int filter, byte[] raw, byte[] prior, byte[] out) {
+		final int bpp = 3;
+		long sum = 0;
+		for (int i = 0; i < raw.length; i++) {
+			final int x = raw[i] & 0xFF;
+			final int a = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+			final int b = prior[i] & 0xFF;
+			final int c = i >= bpp ? prior[i - bpp] & 0xFF : 0;
+			final int predicted;
+			switch (filter) {
+			case FILTER_SUB:
+				predicted = a;
+				break;
+			case FILTER_UP:
+				predicted = b;
+				break;
+			case FILTER_AVERAGE:
+				predicted = (a + b) >>> 1;
+				break;
+			case FILTER_PAETH:
+				predicted = paeth(a, b, c);
+				break;
+			default:
+				predicted = 0;
+			}
+			final byte filtered = (byte) (x - predicted);
+			out[i] = filtered;
+			sum += Math.abs(filtered);
+		}
+		return sum;
+	}
+
+	/** The Paeth predictor from the PNG specification. */
+	private static int paeth(int a, int b, int c) {
+		final int p = a + b - c;
+		final int pa = Math.abs(p - a);
+		final int pb = Math.abs(p - b);
+		final int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	/**
+	 * The distinct colours of an image, if there are few enough for a PNG palette.
+	 * This is a small open-addressing hash table from colour to palette index.
+	 */
+	static final class Palette {
+		/** Twice as many slots as colours, so lookups stay short. */
+		private static final int SLOTS = 2 * MAX_PALETTE;
+
+		/** The colour in each slot, or -1 for an empty slot. */
+		private final int[] keys = new int[SLOTS];
+
+		/** The palette index of the colour in each slot. */
+		private final int[] indexes = new int[SLOTS];
+
+		/** The colours, in palette order. */
+		private final int[] colours = new int[MAX_PALETTE];
+
+		private int size;
+
+		private Palette() {
+			Arrays.fill(keys, -1);
+		}
+
+		/**
+		 * @param pixels 0RGB pixels.
+		 * @return the palette of those pixels, or null if there are more than MAX_PALETTE colours.
+		 */
+		static Palette of(int[] pixels) {
+			Palette palette = new Palette();
+			int previous = -1;
+			for (int rgb : pixels) {
+				// cartoons have long runs of the same colour, so this skips most lookups.
+				if (rgb != previous) {
+					if (palette.find(rgb) < 0 && !palette.add(rgb)) {
+						return null;
+					}
+					previous = rgb;
+				}
+			}
+			return palette;
+		}
+
+		private static int slot(int rgb) {
+			return (rgb * 0x9E3779B1) >>> 23; // top 9 bits, for 512 slots.
+		}
+
+		/** @return the slot holding this colour, or -1 if it is not in the palette. */
+		private int find(int rgb) {
+			for (int s = slot(rgb); keys[s] != -1; s = (s + 1) & (SLOTS - 1)) {
+				if (keys[s] == rgb) {
+					return s;
+				}
+			}
+			return -1;
+		}
+
+		/** @return false if the palette is already full. */
+		private boolean add(int rgb) {
+			if (size == MAX_PALETTE) {
+				return false;
+			}
+			int s = slot(rgb);
+			while (keys[s] != -1) {
+				s = (s + 1) & (SLOTS - 1);
+			}
+			keys[s] = rgb;
+			indexes[s] = size;
+			colours[size++] = rgb;
+			return true;
+		}
+
+		/** @return the palette index of a colour that is in the palette. */
+		int index(int rgb) {
+			return indexes[find(rgb)];
+		}
+
+		/** @return the colour at a palette index. */
+		int colour(int index) {
+			return colours[index];
+		}
+
+		/** @return the number of colours. */
+		int size() {
+			return size;
+		}
+	}
+}
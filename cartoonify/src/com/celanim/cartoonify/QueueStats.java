@@ -0,0 +1,46 @@
+package com.celanim.cartoonify;
+
+/**
+ * A snapshot of the depths of one queue, sampled each time an item is put on or taken off it.
+ */
+public final class QueueStats {
+
+	private final String name;
+	private final long samples;
+	private final long p50Depth;
+	private final long p99Depth;
+	private final long maxDepth;
+
+	QueueStats(String name, Histogram depths) {
+		this.name = name;
+		this.samples = depths.count();
+		this.p50Depth = depths.percentile(0.50);
+		this.p99Depth = depths.percentile(0.99);
+		this.maxDepth = depths.max();
+	}
+
+	/** @return the name of the queue, eg. "decoded". */
+	public String getName() {
+		return name;
+	}
+
+	/** @return how many times the depth was sampled. */
+	public long getSamples() {
+		return samples;
+	}
+
+	/** @return the median depth. */
+	public long getP50Depth() {
+		return p50Depth;
+	}
+
+	/** @return the 99th percentile depth. */
+	public long getP99Depth() {
+		return p99Depth;
+	}
+
+	/** @return the largest depth. */
+	public long getMaxDepth() {
+		return maxDepth;
+	}
+}
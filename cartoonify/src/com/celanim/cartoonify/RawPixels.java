@@ -0,0 +1,120 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * A simple uncompressed file format for photos, so that intermediate images can be
+ * saved and reloaded by this and other tools without any encoding or decoding.
+ *
+ * A raw file is a 32-byte header followed by the packed pixels, all little-endian:
+ * <pre>
+ *   0: magic "CPIX"
+ *   4: format version (1)
+ *   8: width
+ *  12: height
+ *  16: pixel layout (1 = one 32-bit 0RGB int per pixel, in row-major order)
+ *  20: reserved (zero)
+ *  32: width * height pixels
+ * </pre>
+ * Files are read and written through memory-mapped FileChannels.
+ */
+public final class RawPixels {
+
+	/** The file extension for raw pixel files. */
+	public static final String EXTENSION = "pix";
+
+	/** "CPIX", read as a little-endian int. */
+	static final int MAGIC = 'C' | 'P' << 8 | 'I' << 16 | 'X' << 24;
+
+	static final int VERSION = 1;
+
+	/** One 32-bit 0RGB int per pixel, in row-major order. */
+	static final int LAYOUT_INT_0RGB = 1;
+
+	/** The size of the header, which keeps the pixels aligned. */
+	static final int HEADER_BYTES = 32;
+
+	/** The most pixels mapped at once, to stay under the 2 GB limit of a MappedByteBuffer. */
+	private static final int MAX_MAPPED_PIXELS = 1 << 28;
+
+	private RawPixels() {
+	}
+
+	/**
+	 * @param filename a file name.
+	 * @return true if the file name has the raw pixel extension.
+	 */
+	public static boolean isRaw(String filename) {
+		return filename.toLowerCase(Locale.ROOT).endsWith("." + EXTENSION);
+	}
+
+	/**
+	 * Reads a raw pixel file.
+	 *
+	 * @param filename the file to read.
+	 * @return the photo, with the given file name.
+	 * @throws IOException if the file cannot be read, or is not a raw pixel file.
+	 */
+	public static Photo read(String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_BYTES) {
+				throw new IOException("Not a raw pixel file: " + filename);
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("Not a raw pixel file: " + filename);
+			}
+			final int width = header.getInt(8);
+			final int height = header.getInt(12);
+			if (header.getInt(16) != LAYOUT_INT_0RGB) {
+				throw new IOException("Unknown pixel layout " + header.getInt(16) + " in " + filename);
+			}
+			final long numPixels = (long) width * height;
+			if (width < 0 || height < 0 || numPixels > Integer.MAX_VALUE
+					|| channel.size() < HEADER_BYTES + numPixels * Integer.BYTES) {
+				throw new IOException("Incorrect raw pixel file size: " + filename);
+			}
+			int[] pixels = new int[(int) numPixels];
+			for (int from = 0; from < pixels.length; from += MAX_MAPPED_PIXELS) {
+				final int count = Math.min(MAX_MAPPED_PIXELS, pixels.length - from);
+				pixelBuffer(channel, FileChannel.MapMode.READ_ONLY, from, count).get(pixels, from, count);
+			}
+			return new Photo(filename, width, height, pixels);
+		}
+	}
+
+	/**
+	 * Writes a photo to its file as raw pixels, replacing any existing file.
+	 *
+	 * @param photo the photo to write.
+	 * @throws IOException
+	 */
+	public static void write(Photo photo) throws IOException {
+		final int[] pixels = photo.pixels();
+		try (FileChannel channel = FileChannel.open(Paths.get(photo.name()), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(photo.width()).putInt(photo.height()).putInt(LAYOUT_INT_0RGB);
+			for (int from = 0; from < pixels.length; from += MAX_MAPPED_PIXELS) {
+				final int count = Math.min(MAX_MAPPED_PIXELS, pixels.length - from);
+				pixelBuffer(channel, FileChannel.MapMode.READ_WRITE, from, count).put(pixels, from, count);
+			}
+		}
+	}
+
+	/** Maps pixels <code>from .. from+count-1</code> of a raw pixel file. */
+	private static IntBuffer pixelBuffer(FileChannel channel, FileChannel.MapMode mode, int from, int count)
+			throws IOException {
+		final long position = HEADER_BYTES + (long) from * Integer.BYTES;
+		return channel.map(mode, position, (long) count * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	}
+}
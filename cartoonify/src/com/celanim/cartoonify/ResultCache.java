@@ -0,0 +1,237 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An on-disk cache of finished cartoons, so that photos which have not changed
+ * since the last run do not need to be decoded, processed and encoded again.
+ *
+ * Each cartoon is stored under a SHA-256 hash of the input file's bytes plus the settings
+ * that affect the output (see <code>Cartoonify.cacheSettings</code>).  A hit copies the
+ * cached file to the output file.  When the cached files use more than <code>maxBytes</code>,
+ * the least recently used ones are deleted.  The last-modified time of each cached file
+ * records when it was last used, so the LRU order survives from one run to the next.
+ *
+ * All methods can be called from many threads at once.
+ */
+public final class ResultCache {
+
+	/** The default maximum size of the cache: 1 GB. */
+	public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+	/** The directory that holds the cached files. */
+	private final Path dir;
+
+	/** The maximum total size of the cached files. */
+	private final long maxBytes;
+
+	/** The size of each cached file, keyed by file name, least recently used first. */
+	private final Map<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** The total size of the cached files. */
+	private long totalBytes;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Opens a cache directory, creating it if necessary.
+	 *
+	 * @param dir the directory that holds the cached files.
+	 * @param maxBytes the maximum total size of the cached files.
+	 * @throws IOException if the directory cannot be created or read.
+	 */
+	public ResultCache(Path dir, long maxBytes) throws IOException {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("cache size must be at least zero, not " + maxBytes);
+		}
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(dir);
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path file : entries) {
+				if (Files.isRegularFile(file) && !file.getFileName().toString().endsWith(".tmp")) {
+					files.add(file);
+				}
+			}
+		}
+		files.sort(Comparator.comparing(ResultCache::lastModified));
+		for (Path file : files) {
+			final long size = Files.size(file);
+			index.put(file.getFileName().toString(), size);
+			totalBytes += size;
+		}
+		evict();
+	}
+
+	private static FileTime lastModified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0L);
+		}
+	}
+
+	/**
+	 * Works out the cache key of an input photo.
+	 *
+	 * @param input the input photo file.
+	 * @param settings everything else that affects the output, eg. the edge threshold.
+	 * @return a hex SHA-256 hash of the input bytes and the settings.
+	 * @throws IOException if the input cannot be read.
+	 */
+	public static String key(String input, String settings) throws IOException {
+		final MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError("every Java platform has SHA-256", e);
+		}
+		try (InputStream in = Files.newInputStream(Paths.get(input))) {
+			final byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				sha.update(buffer, 0, n);
+			}
+		}
+		sha.update((byte) 0);
+		sha.update(settings.getBytes(StandardCharsets.UTF_8));
+		StringBuilder hex = new StringBuilder(64);
+		for (byte b : sha.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/** @return the name of the cached file, which keeps the output's extension. */
+	private static String entryName(String key, String outputName) {
+		return key + outputName.substring(outputName.lastIndexOf('.'));
+	}
+
+	/**
+	 * Copies a cached result to the output file, if there is one.
+	 *
+	 * @param key the cache key of the input photo.
+	 * @param outputName the output file.
+	 * @return true if the result was in the cache.
+	 * @throws IOException if the output file cannot be written.
+	 */
+	public boolean fetch(String key, String outputName) throws IOException {
+		final String entry = entryName(key, outputName);
+		synchronized (this) {
+			if (index.get(entry) == null) { // get also marks it as recently used.
+				misses++;
+				return false;
+			}
+		}
+		final Path cached = dir.resolve(entry);
+		try {
+			Files.copy(cached, Paths.get(outputName), StandardCopyOption.REPLACE_EXISTING);
+			Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (NoSuchFileException e) {
+			// someone else has deleted it, eg. another run evicting it.
+			synchronized (this) {
+				final Long size = index.remove(entry);
+				if (size != null) {
+					totalBytes -= size;
+				}
+				misses++;
+			}
+			return false;
+		}
+		synchronized (this) {
+			hits++;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a finished result to the cache, evicting old results if necessary.
+	 *
+	 * @param key the cache key of the input photo.
+	 * @param outputName the output file that was written.
+	 * @throws IOException if the result cannot be copied into the cache.
+	 */
+	public void store(String key, String outputName) throws IOException {
+		final String entry = entryName(key, outputName);
+		final long size = Files.size(Paths.get(outputName));
+		if (size > maxBytes) {
+			return;
+		}
+		// copy then rename, so that a half-written file is never seen as a cached result.
+		final Path temp = Files.createTempFile(dir, key, ".tmp");
+		try {
+			Files.copy(Paths.get(outputName), temp, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temp, dir.resolve(entry), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		synchronized (this) {
+			final Long old = index.put(entry, size);
+			totalBytes += size - (old == null ? 0 : old);
+			evict();
+		}
+	}
+
+	/** Deletes the least recently used results until the cache is small enough. */
+	private synchronized void evict() throws IOException {
+		Iterator<Map.Entry<String, Long>> entries = index.entrySet().iterator();
+		while (totalBytes > maxBytes && entries.hasNext()) {
+			Map.Entry<String, Long> oldest = entries.next();
+			Files.deleteIfExists(dir.resolve(oldest.getKey()));
+			totalBytes -= oldest.getValue();
+			entries.remove();
+			evictions++;
+		}
+	}
+
+	/** @return the total size of the cached results. */
+	public synchronized long totalBytes() {
+		return totalBytes;
+	}
+
+	/** @return the number of cached results. */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/** @return how many photos were found in the cache. */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/** @return how many photos were not found in the cache. */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/** @return how many results were deleted to keep the cache under its maximum size. */
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	/** Prints the cache statistics. */
+	public synchronized void printStats() {
+		System.out.format("Result cache: %d hits, %d misses, %d evictions, %d results using %.1f MB.%n",
+				hits, misses, evictions, index.size(), totalBytes / (1024.0 * 1024.0));
+	}
+}
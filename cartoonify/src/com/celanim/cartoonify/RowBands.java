@@ -0,0 +1,105 @@
+package com.celanim.cartoonify;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits the rows of an image into horizontal bands and runs a task over each band.
+ *
+ * With a parallelism of 1 the whole image is one band and it runs on the calling thread.
+ * Otherwise the bands are processed on a ForkJoinPool.  Each band writes a disjoint
+ * set of output rows, so the result is identical to processing the image in one go.
+ * There is one pool for each parallelism, shared by everything that asks for it.
+ */
+public final class RowBands {
+
+	/** Runs every image as a single band, on the calling thread. */
+	public static final RowBands SEQUENTIAL = new RowBands(null);
+
+	/** How many bands each worker thread gets, so that uneven bands balance out. */
+	private static final int BANDS_PER_THREAD = 4;
+
+	/** The row bands for each parallelism above 1.  Their pools last as long as the program. */
+	private static final Map<Integer, RowBands> SHARED = new ConcurrentHashMap<>();
+
+	/** Some work to be done on a band of rows. */
+	public interface BandTask {
+		/**
+		 * Process rows <code>yStart .. yEnd-1</code>.
+		 * This may be called concurrently for different bands.
+		 */
+		void run(int yStart, int yEnd);
+	}
+
+	/** The pool that runs the bands, or null to run them all on the calling thread. */
+	private final ForkJoinPool pool;
+
+	private RowBands(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Get the row bands that run on the shared pool of the given size, creating it the first time.
+	 *
+	 * @param parallelism the number of worker threads.  0 means one per available processor.
+	 * @return SEQUENTIAL if parallelism is 1.
+	 */
+	public static RowBands withParallelism(int parallelism) {
+		if (parallelism < 0) {
+			throw new IllegalArgumentException("parallelism must be at least zero, not " + parallelism);
+		}
+		if (parallelism == 0) {
+			parallelism = Runtime.getRuntime().availableProcessors();
+		}
+		return parallelism == 1 ? SEQUENTIAL : SHARED.computeIfAbsent(parallelism, n -> new RowBands(new ForkJoinPool(n)));
+	}
+
+	/** @return the number of threads that bands can run on. */
+	public int parallelism() {
+		return pool == null ? 1 : pool.getParallelism();
+	}
+
+	/**
+	 * Runs the given task over all the rows <code>0 .. height-1</code>, and waits for it to finish.
+	 *
+	 * @param height the number of rows in the image.
+	 * @param task what to do with each band of rows.
+	 */
+	public void forEach(int height, BandTask task) {
+		if (pool == null || height <= 1) {
+			task.run(0, height);
+		} else {
+			final int bandRows = Math.max(1, height / (pool.getParallelism() * BANDS_PER_THREAD));
+			pool.invoke(new Band(task, 0, height, bandRows));
+		}
+	}
+
+	/** Recursively halves a range of rows until it is small enough to run directly. */
+	private static final class Band extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final BandTask task;
+		private final int yStart;
+		private final int yEnd;
+		private final int bandRows;
+
+		Band(BandTask task, int yStart, int yEnd, int bandRows) {
+			this.task = task;
+			this.yStart = yStart;
+			this.yEnd = yEnd;
+			this.bandRows = bandRows;
+		}
+
+		@Override
+		protected void compute() {
+			if (yEnd - yStart <= bandRows) {
+				task.run(yStart, yEnd);
+			} else {
+				final int yMid = (yStart + yEnd) >>> 1;
+				invokeAll(new Band(task, yStart, yMid, bandRows), new Band(task, yMid, yEnd, bandRows));
+			}
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package com.celanim.cartoonify;
+
+/**
+ * Applies both 3x3 Sobel filters to one row of pixels in a single pass.
+ *
+ * Applying <code>SOBEL_VERTICAL_KERNEL</code> and <code>SOBEL_HORIZONTAL_KERNEL</code>
+ * separately reads every neighbourhood twice and multiplies by six zero weights.
+ * But both filters can be written in terms of each source column:
+ * <pre>
+ *   sum  = above + 2 * centre + below
+ *   diff = above - below
+ *   vertical gradient   = sum[x+1] - sum[x-1]
+ *   horizontal gradient = diff[x-1] + 2 * diff[x] + diff[x+1]
+ * </pre>
+ * So this sweeps along the row keeping the sums and differences of the last three
+ * columns in local variables, and reads each source pixel only once.
+ *
+ * The gradient magnitude is |vertical| + |horizontal|, summed over the R, G, B channels,
+ * and is exactly the same as applying the two kernels.  A pixel is an edge if its
+ * magnitude is at least the edge threshold.  The edges can be written as an int image,
+ * or as one bit per pixel into an <code>EdgeMask</code>.
+ *
+ * Planar images (see <code>PlanarImage</code>) are done one colour plane at a time
+ * instead, with contiguous loops over the three source rows.
+ */
+public final class SobelOperator {
+
+	/** Output modes of the sweep. */
+	private static final int MAGNITUDES = 0;
+	private static final int PIXELS = 1;
+	private static final int BITS = 2;
+
+	private SobelOperator() {
+	}
+
+	/**
+	 * Calculates the gradient magnitudes of one row.
+	 *
+	 * @param src the source pixels, in RGB format.
+	 * @param above where the row above starts in <code>src</code> (reflected at the top edge).
+	 * @param centre where the row itself starts in <code>src</code>.
+	 * @param below where the row below starts in <code>src</code> (reflected at the bottom edge).
+	 * @param width the number of pixels in each row.
+	 * @param out receives the magnitudes.
+	 * @param outPos where the row starts in <code>out</code>.
+	 */
+	public static void magnitudeRow(int[] src, int above, int centre, int below, int width,
+			int[] out, int outPos) {
+		row(src, above, centre, below, width, MAGNITUDES, 0, 0, 0, out, outPos, null, 0);
+	}
+
+	/**
+	 * Detects the edges in one row.
+	 *
+	 * @param src the source pixels, in RGB format.
+	 * @param above where the row above starts in <code>src</code> (reflected at the top edge).
+	 * @param centre where the row itself starts in <code>src</code>.
+	 * @param below where the row below starts in <code>src</code> (reflected at the bottom edge).
+	 * @param width the number of pixels in each row.
+	 * @param threshold the smallest gradient magnitude that is an edge.
+	 * @param edge the pixel written for edges (e.g. black).
+	 * @param notEdge the pixel written for everything else (e.g. white).
+	 * @param out receives the edge mask.
+	 * @param outPos where the row starts in <code>out</code>.
+	 */
+	public static void edgeRow(int[] src, int above, int centre, int below, int width,
+			int threshold, int edge, int notEdge, int[] out, int outPos) {
+		row(src, above, centre, below, width, PIXELS, threshold, edge, notEdge, out, outPos, null, 0);
+	}
+
+	/**
+	 * Calculates the gradient magnitudes of row y of a whole image.
+	 *
+	 * @param src the whole image, in RGB format.
+	 * @param y the row, 0 .. height-1.
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 * @param out receives the magnitudes.
+	 * @param outPos where the row starts in <code>out</code>.
+	 */
+	public static void magnitudeRow(int[] src, int y, int width, int height, int[] out, int outPos) {
+		magnitudeRow(src, ConvolutionKernel.reflect(y - 1, height) * width, y * width,
+				ConvolutionKernel.reflect(y + 1, height) * width, width, out, outPos);
+	}
+
+	/**
+	 * Detects the edges in row y of a whole image.
+	 *
+	 * @param src the whole image, in RGB format.
+	 * @param y the row, 0 .. height-1.
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 * @param threshold the smallest gradient magnitude that is an edge.
+	 * @param edge the pixel written for edges (e.g. black).
+	 * @param notEdge the pixel written for everything else (e.g. white).
+	 * @param out receives the edge mask.
+	 * @param outPos where the row starts in <code>out</code>.
+	 */
+	public static void edgeRow(int[] src, int y, int width, int height,
+			int threshold, int edge, int notEdge, int[] out, int outPos) {
+		edgeRow(src, ConvolutionKernel.reflect(y - 1, height) * width, y * width,
+				ConvolutionKernel.reflect(y + 1, height) * width, width, threshold, edge, notEdge, out, outPos);
+	}
+
+	/**
+	 * Detects the edges in row y of a whole image, and stores them as bits.
+	 *
+	 * @param src the whole image, in RGB format.
+	 * @param y the row, 0 .. height-1.
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 * @param threshold the smallest gradient magnitude that is an edge.
+	 * @param mask receives row y of the edges.  It must be width * height too.
+	 */
+	public static void edgeRow(int[] src, int y, int width, int height, int threshold, EdgeMask mask) {
+		assert mask.width() == width && mask.height() == height;
+		row(src, ConvolutionKernel.reflect(y - 1, height) * width, y * width,
+				ConvolutionKernel.reflect(y + 1, height) * width, width, BITS, threshold, 0, 0,
+				null, 0, mask.words(), mask.rowStart(y));
+	}
+
+	/**
+	 * Detects the edges in row y of a planar image, and stores them as bits.
+	 *
+	 * @param image the whole image.
+	 * @param y the row, 0 .. height-1.
+	 * @param threshold the smallest gradient magnitude that is an edge.
+	 * @param magnitudes a buffer of at least width ints, which is overwritten.
+	 * @param mask receives row y of the edges.  It must be the same size as the image.
+	 */
+	public static void edgeRow(PlanarImage image, int y, int threshold, int[] magnitudes, EdgeMask mask) {
+		final int width = image.width();
+		final int height = image.height();
+		assert mask.width() == width && mask.height() == height;
+		final int above = ConvolutionKernel.reflect(y - 1, height) * width;
+		final int centre = y * width;
+		final int below = ConvolutionKernel.reflect(y + 1, height) * width;
+		for (int x = 0; x < width; x++) {
+			magnitudes[x] = 0;
+		}
+		addMagnitudes(image.red(), above, centre, below, width, magnitudes);
+		addMagnitudes(image.green(), above, centre, below, width, magnitudes);
+		addMagnitudes(image.blue(), above, centre, below, width, magnitudes);
+		mask.setRow(y, magnitudes, threshold);
+	}
+
+	/** Adds |vertical| + |horizontal| of one colour plane to the magnitudes of one row. */
+	private static void addMagnitudes(byte[] plane, int above, int centre, int below, int width,
+			int[] magnitudes) {
+		if (width <= 0) {
+			return;
+		}
+		// the end columns reflect their missing neighbour onto themselves.
+		addMagnitude(plane, above, centre, below, 0, 0, Math.min(1, width - 1), magnitudes);
+		if (width > 1) {
+			addMagnitude(plane, above, centre, below, width - 2, width - 1, width - 1, magnitudes);
+		}
+		for (int x = 1; x < width - 1; x++) {
+			final int aLeft = plane[above + x - 1] & 0xFF;
+			final int aRight = plane[above + x + 1] & 0xFF;
+			final int bLeft = plane[below + x - 1] & 0xFF;
+			final int bRight = plane[below + x + 1] & 0xFF;
+			final int vertical = (aRight - aLeft) + 2 * ((plane[centre + x + 1] & 0xFF) - (plane[centre + x - 1] & 0xFF))
+					+ (bRight - bLeft);
+			final int horizontal = (aLeft - bLeft) + 2 * ((plane[above + x] & 0xFF) - (plane[below + x] & 0xFF))
+					+ (aRight - bRight);
+			magnitudes[x] += Math.abs(vertical) + Math.abs(horizontal);
+		}
+	}
+
+	/** Adds the magnitude of plane pixel x, whose left and right neighbours are columns left and right. */
+	private static void addMagnitude(byte[] plane, int above, int centre, int below, int left, int x, int right,
+			int[] magnitudes) {
+		final int aLeft = plane[above + left] & 0xFF;
+		final int aRight = plane[above + right] & 0xFF;
+		final int bLeft = plane[below + left] & 0xFF;
+		final int bRight = plane[below + right] & 0xFF;
+		final int vertical = (aRight - aLeft) + 2 * ((plane[centre + right] & 0xFF) - (plane[centre + left] & 0xFF))
+				+ (bRight - bLeft);
+		final int horizontal = (aLeft - bLeft) + 2 * ((plane[above + x] & 0xFF) - (plane[below + x] & 0xFF))
+				+ (aRight - bRight);
+		magnitudes[x] += Math.abs(vertical) + Math.abs(horizontal);
+	}
+
+	/**
+	 * The sliding window sweep.  The mode is the same for the whole loop,
+	 * so the JIT can move its test out of the loop.
+	 */
+	private static void row(int[] src, int above, int centre, int below, int width,
+			int mode, int threshold, int edge, int notEdge, int[] out, int outPos, long[] bits, int bitsPos) {
+		if (width <= 0) {
+			return;
+		}
+		long word = 0;
+		// column x-1 is reflected to column 0 at the left edge.
+		int rgbA = src[above];
+		int rgbC = src[centre];
+		int rgbB = src[below];
+		int sumR0 = channelSum(rgbA >> 16, rgbC >> 16, rgbB >> 16);
+		int sumG0 = channelSum(rgbA >> 8, rgbC >> 8, rgbB >> 8);
+		int sumB0 = channelSum(rgbA, rgbC, rgbB);
+		int diffR0 = ((rgbA >> 16) & 0xFF) - ((rgbB >> 16) & 0xFF);
+		int diffG0 = ((rgbA >> 8) & 0xFF) - ((rgbB >> 8) & 0xFF);
+		int diffB0 = (rgbA & 0xFF) - (rgbB & 0xFF);
+		// column x starts as column 0 too.
+		int sumR1 = sumR0;
+		int sumG1 = sumG0;
+		int sumB1 = sumB0;
+		int diffR1 = diffR0;
+		int diffG1 = diffG0;
+		int diffB1 = diffB0;
+		for (int x = 0; x < width; x++) {
+			// read column x+1, which is reflected to column width-1 at the right edge.
+			final int next = x + 1 < width ? x + 1 : width - 1;
+			rgbA = src[above + next];
+			rgbC = src[centre + next];
+			rgbB = src[below + next];
+			final int sumR2 = channelSum(rgbA >> 16, rgbC >> 16, rgbB >> 16);
+			final int sumG2 = channelSum(rgbA >> 8, rgbC >> 8, rgbB >> 8);
+			final int sumB2 = channelSum(rgbA, rgbC, rgbB);
+			final int diffR2 = ((rgbA >> 16) & 0xFF) - ((rgbB >> 16) & 0xFF);
+			final int diffG2 = ((rgbA >> 8) & 0xFF) - ((rgbB >> 8) & 0xFF);
+			final int diffB2 = (rgbA & 0xFF) - (rgbB & 0xFF);
+
+			final int magnitude = Math.abs(sumR2 - sumR0) + Math.abs(sumG2 - sumG0) + Math.abs(sumB2 - sumB0)
+					+ Math.abs(diffR0 + 2 * diffR1 + diffR2)
+					+ Math.abs(diffG0 + 2 * diffG1 + diffG2)
+					+ Math.abs(diffB0 + 2 * diffB1 + diffB2);
+			if (mode == MAGNITUDES) {
+				out[outPos + x] = magnitude;
+			} else if (mode == PIXELS) {
+				out[outPos + x] = magnitude >= threshold ? edge : notEdge;
+			} else {
+				if (magnitude >= threshold) {
+					word |= 1L << x;
+				}
+				if ((x & (EdgeMask.WORD_BITS - 1)) == EdgeMask.WORD_BITS - 1 || x == width - 1) {
+					bits[bitsPos + x / EdgeMask.WORD_BITS] = word;
+					word = 0;
+				}
+			}
+
+			// slide the window one column to the right.
+			sumR0 = sumR1;
+			sumG0 = sumG1;
+			sumB0 = sumB1;
+			diffR0 = diffR1;
+			diffG0 = diffG1;
+			diffB0 = diffB1;
+			sumR1 = sumR2;
+			sumG1 = sumG2;
+			sumB1 = sumB2;
+			diffR1 = diffR2;
+			diffG1 = diffG2;
+			diffB1 = diffB2;
+		}
+	}
+
+	/** @return above + 2 * centre + below, for the channel in the bottom 8 bits of each value. */
+	private static int channelSum(int above, int centre, int below) {
+		return (above & 0xFF) + 2 * (centre & 0xFF) + (below & 0xFF);
+	}
+}
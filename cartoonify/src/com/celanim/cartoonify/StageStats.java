@@ -0,0 +1,73 @@
+package com.celanim.cartoonify;
+
+/**
+ * A snapshot of the metrics of one processing stage, with times in milliseconds.
+ */
+public final class StageStats {
+
+	private final String name;
+	private final long count;
+	private final double totalMillis;
+	private final double p50Millis;
+	private final double p99Millis;
+	private final double maxMillis;
+	private final long pixels;
+	private final long allocatedBytes;
+
+	StageStats(Metrics.Stage stage) {
+		final Histogram nanos = stage.nanos();
+		this.name = stage.name();
+		this.count = nanos.count();
+		this.totalMillis = nanos.total() / 1e6;
+		this.p50Millis = nanos.percentile(0.50) / 1e6;
+		this.p99Millis = nanos.percentile(0.99) / 1e6;
+		this.maxMillis = nanos.max() / 1e6;
+		this.pixels = stage.pixels();
+		this.allocatedBytes = stage.allocatedBytes();
+	}
+
+	/** @return the name of the stage, eg. "gaussianBlur". */
+	public String getName() {
+		return name;
+	}
+
+	/** @return how many times the stage has run. */
+	public long getCount() {
+		return count;
+	}
+
+	/** @return the total time of all the runs. */
+	public double getTotalMillis() {
+		return totalMillis;
+	}
+
+	/** @return the median time of one run. */
+	public double getP50Millis() {
+		return p50Millis;
+	}
+
+	/** @return the 99th percentile time of one run. */
+	public double getP99Millis() {
+		return p99Millis;
+	}
+
+	/** @return the longest time of one run. */
+	public double getMaxMillis() {
+		return maxMillis;
+	}
+
+	/** @return the total number of pixels processed. */
+	public long getPixels() {
+		return pixels;
+	}
+
+	/** @return megapixels processed per second of stage time. */
+	public double getMegapixelsPerSecond() {
+		return totalMillis == 0 ? 0.0 : pixels / 1e6 / (totalMillis / 1e3);
+	}
+
+	/** @return the total bytes allocated while the stage ran. */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+}
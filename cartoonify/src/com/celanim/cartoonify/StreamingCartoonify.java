@@ -0,0 +1,719 @@
+package com.celanim.cartoonify;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Vector;
+import java.util.concurrent.CancellationException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Cartoonifies photos that are too big to hold in memory, by streaming them through
+ * in bands of rows.
+ *
+ * JPEG and non-interlaced PNG photos are decoded once, from top to bottom, by a background
+ * thread that writes into a ring of one band of source rows, and waits whenever the pipeline
+ * has not yet taken the rows that it would overwrite.  (The JPEG decoder still holds all the
+ * scans of a progressive JPEG in native memory.)  Other photos, such as interlaced PNGs and
+ * BMPs, are read one band at a time using ImageReader source regions.  Most readers decode
+ * everything above a region again for each band, so these take time proportional to
+ * height * height / bandRows.
+ *
+ * The source rows go into a ring of five rows (enough for the 5x5 blur), and the fused
+ * pipeline keeps a window of three blurred rows for the Sobel filter.  The output is a
+ * RenderedImage with one tile per band of rows, which are computed as the image writer
+ * asks for them.  Writers that pull rows or tiles in order (such as PNG) and writers that
+ * pull rows from the whole image in order (such as JPEG) only ever hold one band of the
+ * cartoon in memory.  No full-size source, intermediate or output image is ever created.
+ *
+ * The cartoon is exactly the same as the one made by <code>Cartoonify.processPhotoOnCPU()</code>.
+ * Intermediate images are never saved, even when debugging.
+ */
+public final class StreamingCartoonify {
+
+	/** The default number of rows in each band. */
+	public static final int DEFAULT_BAND_ROWS = 256;
+
+	/** 0RGB pixels packed into an int. */
+	private static final ColorModel RGB = new DirectColorModel(24, 0x00FF0000, 0x0000FF00, 0x000000FF);
+
+	/** Supplies the settings and pixel helpers. */
+	private final Cartoonify settings;
+
+	/** The number of rows in each band of the source photo and of the cartoon. */
+	private final int bandRows;
+
+	private int width;
+	private int height;
+
+	/** True if the last photo was decoded once from top to bottom, rather than a band at a time. */
+	private boolean forwardOnly;
+
+	/**
+	 * @param settings the Cartoonify whose settings should be used.
+	 * @param bandRows the number of rows in each band of the source photo and of the cartoon.
+	 */
+	public StreamingCartoonify(Cartoonify settings, int bandRows) {
+		if (bandRows < 1) {
+			throw new IllegalArgumentException("band rows must be at least 1, not " + bandRows);
+		}
+		this.settings = settings;
+		this.bandRows = bandRows;
+	}
+
+	/** @return the width of the last photo processed. */
+	public int width() {
+		return width;
+	}
+
+	/** @return the height of the last photo processed. */
+	public int height() {
+		return height;
+	}
+
+	/** @return true if the last photo was decoded once from top to bottom, rather than a band at a time. */
+	public boolean isForwardOnly() {
+		return forwardOnly;
+	}
+
+	/**
+	 * Streams one photo through the cartoon pipeline and into the output file.
+	 *
+	 * @param name the input photo.
+	 * @param newName the output photo.  The extension of this name determines its file type.
+	 * @throws IOException if the photo cannot be read or written.
+	 */
+	public void process(String name, String newName) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(new File(name))) {
+			if (input == null) {
+				throw new IOException("Cannot open " + name);
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				throw new RuntimeException("Invalid image file: " + name);
+			}
+			ImageReader reader = readers.next();
+			SourceRows source = null;
+			try {
+				reader.setInput(input, true, true);
+				width = reader.getWidth(0);
+				height = reader.getHeight(0);
+				source = openSource(reader);
+				forwardOnly = source instanceof DecodedRows;
+				if (!settings.getPhotoWriters().write(new CartoonRows(source), newName)) {
+					throw new IOException("No image writer for " + newName);
+				}
+			} finally {
+				if (source != null) {
+					source.close();
+				}
+				reader.dispose();
+			}
+		}
+	}
+
+	/** @return the fastest way of reading the rows of the photo in order. */
+	private SourceRows openSource(ImageReader reader) throws IOException {
+		final int passes = sequentialPasses(reader);
+		if (passes > 0) {
+			final ImageTypeSpecifier type = reader.getImageTypes(0).next();
+			final BufferedImage ring = type.createBufferedImage(width, Math.min(bandRows, height));
+			final SampleModel tall = ring.getSampleModel().createCompatibleSampleModel(width, height);
+			final int stride = scanlineStride(ring.getSampleModel());
+			if (stride > 0 && stride == scanlineStride(tall)) {
+				return new DecodedRows(reader, passes, ring, tall, stride);
+			}
+		}
+		return new RegionBands(reader);
+	}
+
+	/**
+	 * @return the number of passes in which the reader decodes every row of the photo, from top
+	 *         to bottom, or 0 if it does not.  This is only known for JPEG and PNG photos.
+	 */
+	private static int sequentialPasses(ImageReader reader) throws IOException {
+		final IIOMetadata metadata = reader.getImageMetadata(0);
+		if (metadata == null) {
+			return 0;
+		}
+		final String format = metadata.getNativeMetadataFormatName();
+		if ("javax_imageio_jpeg_image_1.0".equals(format)) {
+			final Element tree = (Element) metadata.getAsTree(format);
+			final NodeList sof = tree.getElementsByTagName("sof");
+			final String process = sof.getLength() == 0 ? "" : ((Element) sof.item(0)).getAttribute("process");
+			if ("2".equals(process)) {
+				// progressive: the reader outputs the whole photo after each scan.
+				return tree.getElementsByTagName("sos").getLength();
+			}
+			// 0 is baseline and 1 is extended sequential.
+			return "0".equals(process) || "1".equals(process) ? 1 : 0;
+		} else if ("javax_imageio_png_1.0".equals(format)) {
+			final NodeList header = ((Element) metadata.getAsTree(format)).getElementsByTagName("IHDR");
+			return header.getLength() > 0 && "none".equals(((Element) header.item(0)).getAttribute("interlaceMethod")) ? 1 : 0;
+		}
+		return 0;
+	}
+
+	/** @return the number of data elements from one row to the next, or 0 if that is not known. */
+	private static int scanlineStride(SampleModel model) {
+		if (model instanceof ComponentSampleModel) {
+			return ((ComponentSampleModel) model).getScanlineStride();
+		} else if (model instanceof SinglePixelPackedSampleModel) {
+			return ((SinglePixelPackedSampleModel) model).getScanlineStride();
+		} else if (model instanceof MultiPixelPackedSampleModel) {
+			return ((MultiPixelPackedSampleModel) model).getScanlineStride();
+		}
+		return 0;
+	}
+
+	/** The rows of the source photo, which must be read in order. */
+	private interface SourceRows {
+		/**
+		 * Copies the next source row into pixels, as 0RGB.
+		 *
+		 * @param row the row to read, which is one more than the previous row read.
+		 * @param pixels receives the row.
+		 * @param pos the position of the first pixel of the row in <code>pixels</code>.
+		 */
+		void readRow(int row, int[] pixels, int pos) throws IOException;
+
+		/** Stops reading.  This is called even if not all the rows were read. */
+		void close() throws IOException;
+	}
+
+	/**
+	 * Reads the photo one band at a time, using ImageReader source regions.
+	 * This works for every reader, but most of them decode the whole photo
+	 * above each band again.
+	 */
+	private final class RegionBands implements SourceRows {
+		private final ImageReader reader;
+		private final ImageReadParam param;
+
+		/** The band of source rows most recently read, or null. */
+		private BufferedImage band;
+
+		/** The first row of <code>band</code>. */
+		private int bandStart;
+
+		RegionBands(ImageReader reader) {
+			this.reader = reader;
+			this.param = reader.getDefaultReadParam();
+		}
+
+		@Override
+		public void readRow(int row, int[] pixels, int pos) throws IOException {
+			if (band == null || row >= bandStart + band.getHeight()) {
+				bandStart = row;
+				param.setSourceRegion(new Rectangle(0, row, width, Math.min(bandRows, height - row)));
+				band = reader.read(0, param);
+			}
+			band.getRGB(0, row - bandStart, width, 1, pixels, pos, width);
+			for (int i = pos; i < pos + width; i++) {
+				pixels[i] &= 0x00FFFFFF; // remove any alpha channel, since we will use RGB only
+			}
+		}
+
+		@Override
+		public void close() {
+			band = null;
+		}
+	}
+
+	/**
+	 * Decodes the whole photo once, from top to bottom, on a background thread.
+	 *
+	 * The reader writes into a full-size destination image whose DataBuffer maps source row r
+	 * to row (r % ring rows) of a small ring image.  After each row, the decoder waits until
+	 * the row that the next one would overwrite has been taken by <code>readRow</code>.
+	 * Progressive photos are decoded in several passes, and only the rows of the last pass
+	 * are kept.
+	 */
+	private final class DecodedRows implements SourceRows, IIOReadUpdateListener {
+		private final ImageReader reader;
+		private final BufferedImage ring;
+		private final RingBuffer ringBuffer;
+		private final int ringRows;
+		private final int lastPass;
+		private final Thread decoder;
+
+		/** The number of rows that have been decoded into the ring. */
+		private int decodedRows = 0;
+
+		/** The number of rows that have been taken out of the ring. */
+		private int takenRows = 0;
+
+		/** True once the decoder has stopped, whether or not it read every row. */
+		private boolean finished = false;
+
+		/** True once no more rows are wanted. */
+		private boolean closed = false;
+
+		/** Why the decoder stopped early, or null. */
+		private Throwable failure;
+
+		/**
+		 * @param passes the number of times that the reader decodes every row of the photo.
+		 * @param ring the image that the decoded rows go into, in the type chosen by the reader.
+		 * @param tall the SampleModel of the whole photo, in the same type.
+		 * @param stride the number of data elements from one row to the next, in both.
+		 */
+		DecodedRows(ImageReader reader, int passes, BufferedImage ring, SampleModel tall, int stride) {
+			this.reader = reader;
+			this.ring = ring;
+			this.ringRows = ring.getHeight();
+			this.lastPass = passes - 1;
+			this.ringBuffer = new RingBuffer(ring.getRaster().getDataBuffer(), stride, ringRows, height);
+			ringBuffer.discard = lastPass > 0;
+			final WritableRaster destination = new RingRaster(tall, ringBuffer, ring.getRaster());
+			final ImageReadParam param = reader.getDefaultReadParam();
+			param.setDestination(new BufferedImage(ring.getColorModel(), destination, ring.isAlphaPremultiplied(), null));
+			reader.addIIOReadUpdateListener(this);
+			decoder = new Thread(() -> decode(param), "cartoonify-decoder");
+			decoder.setDaemon(true);
+			decoder.start();
+		}
+
+		private void decode(ImageReadParam param) {
+			Throwable error = null;
+			try {
+				reader.read(0, param);
+			} catch (Throwable e) {
+				error = e;
+			}
+			synchronized (this) {
+				if (error != null && !closed) {
+					failure = error;
+				}
+				finished = true;
+				notifyAll();
+			}
+		}
+
+		@Override
+		public void readRow(int row, int[] pixels, int pos) throws IOException {
+			synchronized (this) {
+				while (decodedRows <= row && !finished) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted while decoding row " + row, e);
+					}
+				}
+				if (failure != null) {
+					throw new IOException("Cannot decode the photo: " + failure.getMessage(), failure);
+				}
+				if (decodedRows <= row) {
+					throw new IOException("The photo ended after " + decodedRows + " of its " + height + " rows");
+				}
+			}
+			// the decoder does not touch this slot until takenRows has moved past it.
+			ring.getRGB(0, row % ringRows, width, 1, pixels, pos, width);
+			for (int i = pos; i < pos + width; i++) {
+				pixels[i] &= 0x00FFFFFF; // remove any alpha channel, since we will use RGB only
+			}
+			synchronized (this) {
+				takenRows = row + 1;
+				notifyAll();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+			try {
+				decoder.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while stopping the decoder", e);
+			} finally {
+				reader.removeIIOReadUpdateListener(this);
+			}
+		}
+
+		/** Called by the reader on the decoder thread, after it has decoded some rows. */
+		@Override
+		public void imageUpdate(ImageReader source, BufferedImage theImage, int minX, int minY,
+				int w, int h, int periodX, int periodY, int[] bands) {
+			if (ringBuffer.discard) {
+				return;
+			}
+			synchronized (this) {
+				decodedRows = Math.max(decodedRows, minY + (h - 1) * periodY + 1);
+				notifyAll();
+				// the next row goes into the slot of row (decodedRows - ringRows).
+				while (decodedRows - takenRows >= ringRows && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						closed = true;
+					}
+				}
+				if (closed) {
+					// readers may not be aborted from their listeners, so unwind the read instead.
+					throw new CancellationException("the cartoon is no longer being written");
+				}
+			}
+		}
+
+		/** Called by the reader on the decoder thread, before it decodes the photo again. */
+		@Override
+		public void passStarted(ImageReader source, BufferedImage theImage, int pass, int minPass, int maxPass,
+				int minX, int minY, int periodX, int periodY, int[] bands) {
+			if (pass > lastPass) {
+				// the rows of an earlier pass have already been used.
+				throw new IllegalStateException("the photo has more than " + (lastPass + 1) + " passes");
+			}
+			ringBuffer.discard = pass < lastPass;
+		}
+
+		@Override
+		public void passComplete(ImageReader source, BufferedImage theImage) {
+		}
+
+		@Override
+		public void thumbnailPassStarted(ImageReader source, BufferedImage theThumbnail, int pass, int minPass,
+				int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+		}
+
+		@Override
+		public void thumbnailUpdate(ImageReader source, BufferedImage theThumbnail, int minX, int minY,
+				int w, int h, int periodX, int periodY, int[] bands) {
+		}
+
+		@Override
+		public void thumbnailPassComplete(ImageReader source, BufferedImage theThumbnail) {
+		}
+	}
+
+	/**
+	 * A full-size raster that stores its rows in a ring.  Copying whole rows into it is
+	 * as fast as copying them into the ring, which is how readers usually write their rows.
+	 */
+	private static final class RingRaster extends WritableRaster {
+		private final RingBuffer buffer;
+		private final WritableRaster ring;
+
+		RingRaster(SampleModel tall, RingBuffer buffer, WritableRaster ring) {
+			super(tall, buffer, new Point(0, 0));
+			this.buffer = buffer;
+			this.ring = ring;
+		}
+
+		@Override
+		public void setRect(int dx, int dy, Raster src) {
+			if (buffer.discard) {
+				return;
+			}
+			final Rectangle rect = new Rectangle(src.getMinX() + dx, src.getMinY() + dy, src.getWidth(), src.getHeight())
+					.intersection(getBounds());
+			for (int y = rect.y; y < rect.y + rect.height; y++) {
+				ring.setRect(src.createChild(rect.x - dx, y - dy, rect.width, 1, rect.x, y % ring.getHeight(), null));
+			}
+		}
+	}
+
+	/**
+	 * The data of a full-size image, stored in the DataBuffer of a ring of rows.
+	 * Element i of row r is element i of row (r % ringRows) of the ring.
+	 * Only one thread may use it at a time.
+	 */
+	private static final class RingBuffer extends DataBuffer {
+		private final DataBuffer ring;
+		private final int stride;
+		private final int ringRows;
+
+		/** The elements of the most recently used row are from rowStart until rowEnd. */
+		private int rowStart = 0;
+		private int rowEnd = 0;
+
+		/** What to add to the elements of the most recently used row, to find them in the ring. */
+		private int shift = 0;
+
+		/** True if elements that are set should be thrown away. */
+		boolean discard = false;
+
+		RingBuffer(DataBuffer ring, int stride, int ringRows, int rows) {
+			super(ring.getDataType(), stride * rows, ring.getNumBanks());
+			this.ring = ring;
+			this.stride = stride;
+			this.ringRows = ringRows;
+		}
+
+		private int slot(int i) {
+			if (i < rowStart || i >= rowEnd) {
+				final int row = i / stride;
+				rowStart = row * stride;
+				rowEnd = rowStart + stride;
+				shift = (row % ringRows) * stride - rowStart;
+			}
+			return i + shift;
+		}
+
+		@Override
+		public int getElem(int bank, int i) {
+			return ring.getElem(bank, slot(i));
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val) {
+			if (!discard) {
+				ring.setElem(bank, slot(i), val);
+			}
+		}
+	}
+
+	/**
+	 * The output image, with one tile for each band of rows.  The bands are computed in
+	 * order as the image writer asks for them, reading more source rows whenever the
+	 * fused pipeline needs them.  Any rows of the current band, or of later bands, can be
+	 * read, but rows of earlier bands are gone.
+	 */
+	private final class CartoonRows implements RenderedImage {
+		private final SourceRows source;
+		private final FusedPipeline pipeline;
+		private final FusedPipeline.Strip strip;
+
+		/** Source row r lives in slot (r % SOURCE_RING_ROWS) of this ring. */
+		private final int[] ring;
+
+		/** The next source row to put into the ring. */
+		private int nextSourceRow = 0;
+
+		/** The rows of the current band of the cartoon. */
+		private final int[] window;
+
+		/** The current band of the cartoon, or -1 before the first one. */
+		private int windowBand = -1;
+
+		CartoonRows(SourceRows source) {
+			this.source = source;
+			this.pipeline = new FusedPipeline(settings, width, height);
+			this.ring = new int[FusedPipeline.SOURCE_RING_ROWS * width];
+			this.strip = pipeline.new Strip(ring, FusedPipeline.SOURCE_RING_ROWS, 0, height);
+			this.window = new int[Math.min(bandRows, height) * width];
+		}
+
+		/** @return the number of rows in band b. */
+		private int rowsIn(int b) {
+			return Math.min(bandRows, height - b * bandRows);
+		}
+
+		/**
+		 * Computes the bands of the cartoon up to band b.
+		 *
+		 * @return the rows of band b.
+		 * @throws IllegalStateException if band b has already been replaced by a later band.
+		 */
+		private int[] band(int b) {
+			if (b < windowBand) {
+				throw new IllegalStateException("cartoon rows must be read in order, but band "
+						+ b + " comes before band " + windowBand);
+			}
+			try {
+				while (windowBand < b) {
+					windowBand++;
+					final int start = windowBand * bandRows;
+					final int end = start + rowsIn(windowBand);
+					for (int y = start; y < end; y++) {
+						while (nextSourceRow <= pipeline.lastSourceRow(y)) {
+							source.readRow(nextSourceRow, ring, (nextSourceRow % FusedPipeline.SOURCE_RING_ROWS) * width);
+							nextSourceRow++;
+						}
+						strip.processRow(y, window, (y - start) * width, null, null, null);
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Cannot read source rows: " + e.getMessage(), e);
+			}
+			return window;
+		}
+
+		/** @return band b of the cartoon, sharing its pixels with the window. */
+		private Raster bandRaster(int b) {
+			return Raster.createRaster(RGB.createCompatibleSampleModel(width, rowsIn(b)),
+					new DataBufferInt(band(b), window.length), new Point(0, b * bandRows));
+		}
+
+		@Override
+		public Raster getData(Rectangle rect) {
+			return copyData(RGB.createCompatibleWritableRaster(rect.width, rect.height)
+					.createWritableTranslatedChild(rect.x, rect.y));
+		}
+
+		/**
+		 * @return the whole cartoon, as a read-only Raster whose rows are computed as they are read.
+		 *         They must be read in order, like the rows of this image.
+		 */
+		@Override
+		public Raster getData() {
+			return Raster.createRaster(RGB.createCompatibleSampleModel(width, height), new LazyPixels(), null);
+		}
+
+		@Override
+		public Raster getTile(int tileX, int tileY) {
+			return getData(new Rectangle(0, tileY * bandRows, width, rowsIn(tileY)));
+		}
+
+		@Override
+		public WritableRaster copyData(WritableRaster raster) {
+			if (raster == null) {
+				raster = RGB.createCompatibleWritableRaster(width, height);
+			}
+			final Rectangle rect = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+			if (!rect.isEmpty()) {
+				for (int b = rect.y / bandRows; b * bandRows < rect.y + rect.height; b++) {
+					raster.setRect(bandRaster(b));
+				}
+			}
+			return raster;
+		}
+
+		/** The pixels of the whole cartoon, which are computed a band at a time as they are read. */
+		private final class LazyPixels extends DataBuffer {
+			private final int bandSize = bandRows * width;
+
+			/** The band that windowStart and windowEnd belong to. */
+			private int startBand = -1;
+
+			/** The elements of that band are from windowStart until windowEnd. */
+			private int windowStart = 0;
+			private int windowEnd = 0;
+
+			LazyPixels() {
+				super(TYPE_INT, width * height);
+			}
+
+			@Override
+			public int getElem(int bank, int i) {
+				if (startBand != windowBand || i < windowStart || i >= windowEnd) {
+					final int b = i / bandSize;
+					band(b);
+					startBand = b;
+					windowStart = b * bandSize;
+					windowEnd = windowStart + rowsIn(b) * width;
+				}
+				return window[i - windowStart];
+			}
+
+			@Override
+			public void setElem(int bank, int i, int val) {
+				throw new UnsupportedOperationException("the cartoon cannot be changed");
+			}
+		}
+
+		@Override
+		public Vector<RenderedImage> getSources() {
+			return null;
+		}
+
+		@Override
+		public Object getProperty(String name) {
+			return java.awt.Image.UndefinedProperty;
+		}
+
+		@Override
+		public String[] getPropertyNames() {
+			return null;
+		}
+
+		@Override
+		public ColorModel getColorModel() {
+			return RGB;
+		}
+
+		@Override
+		public SampleModel getSampleModel() {
+			return RGB.createCompatibleSampleModel(width, Math.min(bandRows, height));
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		public int getMinX() {
+			return 0;
+		}
+
+		@Override
+		public int getMinY() {
+			return 0;
+		}
+
+		@Override
+		public int getNumXTiles() {
+			return 1;
+		}
+
+		@Override
+		public int getNumYTiles() {
+			return (height + bandRows - 1) / bandRows;
+		}
+
+		@Override
+		public int getMinTileX() {
+			return 0;
+		}
+
+		@Override
+		public int getMinTileY() {
+			return 0;
+		}
+
+		@Override
+		public int getTileWidth() {
+			return width;
+		}
+
+		@Override
+		public int getTileHeight() {
+			return bandRows;
+		}
+
+		@Override
+		public int getTileGridXOffset() {
+			return 0;
+		}
+
+		@Override
+		public int getTileGridYOffset() {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.celanim.cartoonify;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The per-pixel stages implemented with the <code>jdk.incubator.vector</code> API,
+ * so that each loop processes a whole vector of pixels (eg. 8 or 16) at a time.
+ *
+ * This class must only be loaded when the JVM has the incubator module, so it is
+ * created by <code>PixelStages.vectorOrScalar()</code> rather than directly.
+ * Any pixels left over at the end of a range are done by the scalar implementation.
+ */
+final class VectorPixelStages extends PixelStages {
+
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+	/** ceil(2^17 / 3), so that (sum * THIRD) >>> 17 == sum / 3 for all sums up to 3 * 255. */
+	private static final int THIRD = 43691;
+
+	@Override
+	public String name() {
+		return "vector" + INTS.length();
+	}
+
+	@Override
+	public void grayscale(int[] src, int[] dst, int from, int to) {
+		final int end = from + INTS.loopBound(to - from);
+		int pos = from;
+		for (; pos < end; pos += INTS.length()) {
+			IntVector rgb = IntVector.fromArray(INTS, src, pos);
+			IntVector sum = channel(rgb, 16).add(channel(rgb, 8)).add(channel(rgb, 0));
+			IntVector average = sum.mul(THIRD).lanewise(VectorOperators.LSHR, 17);
+			average.lanewise(VectorOperators.LSHL, 16)
+					.or(average.lanewise(VectorOperators.LSHL, 8))
+					.or(average)
+					.intoArray(dst, pos);
+		}
+		SCALAR.grayscale(src, dst, pos, to);
+	}
+
+	/**
+	 * Quantizes each channel arithmetically rather than through the lookup tables:
+	 * the bucket is (value * numColours) >> 8, which is exactly what quantizeColour's
+	 * float rounding computes, and the bucket is then scaled up to 0 .. 255 with a
+	 * float reciprocal that is accurate enough to always round down to the exact quotient.
+	 */
+	@Override
+	public void reduceColours(int[] src, int[] dst, int from, int to, ColourQuantizer quantizer) {
+		final int numColours = quantizer.numColours();
+		if (numColours < 2 || INTS.length() != FLOATS.length()) {
+			SCALAR.reduceColours(src, dst, from, to, quantizer);
+			return;
+		}
+		final float reciprocal = 1.0f / (numColours - 1);
+		final int end = from + INTS.loopBound(to - from);
+		int pos = from;
+		for (; pos < end; pos += INTS.length()) {
+			IntVector rgb = IntVector.fromArray(INTS, src, pos);
+			IntVector red = quantize(channel(rgb, 16), numColours, reciprocal);
+			IntVector green = quantize(channel(rgb, 8), numColours, reciprocal);
+			IntVector blue = quantize(channel(rgb, 0), numColours, reciprocal);
+			red.lanewise(VectorOperators.LSHL, 16)
+					.or(green.lanewise(VectorOperators.LSHL, 8))
+					.or(blue)
+					.intoArray(dst, pos);
+		}
+		SCALAR.reduceColours(src, dst, pos, to, quantizer);
+	}
+
+	@Override
+	public void mergeMask(int[] mask, int maskColour, int[] photo, int[] dst, int from, int to) {
+		final int end = from + INTS.loopBound(to - from);
+		int pos = from;
+		for (; pos < end; pos += INTS.length()) {
+			IntVector maskPixels = IntVector.fromArray(INTS, mask, pos);
+			IntVector photoPixels = IntVector.fromArray(INTS, photo, pos);
+			VectorMask<Integer> usePhoto = maskPixels.eq(maskColour);
+			maskPixels.blend(photoPixels, usePhoto).intoArray(dst, pos);
+		}
+		SCALAR.mergeMask(mask, maskColour, photo, dst, pos, to);
+	}
+
+	/** Extracts the 8-bit colour channel at the given bit position. */
+	private static IntVector channel(IntVector rgb, int shift) {
+		return rgb.lanewise(VectorOperators.LSHR, shift).and(Cartoonify.COLOUR_MASK);
+	}
+
+	/** Quantizes one channel of colour values, exactly like ColourQuantizer.quantizeColour. */
+	private static IntVector quantize(IntVector value, int numColours, float reciprocal) {
+		IntVector discrete = value.mul(numColours).lanewise(VectorOperators.LSHR, Cartoonify.COLOUR_BITS);
+		FloatVector scaled = ((FloatVector) discrete.mul(Cartoonify.COLOUR_MASK).convert(VectorOperators.I2F, 0))
+				.add(0.5f).mul(reciprocal);
+		return (IntVector) scaled.convert(VectorOperators.F2I, 0);
+	}
+}
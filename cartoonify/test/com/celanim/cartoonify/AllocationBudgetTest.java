@@ -0,0 +1,127 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that no stage allocates more memory per megapixel than it needs.
+ *
+ * Each stage runs on a fixed synthetic photo, on the test thread only, and the bytes
+ * allocated by that thread are compared with a budget measured in output frames
+ * (4 bytes per pixel).  With no pixel buffer pool, a stage that pushes one image may
+ * allocate that one frame plus a few rows of scratch space.  A per-pixel allocation,
+ * or an extra full-size copy, puts a stage well over its budget.
+ */
+public class AllocationBudgetTest {
+
+	private static final int WIDTH = 1000;
+	private static final int HEIGHT = 750;
+
+	/** The bytes in one full-size output image. */
+	private static final double FRAME_BYTES = 4.0 * WIDTH * HEIGHT;
+
+	/** Room for the row buffers and small objects that a stage may allocate. */
+	private static final double SCRATCH_FRAMES = 0.1;
+
+	private Cartoonify cart;
+
+	/** @return a photo of random colours, which is the same every time. */
+	static Photo syntheticPhoto() {
+		Random random = new Random(42);
+		int[] pixels = new int[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextInt() & 0xFFFFFF;
+		}
+		return new Photo("synthetic.png", WIDTH, HEIGHT, pixels);
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		assumeTrue("this JVM cannot count allocated bytes", Metrics.allocatedBytes() > 0);
+		cart = new Cartoonify();
+		cart.setPixelPool(new PixelBufferPool(0)); // every new image is a fresh allocation.
+		cart.pushPhoto(syntheticPhoto());
+	}
+
+	/**
+	 * Runs a stage once to warm up (eg. quantizer tables and lambdas), then measures a second run.
+	 *
+	 * @param frames the budget, in output frames.
+	 * @param stage adds its images to the stack.  They are dropped after each run.
+	 * @return the frames allocated by the second run.
+	 */
+	private double assertWithinBudget(String name, double frames, Runnable stage) {
+		final int images = cart.numImages();
+		stage.run();
+		while (cart.numImages() > images) {
+			cart.dropImage();
+		}
+		final long before = Metrics.allocatedBytes();
+		stage.run();
+		final double used = (Metrics.allocatedBytes() - before) / FRAME_BYTES;
+		while (cart.numImages() > images) {
+			cart.dropImage();
+		}
+		assertTrue(String.format("%s allocated %.3f frames (%.0f bytes per megapixel), over its budget of %.3f",
+				name, used, used * FRAME_BYTES * 1e6 / (WIDTH * HEIGHT), frames), used <= frames);
+		return used;
+	}
+
+	@Test
+	public void testGaussianBlur() {
+		assertWithinBudget("gaussianBlur", 1 + SCRATCH_FRAMES, cart::gaussianBlur);
+	}
+
+	@Test
+	public void testSobelEdgeDetect() {
+		assertWithinBudget("sobelEdgeDetect", 1 + SCRATCH_FRAMES, cart::sobelEdgeDetect);
+	}
+
+	@Test
+	public void testSobelEdgeMask() {
+		// one bit per pixel, which is 1/32 of a frame.
+		assertWithinBudget("sobelEdgeMask", SCRATCH_FRAMES, cart::sobelEdgeMask);
+	}
+
+	@Test
+	public void testReduceColours() {
+		assertWithinBudget("reduceColours", 1 + SCRATCH_FRAMES, cart::reduceColours);
+	}
+
+	@Test
+	public void testMergeMask() {
+		final EdgeMask edges = cart.sobelEdgeMask();
+		assertWithinBudget("mergeMask", 1 + SCRATCH_FRAMES, () -> cart.mergeMask(edges, cart.black, 0));
+	}
+
+	@Test
+	public void testProcessPhotoOnCPU() {
+		// blurred, colour and final images, plus the edge mask.  The original is cloned without copying.
+		assertWithinBudget("processPhotoOnCPU", 3 + SCRATCH_FRAMES, cart::processPhotoOnCPU);
+	}
+
+	@Test
+	public void testProcessPhotoFused() {
+		// only the final image is full size.
+		assertWithinBudget("processPhotoFused", 1 + SCRATCH_FRAMES, cart::processPhotoFused);
+	}
+
+	@Test
+	public void testProcessPhotoPlanar() {
+		// the blurred planes are kept from the warm-up run, so just the colour and final images.
+		assertWithinBudget("processPhotoPlanar", 2 + SCRATCH_FRAMES, cart::processPhotoPlanar);
+	}
+
+	@Test
+	public void testPooledPhotoReusesFrames() {
+		cart.setPixelPool(new PixelBufferPool(PixelBufferPool.DEFAULT_MAX_BYTES));
+		// the first run fills the pool, and the second one takes all its images from it.
+		assertWithinBudget("pooled processPhotoOnCPU", SCRATCH_FRAMES, cart::processPhotoOnCPU);
+	}
+}
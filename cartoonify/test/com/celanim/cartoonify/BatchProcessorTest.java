@@ -0,0 +1,112 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchProcessorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Copies test.png into the temporary folder a few times. */
+	private List<String> copyTestPhotos(int count) throws IOException {
+		List<String> photos = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			File photo = folder.newFile("photo" + i + ".png");
+			Files.copy(new File("test.png").toPath(), photo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			photos.add(photo.getPath());
+		}
+		return photos;
+	}
+
+	@Test
+	public void testConcurrentBatch() throws IOException {
+		Cartoonify settings = new Cartoonify();
+		settings.setEdgeThreshold(256);
+		BatchProcessor batch = new BatchProcessor(settings, 3);
+		batch.run(copyTestPhotos(5));
+		assertEquals(5, batch.getDone());
+		assertEquals(5 * 50 * 30, batch.getPixels());
+		assertTrue(batch.photosPerSecond() > 0.0);
+		checkCartoons(5);
+	}
+
+	@Test
+	public void testPipelinedBatch() throws IOException {
+		Cartoonify settings = new Cartoonify();
+		settings.setEdgeThreshold(256);
+		BatchProcessor batch = new BatchProcessor(settings, 2);
+		batch.setPipelineDepth(1);
+		batch.run(copyTestPhotos(6));
+		assertEquals(6, batch.getDone());
+		assertEquals(6 * 50 * 30, batch.getPixels());
+		assertNotNull(batch.pipeline());
+		assertTrue(batch.pipeline().decodedTakeSeconds() >= 0.0);
+		checkCartoons(6);
+	}
+
+	@Test(expected = IOException.class)
+	public void testPipelineFailure() throws IOException {
+		BatchProcessor batch = new BatchProcessor(new Cartoonify(), 2);
+		batch.setPipelineDepth(1);
+		batch.run(Arrays.asList(new File(folder.getRoot(), "noSuchPhoto.png").getPath()));
+	}
+
+	@Test
+	public void testFailureStopsOtherWorkers() throws IOException {
+		List<String> photos = copyTestPhotos(40);
+		photos.add(1, new File(folder.getRoot(), "noSuchPhoto.png").getPath());
+		BatchProcessor batch = new BatchProcessor(new Cartoonify(), 2);
+		try {
+			batch.run(photos);
+			fail("the missing photo should fail the batch");
+		} catch (IOException expected) {
+			// the other worker stops after its current photo, rather than doing the rest of them.
+			assertTrue("done " + batch.getDone(), batch.getDone() < 20);
+		}
+	}
+
+	@Test
+	public void testPipelineFailureWaitsForThreads() throws IOException, InterruptedException {
+		List<String> photos = copyTestPhotos(40);
+		photos.add(1, new File(folder.getRoot(), "noSuchPhoto.png").getPath());
+		BatchProcessor batch = new BatchProcessor(new Cartoonify(), 2);
+		batch.setPipelineDepth(2);
+		try {
+			batch.run(photos);
+			fail("the missing photo should fail the batch");
+		} catch (IOException expected) {
+			// every thread has finished by the time run fails, so no more photos are recorded.
+			final int done = batch.getDone();
+			Thread.sleep(100);
+			assertEquals(done, batch.getDone());
+		}
+	}
+
+	/** Checks that each photo in the temporary folder has been cartoonified correctly. */
+	private void checkCartoons(int count) throws IOException {
+		Cartoonify expected = new Cartoonify();
+		expected.loadPhoto("test_cartoon_e256_c3.png");
+		for (int i = 0; i < count; i++) {
+			Cartoonify cart = new Cartoonify();
+			cart.loadPhoto(new File(folder.getRoot(), "photo" + i + "_cartoon.png").getPath());
+			assertArrayEquals(expected.currentImage(), cart.currentImage());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoWorkers() {
+		new BatchProcessor(new Cartoonify(), 0);
+	}
+}
@@ -11,9 +11,17 @@ import com.celanim.cartoonify.Cartoonify;
 
 public class CartoonifyTest {
 
+	/**
+	 * Creates the Cartoonify processor that each test runs against.
+	 * Subclasses can override this to run all these tests against other configurations.
+	 */
+	protected Cartoonify newCartoonify() {
+		return new Cartoonify();
+	}
+
 	@Test
 	public void testLoad() throws IOException {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		assertEquals(0, cart.numImages());
 		cart.loadPhoto("test.png");
 		assertEquals(1, cart.numImages());
@@ -40,7 +48,7 @@ public class CartoonifyTest {
 
 	@Test
 	public void testStack() throws IOException {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		cart.loadPhoto("test.png");
 		assertEquals(1, cart.numImages());
 		cart.cloneImage(-1);
@@ -80,9 +88,32 @@ public class CartoonifyTest {
 		assertEquals(0, cart.numImages());
 	}
 
+	@Test
+	public void testCloneIsCopyOnWrite() throws IOException {
+		Cartoonify cart = newCartoonify();
+		cart.loadPhoto("test.png");
+		final int[] original = cart.currentImage();
+		final long misses = cart.getPixelPool().misses();
+		cart.cloneImage(0);
+		cart.cloneImage(-1);
+		assertEquals(3, cart.numImages());
+		assertSame(original, cart.currentImage());
+		assertEquals(misses, cart.getPixelPool().misses());
+		// popping a shared image gives a private copy, so changing it leaves the stack alone.
+		int[] copy = cart.popImage();
+		assertNotSame(original, copy);
+		assertArrayEquals(original, copy);
+		copy[0] = 0;
+		assertEquals(0x00FF0000, cart.pixel(0, 0));
+		cart.popImage();
+		// the last reference is not copied.
+		assertSame(original, cart.popImage());
+		assertEquals(0, cart.numImages());
+	}
+
 	@Test
 	public void testClamp() {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		for (int i = 0; i < 300; i++) {
 			assertEquals(0, cart.clamp(-i));
 			assertEquals(255, cart.clamp(255 + i));
@@ -96,7 +127,7 @@ public class CartoonifyTest {
 
 	@Test
 	public void testWrap() {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		// Test small violations of the lower bound
 		// The mirror is at the very edge.  So we should see each pixel twice.
 		assertEquals(2, cart.wrap(2, 100));
@@ -117,7 +148,7 @@ public class CartoonifyTest {
 
 	@Test
 	public void testQuantizeColour2() {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		assertEquals(0, cart.quantizeColour(0, 2));
 		assertEquals(0, cart.quantizeColour(127, 2));
 		assertEquals(255, cart.quantizeColour(128, 2));
@@ -126,7 +157,7 @@ public class CartoonifyTest {
 
 	@Test
 	public void testQuantizeColour3() {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		assertEquals(0, cart.quantizeColour(0, 3));
 		assertEquals(0, cart.quantizeColour(85, 3));
 		assertEquals(127, cart.quantizeColour(86, 3));
@@ -137,7 +168,7 @@ public class CartoonifyTest {
 
 	@Test
 	public void testQuantizeColour25() {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		assertEquals(0, cart.quantizeColour(0, 26));
 		assertEquals(0, cart.quantizeColour(9, 26));
 		assertEquals(10, cart.quantizeColour(10, 26));
@@ -150,7 +181,7 @@ public class CartoonifyTest {
 
 	@Test
 	public void testConvolutionCentre() throws IOException {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		cart.loadPhoto("test.png");
 		// red pixels near a black region
 		assertEquals(0, cart.convolution(2, 2, Cartoonify.GAUSSIAN_FILTER)[1]);
@@ -161,7 +192,7 @@ public class CartoonifyTest {
 
 	@Test
 	public void testConvolutionXAxis() throws IOException {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		cart.loadPhoto("test.png");
 		// go along the black line over the zero edge.
 		for (int x = -3; x <= 3; x++) {
@@ -171,7 +202,7 @@ public class CartoonifyTest {
 
 	@Test
 	public void testConvolutionYAxis() throws IOException {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		cart.loadPhoto("test.png");
 		// go along the black line over the zero edge.
 		for (int y = -3; y <= 3; y++) {
@@ -181,7 +212,7 @@ public class CartoonifyTest {
 
 	@Test
 	public void testGaussianBlurMiddle() throws IOException {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		cart.loadPhoto("test.png");
 		cart.gaussianBlur();
 		assertEquals(0x00FF0000, cart.pixel(0, 0));  // surrounded by pure red
@@ -218,7 +249,7 @@ public class CartoonifyTest {
 	 */
 	@Test
 	public void testGaussianBlurEdge() throws IOException {
-		Cartoonify cart = new Cartoonify();
+		Cartoonify cart = newCartoonify();
 		cart.loadPhoto("test.png");
 		cart.gaussianBlur();
 		assertEquals(cart.createPixel(  0,   0, 255), cart.pixel(12, 0));
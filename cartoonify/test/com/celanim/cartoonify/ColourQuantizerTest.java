@@ -0,0 +1,44 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ColourQuantizerTest {
+
+	@Test
+	public void testSameAsQuantizeColour() {
+		Cartoonify cart = new Cartoonify();
+		for (int numColours = 2; numColours <= 256; numColours++) {
+			ColourQuantizer quantizer = new ColourQuantizer(numColours);
+			assertEquals(numColours, quantizer.numColours());
+			for (int value = 0; value <= Cartoonify.COLOUR_MASK; value++) {
+				final int expected = cart.quantizeColour(value, numColours);
+				assertEquals(cart.createPixel(expected, 0, 0), quantizer.quantize(cart.createPixel(value, 0, 0)));
+				assertEquals(cart.createPixel(0, expected, 0), quantizer.quantize(cart.createPixel(0, value, 0)));
+				assertEquals(cart.createPixel(0, 0, expected), quantizer.quantize(cart.createPixel(0, 0, value)));
+			}
+		}
+	}
+
+	@Test
+	public void testQuantizeRange() {
+		ColourQuantizer quantizer = new ColourQuantizer(3);
+		int[] src = {0x00000000, 0x00555555, 0x00565656, 0x00AAAAAA, 0x00ABABAB, 0x00FFFFFF, 0x00FF8000};
+		int[] dst = new int[src.length];
+		quantizer.quantize(src, dst, 1, src.length);
+		assertArrayEquals(new int[] {0, 0, 0x007F7F7F, 0x007F7F7F, 0x00FFFFFF, 0x00FFFFFF, 0x00FF7F00}, dst);
+	}
+
+	@Test
+	public void testCachedUntilNumColoursChanges() {
+		Cartoonify cart = new Cartoonify();
+		ColourQuantizer first = cart.quantizer();
+		assertSame(first, cart.quantizer());
+		cart.setNumColours(3);
+		assertSame(first, cart.quantizer());
+		cart.setNumColours(4);
+		assertNotSame(first, cart.quantizer());
+		assertEquals(4, cart.quantizer().numColours());
+	}
+}
@@ -0,0 +1,99 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ConvolutionKernelTest {
+
+	@Test
+	public void testShape() {
+		assertEquals(5, Cartoonify.GAUSSIAN_KERNEL.size());
+		assertEquals(2, Cartoonify.GAUSSIAN_KERNEL.half());
+		assertEquals(3, Cartoonify.SOBEL_VERTICAL_KERNEL.size());
+		assertEquals(1, Cartoonify.SOBEL_VERTICAL_KERNEL.half());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNonSquare() {
+		new ConvolutionKernel(new int[] {1, 2, 3}, 1);
+	}
+
+	@Test
+	public void testNormaliseMatchesClamp() {
+		Cartoonify cart = new Cartoonify();
+		final int maxSum = Cartoonify.COLOUR_MASK * (int) Cartoonify.GAUSSIAN_SUM;
+		for (int sum = -1000; sum <= maxSum + 1000; sum++) {
+			assertEquals("sum=" + sum, cart.clamp(sum / Cartoonify.GAUSSIAN_SUM),
+					Cartoonify.GAUSSIAN_KERNEL.normalise(sum));
+		}
+	}
+
+	@Test
+	public void testApplyRowMatchesConvolution() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.loadPhoto("test.png");
+		checkRows(cart, Cartoonify.GAUSSIAN_KERNEL, Cartoonify.GAUSSIAN_FILTER);
+		checkRows(cart, Cartoonify.SOBEL_VERTICAL_KERNEL, Cartoonify.SOBEL_VERTICAL_FILTER);
+		checkRows(cart, Cartoonify.SOBEL_HORIZONTAL_KERNEL, Cartoonify.SOBEL_HORIZONTAL_FILTER);
+	}
+
+	/**
+	 * Checks the interior/border split against a plain reflect-every-tap convolution,
+	 * including images that are narrower than the filter.
+	 * Reflecting only works once, so the image must be at least half the filter wide.
+	 */
+	@Test
+	public void testBorderAndInterior() {
+		Random rand = new Random(42);
+		for (int width = 2; width <= 12; width++) {
+			final int height = 7;
+			int[] src = new int[width * height];
+			for (int i = 0; i < src.length; i++) {
+				src[i] = rand.nextInt(0x01000000);
+			}
+			ConvolutionKernel kernel = Cartoonify.GAUSSIAN_KERNEL;
+			int[] rowStarts = new int[kernel.size()];
+			int[] red = new int[width];
+			int[] green = new int[width];
+			int[] blue = new int[width];
+			for (int y = 0; y < height; y++) {
+				kernel.rowStarts(y, width, height, rowStarts);
+				kernel.applyRow(src, rowStarts, width, red, green, blue);
+				for (int x = 0; x < width; x++) {
+					int sum = 0;
+					for (int fy = 0; fy < 5; fy++) {
+						for (int fx = 0; fx < 5; fx++) {
+							int sx = ConvolutionKernel.reflect(x + fx - 2, width);
+							int sy = ConvolutionKernel.reflect(y + fy - 2, height);
+							sum += (src[sy * width + sx] & 0xFF) * Cartoonify.GAUSSIAN_FILTER[fy * 5 + fx];
+						}
+					}
+					assertEquals("width=" + width + " x=" + x + " y=" + y, sum, blue[x]);
+				}
+			}
+		}
+	}
+
+	private void checkRows(Cartoonify cart, ConvolutionKernel kernel, int[] filter) {
+		final int width = cart.width();
+		final int height = cart.height();
+		int[] rowStarts = new int[kernel.size()];
+		int[] red = new int[width];
+		int[] green = new int[width];
+		int[] blue = new int[width];
+		for (int y = 0; y < height; y++) {
+			kernel.rowStarts(y, width, height, rowStarts);
+			kernel.applyRow(cart.currentImage(), rowStarts, width, red, green, blue);
+			for (int x = 0; x < width; x++) {
+				int[] expected = cart.convolution(x, y, filter);
+				assertEquals(expected[0], red[x]);
+				assertEquals(expected[1], green[x]);
+				assertEquals(expected[2], blue[x]);
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EdgeMaskTest {
+
+	@Test
+	public void testRowsStartAtNewWords() {
+		EdgeMask mask = new EdgeMask(65, 3);
+		assertEquals(2, mask.wordsPerRow());
+		mask.setEdge(64, 0, true);
+		mask.setEdge(0, 1, true);
+		assertTrue(mask.isEdge(64, 0));
+		assertTrue(mask.isEdge(0, 1));
+		assertFalse(mask.isEdge(0, 0));
+		assertEquals(2, mask.countEdges());
+		mask.setEdge(64, 0, false);
+		assertFalse(mask.isEdge(64, 0));
+		assertEquals(1, mask.countEdges());
+	}
+
+	@Test
+	public void testMergeAndToPixels() {
+		Random rand = new Random(42);
+		for (int width : new int[] {1, 63, 64, 65, 130}) {
+			final int height = 4;
+			EdgeMask mask = new EdgeMask(width, height);
+			int[] photo = new int[width * height];
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					photo[y * width + x] = rand.nextInt(0x01000000);
+					mask.setEdge(x, y, rand.nextInt(4) == 0);
+				}
+			}
+			int[] pixels = new int[width * height];
+			int[] merged = new int[width * height];
+			mask.toPixels(1, 2, pixels, 0, height);
+			mask.merge(3, photo, merged, 0, height);
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					final int pos = y * width + x;
+					assertEquals(mask.isEdge(x, y) ? 1 : 2, pixels[pos]);
+					assertEquals(mask.isEdge(x, y) ? 3 : photo[pos], merged[pos]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMatchesEdgeImage() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.setEdgeThreshold(256);
+		cart.loadPhoto("test.png");
+		EdgeMask mask = cart.sobelEdgeMask();
+		assertEquals(1, cart.numImages());
+		cart.sobelEdgeDetect();
+		cart.pushEdges(mask);
+		assertArrayEquals(cart.popImage(), cart.popImage());
+
+		cart.mergeMask(mask, cart.black, 0);
+		int[] fromMask = cart.popImage();
+		cart.sobelEdgeDetect();
+		cart.mergeMask(1, cart.white, 0);
+		assertArrayEquals(cart.popImage(), fromMask);
+	}
+}
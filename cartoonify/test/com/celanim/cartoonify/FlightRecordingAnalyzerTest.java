@@ -0,0 +1,66 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FlightRecordingAnalyzerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testStagesAreRecorded() throws IOException {
+		Path jfr = folder.getRoot().toPath().resolve("cartoon.jfr");
+		Path output = folder.getRoot().toPath().resolve("cartoon.png");
+		try (Recording recording = new Recording()) {
+			recording.enable(PipelineEvents.LoadPhoto.class);
+			recording.enable(PipelineEvents.Stage.class);
+			recording.enable(PipelineEvents.SavePhoto.class);
+			recording.start();
+			Cartoonify cart = new Cartoonify();
+			cart.setEdgeThreshold(256);
+			cart.loadPhoto("test.png");
+			cart.processCurrentPhoto("test.png");
+			cart.savePhoto(output.toString());
+			recording.stop();
+			recording.dump(jfr);
+		}
+		Map<String, FlightRecordingAnalyzer.StageTotal> totals = FlightRecordingAnalyzer.summarise(jfr);
+		for (String stage : new String[] {"loadPhoto", "gaussianBlur", "sobelEdgeDetect", "reduceColours",
+				"mergeMask", "processPhoto", "savePhoto"}) {
+			FlightRecordingAnalyzer.StageTotal total = totals.get(stage);
+			assertNotNull(stage, total);
+			assertEquals(stage, 1, total.count());
+			assertEquals(stage, total.totalNanos(), total.maxNanos());
+		}
+		assertEquals("test.png", totals.get("gaussianBlur").slowestPhoto());
+		assertEquals(output.toString(), totals.get("savePhoto").slowestPhoto());
+		assertTrue(totals.get("processPhoto").totalNanos() >= totals.get("gaussianBlur").totalNanos());
+	}
+
+	@Test
+	public void testEventFields() {
+		PipelineEvents.Stage event = new PipelineEvents.Stage("gaussianBlur");
+		event.describe("a.jpg", 4, 3, 128, 5);
+		if (event.isEnabled()) {
+			assertEquals("gaussianBlur", event.stage);
+			assertEquals("a.jpg", event.photo);
+			assertEquals(4, event.width);
+			assertEquals(3, event.height);
+			assertEquals(128, event.edgeThreshold);
+			assertEquals(5, event.numColours);
+		} else {
+			// nothing is filled in when recording is off.
+			assertNull(event.photo);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class FusedPipelineTest {
+
+	/** Runs the staged pipeline and returns the final image. */
+	private int[] staged(String photo, int edgeThreshold, int numColours) throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.setEdgeThreshold(edgeThreshold);
+		cart.setNumColours(numColours);
+		cart.loadPhoto(photo);
+		cart.processPhotoOnCPU();
+		return cart.popImage();
+	}
+
+	@Test
+	public void testSameAsStaged() throws IOException {
+		for (int parallelism = 1; parallelism <= 3; parallelism++) {
+			Cartoonify cart = new Cartoonify();
+			cart.setParallelism(parallelism);
+			cart.setFused(true);
+			cart.setEdgeThreshold(256);
+			cart.setNumColours(3);
+			cart.loadPhoto("test.png");
+			cart.processPhotoFused();
+			assertEquals(2, cart.numImages());
+			assertArrayEquals(staged("test.png", 256, 3), cart.popImage());
+		}
+	}
+
+	@Test
+	public void testDebugIntermediates() throws IOException {
+		Cartoonify expected = new Cartoonify();
+		expected.setDebug(true); // so that the edge image is pushed too.
+		expected.loadPhoto("test.png");
+		expected.processPhotoOnCPU();
+
+		Cartoonify cart = new Cartoonify();
+		cart.setDebug(true);
+		cart.loadPhoto("test.png");
+		cart.processPhotoFused();
+		assertEquals(expected.numImages(), cart.numImages());
+		while (cart.numImages() > 0) {
+			assertArrayEquals(expected.popImage(), cart.popImage());
+		}
+	}
+}
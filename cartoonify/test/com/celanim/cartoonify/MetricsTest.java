@@ -0,0 +1,143 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MetricsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testBuckets() {
+		for (long value = 0; value < 100000; value += 7) {
+			final int bucket = Histogram.bucket(value);
+			assertTrue(value <= Histogram.bucketMax(bucket));
+			assertTrue(bucket == 0 || Histogram.bucketMax(bucket - 1) < value);
+		}
+		assertEquals(Long.MAX_VALUE, Histogram.bucketMax(Histogram.bucket(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testPercentiles() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.percentile(0.5));
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(1000, histogram.count());
+		assertEquals(500500000L, histogram.total());
+		assertEquals(1000000L, histogram.max());
+		assertEquals(500000.0, histogram.percentile(0.5), 500000 * 0.04);
+		assertEquals(990000.0, histogram.percentile(0.99), 990000 * 0.04);
+		assertEquals(1000000L, histogram.percentile(1.0));
+		histogram.reset();
+		assertEquals(0, histogram.count());
+		assertEquals(0, histogram.max());
+	}
+
+	/** @return the stage metrics, keyed by stage name. */
+	private static Map<String, StageStats> stages(Metrics metrics) {
+		Map<String, StageStats> result = new HashMap<>();
+		for (StageStats stage : metrics.getStages()) {
+			result.put(stage.getName(), stage);
+		}
+		return result;
+	}
+
+	@Test
+	public void testStagesAreRecorded() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.loadPhoto("test.png");
+		final long pixels = (long) cart.width() * cart.height();
+		cart.processCurrentPhoto("test.png");
+		Map<String, StageStats> stages = stages(cart.getMetrics());
+		for (String name : new String[] {"loadPhoto", "gaussianBlur", "sobelEdgeDetect", "reduceColours", "mergeMask", "processPhoto"}) {
+			StageStats stage = stages.get(name);
+			assertNotNull(name, stage);
+			assertEquals(name, 1, stage.getCount());
+			assertEquals(name, pixels, stage.getPixels());
+			assertTrue(name, stage.getMaxMillis() >= stage.getP50Millis());
+		}
+		// the whole photo takes at least as long as its blur stage.
+		assertTrue(stages.get("processPhoto").getTotalMillis() >= stages.get("gaussianBlur").getTotalMillis());
+		cart.getMetrics().reset();
+		assertEquals(0, stages(cart.getMetrics()).get("gaussianBlur").getCount());
+	}
+
+	@Test
+	public void testCopiesShareMetrics() {
+		Cartoonify settings = new Cartoonify();
+		assertSame(settings.getMetrics(), new Cartoonify(settings).getMetrics());
+	}
+
+	@Test
+	public void testQueueDepths() throws IOException {
+		File photo = folder.newFile("photo.png");
+		Files.copy(new File("test.png").toPath(), photo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		Cartoonify settings = new Cartoonify();
+		BatchProcessor batch = new BatchProcessor(settings, 1);
+		batch.setPipelineDepth(2);
+		batch.run(Arrays.asList(photo.getPath(), photo.getPath()));
+		QueueStats decoded = null;
+		for (QueueStats queue : settings.getMetrics().getQueues()) {
+			if (queue.getName().equals("decoded")) {
+				decoded = queue;
+			}
+		}
+		assertNotNull(decoded);
+		assertTrue(decoded.getSamples() >= 2);
+		assertTrue(decoded.getMaxDepth() <= 2);
+		assertEquals(2, stages(settings.getMetrics()).get("savePhoto").getCount());
+	}
+
+	@Test
+	public void testReports() throws IOException {
+		Metrics metrics = new Metrics();
+		metrics.stage("gaussianBlur").record(2000000L, 1000000L, 4096L);
+		metrics.recordQueueDepth("decoded", 3);
+		String json = metrics.getJson();
+		assertTrue(json, json.contains("\"name\": \"gaussianBlur\", \"count\": 1, \"totalMillis\": 2.000"));
+		assertTrue(json, json.contains("\"pixels\": 1000000, \"megapixelsPerSecond\": 500.000, \"allocatedBytes\": 4096"));
+		assertTrue(json, json.contains("\"name\": \"decoded\", \"samples\": 1, \"p50Depth\": 3"));
+
+		Path csv = folder.getRoot().toPath().resolve("metrics.csv");
+		metrics.writeReport(csv);
+		String[] lines = new String(Files.readAllBytes(csv), StandardCharsets.UTF_8).split("\\R");
+		assertEquals(3, lines.length);
+		assertEquals("stage,gaussianBlur,1,2.000,2.000,2.000,2.000,1000000,4096", lines[1]);
+		assertEquals("queue,decoded,1,,3,3,3,,", lines[2]);
+
+		Path report = folder.getRoot().toPath().resolve("metrics.json");
+		metrics.writeReport(report);
+		assertEquals(json, new String(Files.readAllBytes(report), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testMBean() throws JMException {
+		Metrics metrics = new Metrics();
+		metrics.stage("savePhoto").record(1000L, 1L, 0L);
+		metrics.registerMBean();
+		new Metrics().registerMBean();  // replaces the first one.
+		metrics.registerMBean();
+		Object csv = ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(Metrics.MBEAN_NAME), "Csv");
+		assertEquals(metrics.getCsv(), csv);
+	}
+}
@@ -0,0 +1,119 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the reusable OpenCL session.  Most of these need an OpenCL platform, such as
+ * a GPU driver or a CPU runtime like POCL, and are skipped if there is none.
+ */
+public class OpenCLSessionTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static void assumeOpenCL() {
+		assumeTrue("no OpenCL platform", OpenCLSession.isAvailable());
+	}
+
+	@Test
+	public void testBinaryName() {
+		final String name = OpenCLSession.binaryName("kernel source", "device\n1.2\ndriver");
+		assertTrue(name, name.matches("kernel-[0-9a-f]{64}\\.bin"));
+		assertEquals(name, OpenCLSession.binaryName("kernel source", "device\n1.2\ndriver"));
+		assertNotEquals(name, OpenCLSession.binaryName("kernel source 2", "device\n1.2\ndriver"));
+		assertNotEquals(name, OpenCLSession.binaryName("kernel source", "device\n1.2\ndriver 2"));
+	}
+
+	/** @return the cartoon of a photo, made by the given session. */
+	private static int[] cartoon(OpenCLSession session, Photo photo) {
+		int[] result = new int[photo.pixels().length];
+		session.run(photo.pixels(), photo.width(), photo.height(), 128);
+		session.readResults(null, null, null, result);
+		return result;
+	}
+
+	@Test
+	public void testCachesCompiledProgram() throws IOException {
+		assumeOpenCL();
+		final Path cache = folder.getRoot().toPath();
+		final Photo photo = Photo.read("test.png");
+		final int[] first;
+		try (OpenCLSession session = OpenCLSession.open(cache)) {
+			assertFalse(session.isCachedBinary());
+			first = cartoon(session, photo);
+		}
+		File[] binaries = cache.toFile().listFiles((dir, name) -> name.endsWith(".bin"));
+		assertEquals(1, binaries.length);
+		assertTrue(binaries[0].length() > 0);
+		try (OpenCLSession session = OpenCLSession.open(cache)) {
+			assertTrue(session.isCachedBinary());
+			assertArrayEquals(first, cartoon(session, photo));
+		}
+	}
+
+	@Test
+	public void testReusesBuffersAcrossPhotos() throws IOException {
+		assumeOpenCL();
+		final Photo photo = Photo.read("test.png");
+		final Photo other = AllocationBudgetTest.syntheticPhoto();
+		try (OpenCLSession session = OpenCLSession.open(null)) {
+			final int[] first = cartoon(session, photo);
+			assertEquals(photo.pixels().length, session.bufferPixels());
+			final int[] second = cartoon(session, other);
+			assertEquals(other.pixels().length, session.bufferPixels());
+			assertArrayEquals(first, cartoon(session, photo));
+			try (OpenCLSession fresh = OpenCLSession.open(null)) {
+				assertArrayEquals(second, cartoon(fresh, other));
+			}
+		}
+	}
+
+	@Test
+	public void testIntermediateImages() throws IOException {
+		assumeOpenCL();
+		final Photo photo = Photo.read("test.png");
+		final int n = photo.pixels().length;
+		int[] blurred = new int[n];
+		int[] edges = new int[n];
+		int[] colours = new int[n];
+		int[] cartoon = new int[n];
+		try (OpenCLSession session = OpenCLSession.open(null)) {
+			session.run(photo.pixels(), photo.width(), photo.height(), 128);
+			session.readResults(blurred, edges, colours, cartoon);
+		}
+		Cartoonify cart = new Cartoonify();
+		for (int i = 0; i < n; i++) {
+			assertTrue(edges[i] == cart.black || edges[i] == cart.white);
+			assertEquals(colours[i] == cart.white ? edges[i] : colours[i], cartoon[i]);
+		}
+	}
+
+	@Test
+	public void testCartoonifyKeepsSessionBetweenPhotos() throws IOException {
+		assumeOpenCL();
+		Cartoonify cart = new Cartoonify();
+		cart.setUseGPU(true);
+		try {
+			cart.loadPhoto("test.png");
+			cart.processCurrentPhoto("test.png");
+			final int[] first = cart.currentImage().clone();
+			cart.clear();
+			// the second photo used to run on a context that the first one had released.
+			cart.loadPhoto("test.png");
+			cart.processCurrentPhoto("test.png");
+			assertArrayEquals(first, cart.currentImage());
+			assertEquals(2, cart.numImages());
+		} finally {
+			cart.releaseOpenCL();
+		}
+	}
+}
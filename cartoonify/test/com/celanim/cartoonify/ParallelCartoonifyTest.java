@@ -0,0 +1,39 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Runs all the CartoonifyTest cases with each stage split over several CPU threads.
+ */
+public class ParallelCartoonifyTest extends CartoonifyTest {
+
+	@Override
+	protected Cartoonify newCartoonify() {
+		Cartoonify cart = new Cartoonify();
+		cart.setParallelism(4);
+		return cart;
+	}
+
+	@Test
+	public void testParallelism() {
+		assertEquals(4, newCartoonify().getParallelism());
+		Cartoonify cart = new Cartoonify();
+		assertEquals(1, cart.getParallelism());
+		cart.setParallelism(0);
+		assertEquals(Runtime.getRuntime().availableProcessors(), cart.getParallelism());
+	}
+
+	@Test
+	public void testPoolsAreShared() {
+		// setting the parallelism again, or on another Cartoonify, must not start more threads.
+		Cartoonify cart = newCartoonify();
+		RowBands bands = cart.bands();
+		cart.setParallelism(4);
+		assertSame(bands, cart.bands());
+		assertSame(bands, newCartoonify().bands());
+		assertSame(RowBands.withParallelism(0), RowBands.withParallelism(Runtime.getRuntime().availableProcessors()));
+		assertSame(RowBands.SEQUENTIAL, RowBands.withParallelism(1));
+	}
+}
@@ -0,0 +1,125 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParameterSweepTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Runs the staged pipeline and returns the final image. */
+	private int[] staged(String photo, int edgeThreshold, int numColours) throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.setEdgeThreshold(edgeThreshold);
+		cart.setNumColours(numColours);
+		cart.loadPhoto(photo);
+		cart.processPhotoOnCPU();
+		return cart.popImage();
+	}
+
+	@Test
+	public void testSameAsSeparateRuns() throws IOException {
+		final File photo = new File(folder.getRoot(), "photo.png");
+		Files.copy(new File("test.png").toPath(), photo.toPath());
+		final int[] thresholds = {50, 128, 256};
+		final int[] colours = {2, 3, 4};
+		Cartoonify cart = new Cartoonify();
+		cart.setParallelism(2);
+		cart.setSweep(thresholds, colours);
+		assertTrue(cart.isSweep());
+		cart.processPhoto(photo.getPath());
+		assertEquals(0, cart.numImages());
+		assertEquals(50 * 30, cart.getPixelsProcessed());
+		for (int e : thresholds) {
+			for (int c : colours) {
+				final String name = ParameterSweep.outputName(photo.getPath(), e, c);
+				assertEquals(new File(folder.getRoot(), "photo_cartoon_e" + e + "_c" + c + ".png").getPath(), name);
+				assertArrayEquals(name, staged("test.png", e, c), Photo.read(name).pixels());
+			}
+		}
+		assertArrayEquals(Photo.read("test_cartoon_e256_c3.png").pixels(),
+				Photo.read(ParameterSweep.outputName(photo.getPath(), 256, 3)).pixels());
+	}
+
+	@Test
+	public void testOneDimension() throws IOException {
+		final File photo = new File(folder.getRoot(), "photo.png");
+		Files.copy(new File("test.png").toPath(), photo.toPath());
+		Cartoonify cart = new Cartoonify();
+		cart.setNumColours(4);
+		cart.setSweep(new int[] {100, 200}, null);
+		cart.processPhoto(photo.getPath());
+		assertArrayEquals(staged("test.png", 100, 4),
+				Photo.read(ParameterSweep.outputName(photo.getPath(), 100, 4)).pixels());
+		assertArrayEquals(staged("test.png", 200, 4),
+				Photo.read(ParameterSweep.outputName(photo.getPath(), 200, 4)).pixels());
+	}
+
+	@Test
+	public void testFlagsThatASweepCannotUse() throws IOException {
+		assertEquals(4, new Cartoonify().setFlags(new String[] {"-e", "50,128", "-c", "2,3", "photo.png"}, 0));
+		String[][] flags = {{"-g"}, {"-f"}, {"-l"}, {"-s"}, {"-f", "-s"}};
+		for (String[] unused : flags) {
+			String[] args = new String[unused.length + 3];
+			System.arraycopy(unused, 0, args, 0, unused.length);
+			args[unused.length] = "-e";
+			args[unused.length + 1] = "50,128";
+			args[unused.length + 2] = "photo.png";
+			try {
+				new Cartoonify().setFlags(args, 0);
+				fail(String.join(" ", args) + " should be rejected");
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().endsWith(" " + String.join(" ", unused)));
+			}
+		}
+		// a single value is not a sweep, so it can be used with any of them.
+		assertEquals(4, new Cartoonify().setFlags(new String[] {"-f", "-l", "-e", "50", "photo.png"}, 0));
+	}
+
+	/** Runs a sweep of test.png with its own pool, and returns the pool. */
+	private PixelBufferPool sweep(File photo, boolean expectFailure) throws IOException {
+		PixelBufferPool pool = new PixelBufferPool(PixelBufferPool.DEFAULT_MAX_BYTES);
+		Cartoonify cart = new Cartoonify();
+		cart.setPixelPool(pool);
+		cart.setSweep(new int[] {50, 128}, new int[] {2, 3});
+		try {
+			cart.processPhoto(photo.getPath());
+			assertFalse("the sweep should fail", expectFailure);
+		} catch (IOException e) {
+			assertTrue(e.toString(), expectFailure);
+		}
+		assertEquals(0, cart.numImages());
+		return pool;
+	}
+
+	@Test
+	public void testFailedSaveReleasesBuffers() throws IOException {
+		final File photo = new File(folder.getRoot(), "photo.png");
+		Files.copy(new File("test.png").toPath(), photo.toPath());
+		final long pooledBytes = sweep(photo, false).pooledBytes();
+		// a non-empty directory where the second cartoon should go, so that it cannot be saved.
+		final File blocked = new File(ParameterSweep.outputName(photo.getPath(), 128, 2));
+		assertTrue(blocked.delete());
+		assertTrue(new File(blocked, "file").mkdirs());
+		assertEquals(pooledBytes, sweep(photo, true).pooledBytes());
+	}
+
+	@Test
+	public void testParseList() {
+		assertArrayEquals(new int[] {50, 128, 256}, Cartoonify.parseList("50,128, 256"));
+		assertArrayEquals(new int[] {7}, Cartoonify.parseList("7"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadColours() {
+		new Cartoonify().setSweep(null, new int[] {3, 300});
+	}
+}
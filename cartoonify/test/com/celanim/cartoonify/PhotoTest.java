@@ -0,0 +1,54 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PhotoTest {
+
+	/** Fills an image with random colours, including random alpha values. */
+	private BufferedImage randomImage(int type, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, type);
+		Random rand = new Random(type);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, rand.nextInt());
+			}
+		}
+		return image;
+	}
+
+	/** @return what getRGB gives, without the alpha channel. */
+	private int[] expectedPixels(BufferedImage image) {
+		int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] &= 0x00FFFFFF;
+		}
+		return pixels;
+	}
+
+	@Test
+	public void testSameAsGetRGB() {
+		final int[] types = {
+			BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_ARGB_PRE,
+			BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR,
+			BufferedImage.TYPE_4BYTE_ABGR_PRE, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY,
+			BufferedImage.TYPE_USHORT_565_RGB, BufferedImage.TYPE_BYTE_INDEXED,
+		};
+		for (int type : types) {
+			BufferedImage image = randomImage(type, 13, 7);
+			assertArrayEquals("type " + type, expectedPixels(image), Photo.rgbPixels(image));
+		}
+	}
+
+	@Test
+	public void testSubimages() {
+		for (int type : new int[] {BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR}) {
+			BufferedImage image = randomImage(type, 20, 10).getSubimage(3, 2, 11, 6);
+			assertArrayEquals("type " + type, expectedPixels(image), Photo.rgbPixels(image));
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PhotoWritersTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Photo testPhoto(String name) throws IOException {
+		Photo photo = Photo.read("test.png");
+		return new Photo(new File(folder.getRoot(), name).getPath(), photo.width(), photo.height(), photo.pixels());
+	}
+
+	private byte[] bytes(String name) throws IOException {
+		return Files.readAllBytes(new File(folder.getRoot(), name).toPath());
+	}
+
+	@Test
+	public void testDefaultsSameAsImageIO() throws IOException {
+		PhotoWriters writers = new PhotoWriters();
+		for (String extn : new String[] {"png", "jpg"}) {
+			Photo photo = testPhoto("photo." + extn);
+			ImageIO.write(photo.image(), extn, new File(folder.getRoot(), "expected." + extn));
+			// twice, so that the second time reuses the cached writer.
+			for (int i = 0; i < 2; i++) {
+				writers.write(photo);
+				assertArrayEquals(extn, bytes("expected." + extn), bytes("photo." + extn));
+			}
+		}
+	}
+
+	@Test
+	public void testImageSharesPixels() throws IOException {
+		Photo photo = testPhoto("photo.png");
+		assertEquals(photo.pixels()[0], photo.image().getRGB(0, 0) & 0x00FFFFFF);
+		photo.image().setRGB(0, 0, 0x123456);
+		assertEquals(0x123456, photo.pixels()[0]);
+	}
+
+	@Test
+	public void testQualitySettings() throws IOException {
+		new PhotoWriters(0.1f, 0).write(testPhoto("low.jpg"));
+		new PhotoWriters(1.0f, 0).write(testPhoto("high.jpg"));
+		assertTrue(bytes("low.jpg").length < bytes("high.jpg").length);
+		new PhotoWriters().withPngCompression(0).write(testPhoto("none.png"));
+		new PhotoWriters().withPngCompression(9).write(testPhoto("best.png"));
+		assertTrue(bytes("best.png").length < bytes("none.png").length);
+		Photo none = Photo.read(new File(folder.getRoot(), "none.png").getPath());
+		assertArrayEquals(Photo.read("test.png").pixels(), none.pixels());
+	}
+
+	@Test
+	public void testUnknownType() throws IOException {
+		assertFalse(new PhotoWriters().write(testPhoto("photo.xyz").image(), "photo.xyz"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadQuality() {
+		new PhotoWriters(1.5f, 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadCompression() {
+		new PhotoWriters().withPngCompression(10);
+	}
+}
@@ -0,0 +1,83 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class PixelBufferPoolTest {
+
+	@Test
+	public void testReuse() {
+		PixelBufferPool pool = new PixelBufferPool(1024);
+		int[] first = pool.acquire(10);
+		assertEquals(10, first.length);
+		assertEquals(0, pool.hits());
+		assertEquals(1, pool.misses());
+		pool.release(first);
+		assertEquals(40, pool.pooledBytes());
+		assertNotSame(first, pool.acquire(20));
+		assertSame(first, pool.acquire(10));
+		assertEquals(1, pool.hits());
+		assertEquals(2, pool.misses());
+		assertEquals(0, pool.pooledBytes());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsedSize() {
+		PixelBufferPool pool = new PixelBufferPool(100);
+		int[] small = new int[10];
+		int[] big = new int[15];
+		pool.release(small);
+		pool.release(big);
+		assertEquals(100, pool.pooledBytes());
+		pool.release(new int[5]);  // no room, so the small buffer goes.
+		assertEquals(1, pool.evictions());
+		assertEquals(80, pool.pooledBytes());
+		assertNotSame(small, pool.acquire(10));
+		assertSame(big, pool.acquire(15));
+	}
+
+	@Test
+	public void testTooBig() {
+		PixelBufferPool pool = new PixelBufferPool(0);
+		pool.release(new int[1]);
+		assertEquals(1, pool.evictions());
+		assertEquals(0, pool.pooledBytes());
+		pool.acquire(1);
+		assertEquals(0, pool.hits());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeSize() {
+		new PixelBufferPool(-1);
+	}
+
+	@Test
+	public void testSecondPhotoReusesBuffers() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.setEdgeThreshold(256);
+		cart.loadPhoto("test.png");
+		cart.processPhotoOnCPU();
+		int[] first = cart.currentImage().clone();
+		cart.clear();
+		final long misses = cart.getPixelPool().misses();
+
+		cart.loadPhoto("test.png");
+		cart.processPhotoOnCPU();
+		assertEquals(misses, cart.getPixelPool().misses());
+		assertTrue(cart.getPixelPool().hits() > 0);
+		assertArrayEquals(first, cart.currentImage());
+
+		Cartoonify expected = new Cartoonify();
+		expected.loadPhoto("test_cartoon_e256_c3.png");
+		assertArrayEquals(expected.currentImage(), cart.currentImage());
+	}
+
+	@Test
+	public void testCopiesSharePool() {
+		Cartoonify settings = new Cartoonify();
+		assertSame(settings.getPixelPool(), new Cartoonify(settings).getPixelPool());
+	}
+}
@@ -0,0 +1,86 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the Vector API per-pixel stages give exactly the same results as the scalar ones.
+ * These tests are skipped when the JVM does not have the jdk.incubator.vector module.
+ */
+public class PixelStagesTest {
+
+	/** An odd length, so that the scalar tail loops get used too. */
+	private static final int LENGTH = 256 * 3 + 13;
+
+	private PixelStages vector() {
+		PixelStages stages = PixelStages.vectorOrScalar();
+		assumeTrue(stages != PixelStages.SCALAR);
+		return stages;
+	}
+
+	/** Every value of every channel, plus some random pixels. */
+	private int[] testPixels() {
+		int[] pixels = new int[LENGTH];
+		for (int value = 0; value < 256; value++) {
+			pixels[value] = value << 16;
+			pixels[256 + value] = value << 8;
+			pixels[512 + value] = value;
+		}
+		Random rand = new Random(7);
+		for (int i = 768; i < LENGTH; i++) {
+			pixels[i] = rand.nextInt(0x01000000);
+		}
+		return pixels;
+	}
+
+	@Test
+	public void testScalarByDefault() {
+		Cartoonify cart = new Cartoonify();
+		assertEquals("scalar", cart.getPixelStages());
+	}
+
+	@Test
+	public void testGrayscale() {
+		PixelStages vector = vector();
+		int[] src = testPixels();
+		int[] expected = new int[LENGTH];
+		int[] actual = new int[LENGTH];
+		PixelStages.SCALAR.grayscale(src, expected, 0, LENGTH);
+		vector.grayscale(src, actual, 0, LENGTH);
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void testReduceColours() {
+		PixelStages vector = vector();
+		int[] src = testPixels();
+		for (int numColours = 2; numColours <= 256; numColours++) {
+			ColourQuantizer quantizer = new ColourQuantizer(numColours);
+			int[] expected = new int[LENGTH];
+			int[] actual = new int[LENGTH];
+			PixelStages.SCALAR.reduceColours(src, expected, 1, LENGTH, quantizer);
+			vector.reduceColours(src, actual, 1, LENGTH, quantizer);
+			assertArrayEquals("numColours=" + numColours, expected, actual);
+		}
+	}
+
+	@Test
+	public void testMergeMask() {
+		PixelStages vector = vector();
+		int[] photo = testPixels();
+		int[] mask = new int[LENGTH];
+		Random rand = new Random(3);
+		for (int i = 0; i < LENGTH; i++) {
+			mask[i] = rand.nextBoolean() ? 0x00FFFFFF : 0;
+		}
+		int[] expected = new int[LENGTH];
+		int[] actual = new int[LENGTH];
+		PixelStages.SCALAR.mergeMask(mask, 0x00FFFFFF, photo, expected, 0, LENGTH);
+		vector.mergeMask(mask, 0x00FFFFFF, photo, actual, 0, LENGTH);
+		assertArrayEquals(expected, actual);
+	}
+}
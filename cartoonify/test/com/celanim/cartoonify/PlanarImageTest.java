@@ -0,0 +1,115 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PlanarImageTest {
+
+	private static int[] randomPixels(Random rand, int size) {
+		int[] pixels = new int[size];
+		for (int i = 0; i < size; i++) {
+			pixels[i] = rand.nextInt(0x01000000);
+		}
+		return pixels;
+	}
+
+	@Test
+	public void testPackUnpack() {
+		int[] pixels = randomPixels(new Random(1), 7 * 5);
+		PlanarImage image = new PlanarImage(7, 5);
+		image.unpack(pixels, 0, 5);
+		int[] packed = new int[pixels.length];
+		image.pack(packed, 0, 5);
+		assertArrayEquals(pixels, packed);
+	}
+
+	/** Checks blurring and edge detection against the packed versions, including narrow images. */
+	@Test
+	public void testMatchesPackedStages() {
+		Random rand = new Random(42);
+		for (int width = 2; width <= 12; width++) {
+			for (int height = 2; height <= 6; height++) {
+				int[] pixels = randomPixels(rand, width * height);
+				PlanarImage image = new PlanarImage(width, height);
+				image.unpack(pixels, 0, height);
+				PlanarImage blurred = new PlanarImage(width, height);
+				image.convolve(Cartoonify.GAUSSIAN_KERNEL, blurred, 0, height);
+
+				// blur the packed pixels
+				ConvolutionKernel kernel = Cartoonify.GAUSSIAN_KERNEL;
+				int[] rowStarts = new int[kernel.size()];
+				int[] red = new int[width];
+				int[] green = new int[width];
+				int[] blue = new int[width];
+				int[] expected = new int[width * height];
+				for (int y = 0; y < height; y++) {
+					kernel.rowStarts(y, width, height, rowStarts);
+					kernel.applyRow(pixels, rowStarts, width, red, green, blue);
+					for (int x = 0; x < width; x++) {
+						expected[y * width + x] = kernel.normalise(red[x]) << 16
+								| kernel.normalise(green[x]) << 8 | kernel.normalise(blue[x]);
+					}
+				}
+				int[] actual = new int[width * height];
+				blurred.pack(actual, 0, height);
+				assertArrayEquals("width=" + width + " height=" + height, expected, actual);
+
+				// blurring straight from the packed pixels, one band of rows at a time.
+				for (int bandRows = 1; bandRows <= height; bandRows++) {
+					PlanarImage direct = new PlanarImage(width, height);
+					for (int y = 0; y < height; y += bandRows) {
+						direct.convolve(kernel, pixels, y, Math.min(y + bandRows, height));
+					}
+					direct.pack(actual, 0, height);
+					assertArrayEquals("width=" + width + " height=" + height + " bandRows=" + bandRows, expected, actual);
+				}
+
+				// the edges of both, with a threshold that catches some pixels
+				final int threshold = 300;
+				EdgeMask packedEdges = new EdgeMask(width, height);
+				EdgeMask planarEdges = new EdgeMask(width, height);
+				int[] magnitudes = new int[width];
+				for (int y = 0; y < height; y++) {
+					SobelOperator.edgeRow(expected, y, width, height, threshold, packedEdges);
+					SobelOperator.edgeRow(blurred, y, threshold, magnitudes, planarEdges);
+				}
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						assertEquals("x=" + x + " y=" + y, packedEdges.isEdge(x, y), planarEdges.isEdge(x, y));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSameStackAsStaged() throws IOException {
+		for (boolean debug : new boolean[] {false, true}) {
+			Cartoonify expected = new Cartoonify();
+			expected.setDebug(debug);
+			expected.setEdgeThreshold(256);
+			expected.loadPhoto("test.png");
+			expected.processPhotoOnCPU();
+
+			Cartoonify cart = new Cartoonify();
+			cart.setDebug(debug);
+			cart.setPlanar(true);
+			cart.setParallelism(3);
+			cart.setEdgeThreshold(256);
+			cart.loadPhoto("test.png");
+			cart.processPhotoPlanar();
+			assertArrayEquals(expected.popImage(), cart.popImage());
+			if (debug) {
+				// the intermediate images are only packed when debugging.
+				assertEquals(expected.numImages(), cart.numImages());
+				while (cart.numImages() > 0) {
+					assertArrayEquals(expected.popImage(), cart.popImage());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class PngEncoderTest {
+
+	/** Encodes with the given encoder and decodes the result with ImageIO. */
+	private BufferedImage roundTrip(PngEncoder encoder, int[] pixels, int width, int height) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		encoder.encode(pixels, width, height, bytes);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals(width, image.getWidth());
+		assertEquals(height, image.getHeight());
+		return image;
+	}
+
+	/** A smooth image with thousands of colours, tall enough to be split into several strips. */
+	private int[] gradient(int width, int height) {
+		Random rand = new Random(42);
+		int[] pixels = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				pixels[y * width + x] = ((x & 0xFF) << 16) | ((y & 0xFF) << 8) | rand.nextInt(4);
+			}
+		}
+		return pixels;
+	}
+
+	@Test
+	public void testRGBStrips() throws IOException {
+		final int width = 300;
+		final int height = 1000;
+		int[] pixels = gradient(width, height);
+		for (int level : new int[] {0, 4, 9}) {
+			BufferedImage image = roundTrip(new PngEncoder(RowBands.withParallelism(3), level), pixels, width, height);
+			assertArrayEquals("level " + level, pixels, Photo.rgbPixels(image));
+		}
+	}
+
+	@Test
+	public void testPalette() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.loadPhoto("test_cartoon_e256_c3.png");
+		final int[] pixels = cart.currentImage();
+		assertNotNull(PngEncoder.Palette.of(pixels));
+		BufferedImage image = roundTrip(new PngEncoder(RowBands.SEQUENTIAL, 6), pixels, cart.width(), cart.height());
+		assertEquals(BufferedImage.TYPE_BYTE_INDEXED, image.getType());
+		assertArrayEquals(pixels, Photo.rgbPixels(image));
+	}
+
+	@Test
+	public void testPaletteLimit() {
+		int[] pixels = new int[PngEncoder.MAX_PALETTE + 1];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = i * 0x010203;
+		}
+		assertNull(PngEncoder.Palette.of(pixels));
+		PngEncoder.Palette palette = PngEncoder.Palette.of(Arrays.copyOf(pixels, PngEncoder.MAX_PALETTE));
+		assertEquals(PngEncoder.MAX_PALETTE, palette.size());
+		for (int i = 0; i < palette.size(); i++) {
+			assertEquals(pixels[i], palette.colour(palette.index(pixels[i])));
+		}
+	}
+
+	@Test
+	public void testZlibHeader() {
+		for (int level = 0; level <= 9; level++) {
+			final int header = new PngEncoder(RowBands.SEQUENTIAL, level).zlibHeader();
+			assertEquals(0x78, header >> 8);
+			assertEquals(0, header % 31);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadLevel() {
+		new PngEncoder(RowBands.SEQUENTIAL, -1);
+	}
+}
@@ -0,0 +1,86 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RawPixelsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		final String raw = new File(folder.getRoot(), "test.pix").getPath();
+		Cartoonify cart = new Cartoonify();
+		cart.loadPhoto("test.png");
+		cart.savePhoto(raw);
+		assertEquals(RawPixels.HEADER_BYTES + 50 * 30 * 4, new File(raw).length());
+		cart.loadPhoto(raw);
+		assertEquals(2, cart.numImages());
+		assertArrayEquals(cart.image(0), cart.image(1));
+	}
+
+	@Test
+	public void testRawIntermediates() throws IOException {
+		final String photo = new File(folder.getRoot(), "photo.png").getPath();
+		Cartoonify cart = new Cartoonify();
+		cart.loadPhoto("test.png");
+		cart.savePhoto(photo);
+		cart.clear();
+		cart.setDebug(true);
+		cart.setRawIntermediates(true);
+		cart.processPhoto(photo);
+
+		Cartoonify expected = new Cartoonify();
+		expected.setDebug(true); // so that the edge image is pushed too.
+		expected.loadPhoto("test.png");
+		expected.processPhotoOnCPU();
+		expected.popImage();
+		int[] colours = expected.popImage();
+		expected.popImage();
+		int[] edges = expected.popImage();
+		int[] blurred = expected.popImage();
+		assertArrayEquals(colours, Photo.read(new File(folder.getRoot(), "photo_colours.pix").getPath()).pixels());
+		assertArrayEquals(edges, Photo.read(new File(folder.getRoot(), "photo_edges.pix").getPath()).pixels());
+		assertArrayEquals(blurred, Photo.read(new File(folder.getRoot(), "photo_blurred.pix").getPath()).pixels());
+		assertTrue(new File(folder.getRoot(), "photo_cartoon.png").exists());
+	}
+
+	@Test
+	public void testOverwriteShorter() throws IOException {
+		final String raw = new File(folder.getRoot(), "small.pix").getPath();
+		RawPixels.write(new Photo(raw, 10, 10, new int[100]));
+		RawPixels.write(new Photo(raw, 2, 3, new int[] {1, 2, 3, 4, 5, 6}));
+		assertEquals(RawPixels.HEADER_BYTES + 6 * 4, new File(raw).length());
+		Photo photo = RawPixels.read(raw);
+		assertEquals(2, photo.width());
+		assertEquals(3, photo.height());
+		assertArrayEquals(new int[] {1, 2, 3, 4, 5, 6}, photo.pixels());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotRaw() throws IOException {
+		final File bad = folder.newFile("bad.pix");
+		try (RandomAccessFile file = new RandomAccessFile(bad, "rw")) {
+			file.write(new byte[RawPixels.HEADER_BYTES]);
+		}
+		RawPixels.read(bad.getPath());
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncated() throws IOException {
+		final String raw = new File(folder.getRoot(), "cut.pix").getPath();
+		RawPixels.write(new Photo(raw, 4, 4, new int[16]));
+		try (RandomAccessFile file = new RandomAccessFile(raw, "rw")) {
+			file.setLength(RawPixels.HEADER_BYTES + 8);
+		}
+		RawPixels.read(raw);
+	}
+}
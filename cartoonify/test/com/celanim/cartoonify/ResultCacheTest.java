@@ -0,0 +1,125 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Copies test.png into the temporary folder a few times. */
+	private List<String> copyTestPhotos(int count) throws IOException {
+		List<String> photos = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			File photo = new File(folder.getRoot(), "photo" + i + ".png");
+			Files.copy(new File("test.png").toPath(), photo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			photos.add(photo.getPath());
+		}
+		return photos;
+	}
+
+	/** Writes a small file with the given number of bytes. */
+	private String fileOfSize(String name, int size) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		Files.write(file.toPath(), new byte[size]);
+		return file.getPath();
+	}
+
+	@Test
+	public void testKeys() throws IOException {
+		final String a = ResultCache.key("test.png", "e=256");
+		assertEquals(64, a.length());
+		assertEquals(a, ResultCache.key(copyTestPhotos(1).get(0), "e=256"));
+		assertNotEquals(a, ResultCache.key("test.png", "e=255"));
+		assertNotEquals(a, ResultCache.key("test_cartoon_e256_c3.png", "e=256"));
+
+		Cartoonify cart = new Cartoonify();
+		final String settings = cart.cacheSettings();
+		cart.setNumColours(4);
+		assertNotEquals(settings, cart.cacheSettings());
+	}
+
+	@Test
+	public void testBatchReusesResults() throws IOException {
+		for (int depth = 0; depth <= 1; depth++) {
+			final Path cacheDir = folder.getRoot().toPath().resolve("cache" + depth);
+			Cartoonify settings = new Cartoonify();
+			settings.setEdgeThreshold(256);
+			settings.setResultCache(new ResultCache(cacheDir, ResultCache.DEFAULT_MAX_BYTES));
+			List<String> photos = copyTestPhotos(3);
+			for (int run = 0; run < 2; run++) {
+				final long hits = settings.getResultCache().hits();
+				BatchProcessor batch = new BatchProcessor(settings, 2);
+				batch.setPipelineDepth(depth);
+				batch.run(photos);
+				assertEquals(3, batch.getDone());
+				checkCartoons(3);
+				if (run == 1) {
+					assertEquals(hits + 3, settings.getResultCache().hits());
+					assertEquals(0, batch.getPixels());
+				}
+				new File(folder.getRoot(), "photo0_cartoon.png").delete();
+			}
+			// every photo has the same bytes, so they all share one result.
+			assertEquals(1, settings.getResultCache().size());
+			assertEquals(6, settings.getResultCache().hits() + settings.getResultCache().misses());
+		}
+	}
+
+	/** Checks that each photo in the temporary folder has been cartoonified correctly. */
+	private void checkCartoons(int count) throws IOException {
+		Cartoonify expected = new Cartoonify();
+		expected.loadPhoto("test_cartoon_e256_c3.png");
+		for (int i = 0; i < count; i++) {
+			Cartoonify cart = new Cartoonify();
+			cart.loadPhoto(new File(folder.getRoot(), "photo" + i + "_cartoon.png").getPath());
+			assertArrayEquals(expected.currentImage(), cart.currentImage());
+		}
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() throws IOException {
+		final Path cacheDir = folder.getRoot().toPath().resolve("cache");
+		ResultCache cache = new ResultCache(cacheDir, 250);
+		cache.store("a", fileOfSize("a.png", 100));
+		cache.store("b", fileOfSize("b.png", 100));
+		final String out = new File(folder.getRoot(), "out.png").getPath();
+		assertTrue(cache.fetch("a", out));  // so b is now the least recently used.
+		cache.store("c", fileOfSize("c.png", 100));
+		assertEquals(1, cache.evictions());
+		assertEquals(200, cache.totalBytes());
+		assertFalse(cache.fetch("b", out));
+		assertTrue(cache.fetch("c", out));
+		assertEquals(100, Files.size(new File(out).toPath()));
+
+		// too big to cache at all.
+		cache.store("d", fileOfSize("d.png", 300));
+		assertFalse(cache.fetch("d", out));
+
+		// reopening the cache finds the same results.
+		ResultCache reopened = new ResultCache(cacheDir, 250);
+		assertEquals(2, reopened.size());
+		assertTrue(reopened.fetch("a", out));
+	}
+
+	@Test
+	public void testNotUsedWhenDebugging() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.setResultCache(new ResultCache(folder.getRoot().toPath().resolve("cache"), 1000));
+		assertNotNull(cart.resultCacheKey("test.png"));
+		cart.setDebug(true);
+		assertNull(cart.resultCacheKey("test.png"));
+	}
+}
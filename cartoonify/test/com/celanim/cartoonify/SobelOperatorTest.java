@@ -0,0 +1,82 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SobelOperatorTest {
+
+	/** @return |vertical| + |horizontal| over all channels, using the two Sobel kernels. */
+	private static int[] kernelMagnitudes(int[] src, int width, int height, int y) {
+		ConvolutionKernel vertical = Cartoonify.SOBEL_VERTICAL_KERNEL;
+		ConvolutionKernel horizontal = Cartoonify.SOBEL_HORIZONTAL_KERNEL;
+		int[] rowStarts = new int[3];
+		int[][] v = new int[3][width];
+		int[][] h = new int[3][width];
+		vertical.rowStarts(y, width, height, rowStarts);
+		vertical.applyRow(src, rowStarts, width, v[0], v[1], v[2]);
+		horizontal.applyRow(src, rowStarts, width, h[0], h[1], h[2]);
+		int[] result = new int[width];
+		for (int x = 0; x < width; x++) {
+			for (int c = 0; c < 3; c++) {
+				result[x] += Math.abs(v[c][x]) + Math.abs(h[c][x]);
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void testMatchesKernels() {
+		Random rand = new Random(42);
+		for (int width = 1; width <= 12; width++) {
+			for (int height = 1; height <= 4; height++) {
+				int[] src = new int[width * height];
+				for (int i = 0; i < src.length; i++) {
+					src[i] = rand.nextInt(0x01000000);
+				}
+				int[] out = new int[width + 1];
+				for (int y = 0; y < height; y++) {
+					SobelOperator.magnitudeRow(src, y, width, height, out, 1);
+					int[] expected = kernelMagnitudes(src, width, height, y);
+					for (int x = 0; x < width; x++) {
+						assertEquals("width=" + width + " height=" + height + " x=" + x + " y=" + y,
+								expected[x], out[x + 1]);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEdgeRowThresholds() {
+		Random rand = new Random(7);
+		final int width = 9;
+		final int height = 5;
+		int[] src = new int[width * height];
+		for (int i = 0; i < src.length; i++) {
+			src[i] = rand.nextInt(0x01000000);
+		}
+		int[] magnitudes = new int[width];
+		int[] mask = new int[width];
+		for (int y = 0; y < height; y++) {
+			SobelOperator.magnitudeRow(src, y, width, height, magnitudes, 0);
+			final int threshold = magnitudes[y];  // so that some pixels are exactly on the threshold.
+			SobelOperator.edgeRow(src, y, width, height, threshold, 1, 2, mask, 0);
+			for (int x = 0; x < width; x++) {
+				assertEquals(magnitudes[x] >= threshold ? 1 : 2, mask[x]);
+			}
+		}
+	}
+
+	@Test
+	public void testFlatImageHasNoGradient() {
+		int[] src = new int[4 * 3];
+		Arrays.fill(src, 0x123456);
+		int[] out = new int[4];
+		SobelOperator.magnitudeRow(src, 1, 4, 3, out, 0);
+		assertArrayEquals(new int[4], out);
+	}
+}
@@ -0,0 +1,160 @@
+package com.celanim.cartoonify;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamingCartoonifyTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** Runs the staged pipeline and returns the final image. */
+	private int[] staged(String photo, int edgeThreshold, int numColours) throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.setEdgeThreshold(edgeThreshold);
+		cart.setNumColours(numColours);
+		cart.loadPhoto(photo);
+		cart.processPhotoOnCPU();
+		return cart.popImage();
+	}
+
+	@Test
+	public void testSameAsStaged() throws IOException {
+		// bands smaller than, equal to and bigger than the 30 rows of test.png.
+		for (int bandRows : new int[] {1, 7, 30, 256}) {
+			Cartoonify settings = new Cartoonify();
+			settings.setEdgeThreshold(200);
+			settings.setNumColours(4);
+			StreamingCartoonify streaming = new StreamingCartoonify(settings, bandRows);
+			final String newName = new File(folder.getRoot(), "test" + bandRows + "_cartoon.png").getPath();
+			streaming.process("test.png", newName);
+			assertEquals(50, streaming.width());
+			assertEquals(30, streaming.height());
+			assertTrue(streaming.isForwardOnly());
+
+			Cartoonify result = new Cartoonify();
+			result.loadPhoto(newName);
+			assertArrayEquals(staged("test.png", 200, 4), result.currentImage());
+		}
+	}
+
+	/** Streams a photo and checks that the cartoon is the same as the staged one. */
+	private void assertSameAsStaged(String photo, int bandRows, boolean forwardOnly) throws IOException {
+		Cartoonify settings = new Cartoonify();
+		settings.setEdgeThreshold(200);
+		settings.setNumColours(4);
+		StreamingCartoonify streaming = new StreamingCartoonify(settings, bandRows);
+		final String newName = new File(folder.getRoot(), "streamed_cartoon.png").getPath();
+		streaming.process(photo, newName);
+		assertEquals(forwardOnly, streaming.isForwardOnly());
+
+		Cartoonify result = new Cartoonify();
+		result.loadPhoto(newName);
+		assertArrayEquals(staged(photo, 200, 4), result.currentImage());
+	}
+
+	@Test
+	public void testRegionBands() throws IOException {
+		// BMP rows are not known to be decoded in order, so they are read a band at a time.
+		final File bmp = folder.newFile("test.bmp");
+		assertTrue(ImageIO.write(ImageIO.read(new File("test.png")), "bmp", bmp));
+		assertSameAsStaged(bmp.getPath(), 7, false);
+	}
+
+	@Test
+	public void testProgressiveJpeg() throws IOException {
+		final File jpeg = folder.newFile("progressive.jpg");
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+		try (ImageOutputStream output = ImageIO.createImageOutputStream(jpeg)) {
+			writer.setOutput(output);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+			writer.write(null, new IIOImage(ImageIO.read(new File("test.png")), null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		// the decoder outputs the whole photo after each scan, and only the last one is used.
+		assertSameAsStaged(jpeg.getPath(), 7, true);
+	}
+
+	@Test
+	public void testJpegOutput() throws IOException {
+		Cartoonify settings = new Cartoonify();
+		StreamingCartoonify streaming = new StreamingCartoonify(settings, 7);
+		final File streamed = new File(folder.getRoot(), "streamed_cartoon.jpg");
+		streaming.process("test.png", streamed.getPath());
+
+		Cartoonify cart = new Cartoonify();
+		final File staged = new File(folder.getRoot(), "staged_cartoon.jpg");
+		cart.loadPhoto("test.png");
+		cart.processPhotoOnCPU();
+		cart.savePhoto(staged.getPath());
+		assertArrayEquals(Files.readAllBytes(staged.toPath()), Files.readAllBytes(streamed.toPath()));
+	}
+
+	@Test
+	public void testJpegNeedsOnlyBandsInMemory() throws IOException, InterruptedException {
+		// a 12 megapixel photo, whose cartoon alone would fill 48 MB, streamed with a 32 MB heap.
+		final File photo = folder.newFile("tall.jpg");
+		BufferedImage image = new BufferedImage(3000, 4000, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(42);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, (x * 255 / image.getWidth()) << 16 | (y * 255 / image.getHeight()) << 8 | random.nextInt(64));
+			}
+		}
+		assertTrue(ImageIO.write(image, "jpg", photo));
+		image = null;
+
+		final File log = folder.newFile("streaming.log");
+		Process child = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-Xmx32m", "-cp", System.getProperty("java.class.path"),
+				Cartoonify.class.getName(), "-s", photo.getPath())
+				.redirectErrorStream(true).redirectOutput(log).start();
+		assertTrue("timed out", child.waitFor(2, TimeUnit.MINUTES));
+		assertEquals(new String(Files.readAllBytes(log.toPath())), 0, child.exitValue());
+
+		Photo cartoon = Photo.read(new File(folder.getRoot(), "tall_cartoon.jpg").getPath());
+		assertEquals(3000, cartoon.width());
+		assertEquals(4000, cartoon.height());
+	}
+
+	@Test
+	public void testFlagsThatStreamingCannotUse() throws IOException {
+		assertEquals(2, new Cartoonify().setFlags(new String[] {"-s", "-d", "photo.png"}, 0));
+		String[][] flags = {{"-g"}, {"-f"}, {"-l"}, {"-g", "-l"}};
+		for (String[] unused : flags) {
+			String[] args = new String[unused.length + 2];
+			System.arraycopy(unused, 0, args, 0, unused.length);
+			args[unused.length] = "-s";
+			args[unused.length + 1] = "photo.png";
+			try {
+				new Cartoonify().setFlags(args, 0);
+				fail(String.join(" ", args) + " should be rejected");
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().endsWith(" " + String.join(" ", unused)));
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoBandRows() {
+		new StreamingCartoonify(new Cartoonify(), 0);
+	}
+}